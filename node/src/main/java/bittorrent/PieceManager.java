@@ -27,16 +27,22 @@ public class PieceManager {
     }
 
     public byte[] loadPieceData(String pieceKey) throws IOException {
-        String safeKey = pieceKey.replace(":", "_");
-        File file = new File(storageDir, safeKey);
+        File file = getPieceFile(pieceKey);
 
-        if (!file.exists()) {
+        if (file == null) {
             return null;
         }
 
         return Files.readAllBytes(file.toPath());
     }
 
+    // File chứa piece trên đĩa (null nếu chưa có), dùng cho serve zero-copy bằng FileChannel
+    public File getPieceFile(String pieceKey) {
+        String safeKey = pieceKey.replace(":", "_");
+        File file = new File(storageDir, safeKey);
+        return file.exists() ? file : null;
+    }
+
     private String bytesToHex(byte[] bytes) {
         StringBuilder sb = new StringBuilder();
         for (byte b : bytes) {
@@ -72,6 +78,12 @@ public class PieceManager {
 
         System.out.println("Saved: " + pieceKey + " (" + data.length + " bytes)");
     }
+    // Mở writer để stream piece thẳng vào storage, chỉ lưu khi SHA-1 khớp expectedHash
+    public PieceStreamWriter openPieceWriter(String pieceKey, String expectedHash) throws IOException {
+        String safeKey = pieceKey.replace(":", "_");
+        return new PieceStreamWriter(new File(storageDir, safeKey).toPath(), expectedHash);
+    }
+
     public int getTotalPieces(String infoHash) {
         List<byte[]> list = pieces.get(infoHash);
         return list == null ? 0 : list.size();
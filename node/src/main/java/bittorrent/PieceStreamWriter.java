@@ -0,0 +1,120 @@
+package bittorrent;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Ghi 1 piece ra file tạm trong lúc nhận, cập nhật SHA-1 theo từng đoạn.
+ * commit() chỉ đổi tên file tạm thành file đích khi hash khớp; ngược lại file tạm bị xóa.
+ * Bộ nhớ dùng cho mỗi piece đang nhận chỉ là 1 buffer cố định; file tạm chỉ được mở khi có dữ liệu
+ * nên có thể tạo sẵn writer cho cả file (GET_PIECES) mà không giữ hàng nghìn file handle.
+ */
+public class PieceStreamWriter implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path target;
+    private final Path temp;
+    private final String expectedHash;
+    private final MessageDigest digest;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private OutputStream out; // null tới khi ghi byte đầu tiên
+    private long bytesWritten;
+    private boolean committed;
+    private boolean closed;
+
+    public PieceStreamWriter(Path target, String expectedHash) throws IOException {
+        this.target = target;
+        this.temp = target.resolveSibling(target.getFileName() + ".part");
+        this.expectedHash = expectedHash;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 not available", e);
+        }
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        out = Files.newOutputStream(temp);
+    }
+
+    private void closeOutput() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    public synchronized void write(byte[] data, int offset, int length) throws IOException {
+        if (closed) throw new IOException("Writer for " + target.getFileName() + " is closed");
+        if (out == null) open();
+        digest.update(data, offset, length);
+        out.write(data, offset, length);
+        bytesWritten += length;
+    }
+
+    // Đọc đúng length byte từ stream vào file
+    public synchronized void transferFrom(InputStream in, long length) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException("Stream ended with " + remaining + " piece bytes missing");
+            }
+            write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    // Kiểm tra hash rồi đổi tên file tạm; trả về false (và xóa file tạm) nếu không khớp
+    public synchronized boolean commit() throws IOException {
+        if (committed) return true;
+        if (closed) return false;
+        if (out == null) open(); // piece rỗng
+        closeOutput();
+        String actualHash = HexFormat.of().formatHex(digest.digest());
+        if (expectedHash != null && !expectedHash.equalsIgnoreCase(actualHash)) {
+            System.err.println("❌ Hash mismatch for " + target.getFileName() + ": expected "
+                    + expectedHash + ", got " + actualHash);
+            Files.deleteIfExists(temp);
+            return false;
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+        return true;
+    }
+
+    // Bỏ dữ liệu đã ghi để nhận lại từ đầu (vd. thử peer khác)
+    public synchronized void reset() throws IOException {
+        if (committed) return;
+        closeOutput();
+        Files.deleteIfExists(temp);
+        digest.reset();
+        bytesWritten = 0;
+    }
+
+    public synchronized boolean isCommitted() {
+        return committed;
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (committed) return;
+        closed = true;
+        closeOutput();
+        Files.deleteIfExists(temp);
+    }
+}
@@ -2,12 +2,13 @@ package bittorrent;
 
 import core.Contact;
 import dht.KademliaNode;
-import util.HashUtil;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -47,7 +48,7 @@ public class TorrentManager {
             metadataStore.storeMetadata(torrent);
 
             // 4. PHÂN TÁN PIECES THEO DHT ROUTING
-            distributeViaDHT(infoHash, pieces);
+            distributeViaDHT(infoHash, pieces, torrent.getPieces());
 
             // 5. Announce file lên DHT
             dhtNode.storePeer(infoHash);
@@ -63,26 +64,18 @@ public class TorrentManager {
             return null;
         }
     }
-    private void distributeViaDHT(String infoHash, List<byte[]> pieces) {
+    private void distributeViaDHT(String infoHash, List<byte[]> pieces, List<String> pieceHashes) {
         System.out.println("[distributeViaDHT] Distributing " + pieces.size() + " pieces via DHT");
 
+        // Các piece được gom theo node đích và gửi bằng STORE_PIECES (vài RPC mỗi node)
+        List<String> pieceKeys = new ArrayList<>(pieces.size());
         for (int i = 0; i < pieces.size(); i++) {
-            final int pieceIndex = i;
-            final byte[] pieceData = pieces.get(i);
-
-            executor.submit(() -> {
-                try {
-                    String pieceKey = infoHash + ":" + pieceIndex;
-
-
-                    dhtNode.storePiece(pieceKey, pieceData);
-
-                    System.out.println("✅ Piece " + pieceIndex + " distributed via DHT");
-
-                } catch (Exception e) {
-                    System.err.println("❌ Failed to distribute piece " + pieceIndex + ": " + e.getMessage());
-                }
-            });
+            pieceKeys.add(infoHash + ":" + i);
+        }
+        try {
+            dhtNode.storePieces(pieceKeys, pieces, pieceHashes);
+        } catch (Exception e) {
+            System.err.println("❌ Failed to distribute pieces: " + e.getMessage());
         }
     }
     // Hàm tiện ích để log byte[] dưới dạng hex
@@ -139,71 +132,67 @@ public class TorrentManager {
         int totalPieces = torrent.getPieces().size();
         System.out.println("[TorrentManager] Total pieces: " + totalPieces);
 
-        // 2. Download pieces song song
-        ConcurrentHashMap<Integer, byte[]> downloadedPieces = new ConcurrentHashMap<>();
-        CountDownLatch latch = new CountDownLatch(totalPieces);
+        // 2. Download pieces: mỗi piece được stream ra file tạm và kiểm tra SHA-1 trong lúc nhận,
+        //    các piece được xin theo batch GET_PIECES gom theo node và báo về ngay khi từng piece tới
+        Path spoolDir = Files.createTempDirectory("dfss-" + infoHash);
+        ConcurrentHashMap<Integer, Path> downloadedPieces = new ConcurrentHashMap<>();
         AtomicInteger downloadedCount = new AtomicInteger(0);
 
+        Map<String, PieceStreamWriter> writers = new LinkedHashMap<>();
+        Map<String, Integer> pieceIndexes = new HashMap<>();
         for (int i = 0; i < totalPieces; i++) {
-            final int pieceIndex = i;
-            executor.submit(() -> {
-                try {
-                    String pieceKey = infoHash + ":" + pieceIndex;
-
-                    // Lấy piece từ DHT
-                    byte[] piece = dhtNode.retrievePiece(pieceKey);
-
-                    if (piece != null) {
-                        // Verify hash
-                        String actualHash = HashUtil.sha1(piece);
-                        String expectedHash = torrent.getPieces().get(pieceIndex);
-
-                        if (actualHash.equals(expectedHash)) {
-                            downloadedPieces.put(pieceIndex, piece);
-                            int count = downloadedCount.incrementAndGet();
-                            System.out.println("✅ Downloaded piece " + pieceIndex
-                                    + " (" + count + "/" + totalPieces + ")");
-                        } else {
-                            System.err.println("❌ Hash mismatch for piece " + pieceIndex);
-                        }
-                    } else {
-                        System.err.println("❌ Failed to download piece " + pieceIndex);
-                    }
-
-                } catch (Exception e) {
-                    System.err.println("❌ Error downloading piece " + pieceIndex + ": " + e.getMessage());
-                } finally {
-                    latch.countDown();
-                }
-            });
+            String pieceKey = infoHash + ":" + i;
+            writers.put(pieceKey, new PieceStreamWriter(spoolDir.resolve(String.valueOf(i)), torrent.getPieces().get(i)));
+            pieceIndexes.put(pieceKey, i);
         }
+
+        Future<Set<String>> download = executor.submit(() -> dhtNode.retrievePieces(writers, pieceKey -> {
+            int pieceIndex = pieceIndexes.get(pieceKey);
+            downloadedPieces.put(pieceIndex, writers.get(pieceKey).getTarget());
+            int count = downloadedCount.incrementAndGet();
+            System.out.println("✅ Downloaded piece " + pieceIndex + " (" + count + "/" + totalPieces + ")");
+        }));
         System.out.println("[TorrentManager] Streaming pieces to client...");
         BufferedOutputStream bufferedOutput = new BufferedOutputStream(outputStream, 65536);
 
-        for (int i = 0; i < totalPieces; i++) {
-            // Đợi piece i
-            byte[] piece = null;
-            int attempts = 0;
-            while (piece == null && attempts < 300) { // 30s timeout
-                piece = downloadedPieces.get(i);
+        try {
+            for (int i = 0; i < totalPieces; i++) {
+                // Đợi piece i
+                Path piece = null;
+                int attempts = 0;
+                while (piece == null && attempts < 300) { // 30s timeout
+                    piece = downloadedPieces.get(i);
+                    if (piece == null) {
+                        if (download.isDone() && !downloadedPieces.containsKey(i)) break; // đã thử hết node
+                        Thread.sleep(100);
+                        attempts++;
+                    }
+                }
+
                 if (piece == null) {
-                    Thread.sleep(100);
-                    attempts++;
+                    throw new RuntimeException("Timeout waiting for piece " + i);
                 }
-            }
 
-            if (piece == null) {
-                throw new RuntimeException("Timeout waiting for piece " + i);
+                // Stream ngay lập tức
+                long size = Files.copy(piece, bufferedOutput);
+                bufferedOutput.flush();
+                Files.deleteIfExists(piece);
+                System.out.println("📤 Streamed piece " + i + " (" + size + " bytes)");
             }
 
-            // Stream ngay lập tức
-            bufferedOutput.write(piece);
             bufferedOutput.flush();
-            System.out.println("📤 Streamed piece " + i + " (" + piece.length + " bytes)");
+        } finally {
+            download.cancel(true);
+            for (PieceStreamWriter writer : writers.values()) {
+                try {
+                    writer.close();
+                } catch (Exception ignored) {}
+            }
+            try (var leftovers = Files.list(spoolDir)) {
+                leftovers.forEach(p -> p.toFile().delete());
+            }
+            Files.deleteIfExists(spoolDir);
         }
-
-        bufferedOutput.flush();
-        latch.await(5, TimeUnit.MINUTES);
         System.out.println("✅ [TorrentManager] Streaming completed");
     }
 
@@ -3,7 +3,7 @@ package controller;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
-@SpringBootApplication
+@SpringBootApplication(scanBasePackages = {"controller", "core"})
 public class NodeApplication {
     public static void main(String[] args) {
         SpringApplication.run(NodeApplication.class, args);
@@ -1,10 +1,12 @@
 package  controller;
 import core.Contact;
+import core.NodeConfig;
 import dht.KademliaNode;
 import dht.RoutingTable;
 import bittorrent.*;
 import file.ChunkStorage;
 import file.FileManager;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
@@ -20,6 +22,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -40,15 +43,26 @@ public class NodeController {
     @Value("${BOOTSTRAP_NODE:}")
     private String bootstrapNode;
 
+    @Autowired
+    private NodeConfig nodeConfig;
+
     private KademliaNode node;
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
     private TorrentManager torrentManager;
     private PieceManager pieceManager;
 
+    // Log của DHT nằm trong <storeDir>/dht-<port> để nhiều node dùng chung 1 thư mục; trống = chỉ trong bộ nhớ
+    private Path storeDir() {
+        String dir = nodeConfig.storeDir;
+        return dir == null || dir.isBlank() ? null : Path.of(dir.trim(), "dht-" + nodePort);
+    }
+
     @PostConstruct
     public void init() {
         try {
-            node = new KademliaNode(nodePort);
+            node = new KademliaNode(nodePort, KademliaNode.udpShardsFromEnv(), nodeConfig.lookupSymbolBits,
+                    nodeConfig.storeMaxBytes, storeDir(), nodeConfig.republishIntervalMs, nodeConfig.republishRate);
+            node.setReplicationTarget(nodeConfig.replicationTarget);
             System.out.println("Khởi tạo tại port: "+nodePort);
             node.start();
             FileManager fileManager = new FileManager();
@@ -74,6 +88,7 @@ public class NodeController {
             try {
                 RoutingTable knownNodes = node.getRoutingTable();
                 System.out.println(knownNodes);
+                System.out.println(node.getRPC().getTcpPool());
 
             } catch (Exception e) {
                 System.err.println(" Error monitoring node " + nodePort + ": " + e.getMessage());
@@ -12,9 +12,12 @@ public class Contact implements Serializable {
 
     private final NodeID nodeId;
     private final InetSocketAddress address;
-    private long lastSeen;
-    private int failedRequests;
-    private int httpPort;
+    // volatile: được cập nhật từ các luồng nhận gói tin mà không khóa routing table
+    private volatile long lastSeen;
+    private volatile int failedRequests;
+    private volatile int httpPort;
+    private final RttEstimator rtt = new RttEstimator(); // SRTT/RTTVAR và throughput tới contact này
+    private volatile VivaldiCoordinate coordinate;       // null = chưa biết tọa độ
     public Contact(NodeID nodeId, InetAddress ip, int port,int httpPort) {
         this.nodeId = nodeId;
         this.address = new InetSocketAddress(ip, port);
@@ -58,8 +61,28 @@ public class Contact implements Serializable {
         this.failedRequests = 0;
     }
 
-    public void incrementFailedRequests() {
-        this.failedRequests++;
+    public synchronized int incrementFailedRequests() {
+        return ++failedRequests;
+    }
+
+    public void recordRtt(long rttNanos) {
+        rtt.sample(rttNanos);
+    }
+
+    public long getSrttMicros() {
+        return rtt.getSrttMicros();
+    }
+
+    public RttEstimator getRtt() {
+        return rtt;
+    }
+
+    public VivaldiCoordinate getCoordinate() {
+        return coordinate;
+    }
+
+    public void setCoordinate(VivaldiCoordinate coordinate) {
+        this.coordinate = coordinate;
     }
 
     public int getFailedRequests() {
@@ -21,6 +21,26 @@ public class NodeConfig {
     @Value("${node.storage.path:data/chunks}")
     public String storagePath;
 
-    @Value("${node.replication.target:3}")
+    // Write quorum W: store / storePeer trả về khi W replica xác nhận, phần còn lại ghi tiếp ở nền
+    @Value("${node.replication.target:${REPLICATION_TARGET:3}}")
     public int replicationTarget;
+
+    // Accelerated lookup: số bit b mỗi tầng routing table (1 = Kademlia thường, 2^b - 1 bucket mỗi tầng)
+    @Value("${node.lookup.symbol-bits:${LOOKUP_SYMBOL_BITS:1}}")
+    public int lookupSymbolBits;
+
+    // Ngân sách bộ nhớ ngoài heap (byte) cho value của DHT trong DataStore
+    @Value("${node.store.max-bytes:${DHT_STORE_MAX_BYTES:67108864}}")
+    public long storeMaxBytes;
+
+    // Thư mục lưu bền value của DHT (log + index, mỗi node 1 thư mục con); để trống = chỉ giữ trong bộ nhớ
+    @Value("${node.store.dir:${DHT_STORE_DIR:}}")
+    public String storeDir;
+
+    // Chu kỳ (ms) STORE lại các value của DHT tới K node gần nhất hiện tại, và số key tối đa mỗi giây
+    @Value("${node.store.republish-interval-ms:${DHT_REPUBLISH_INTERVAL_MS:3600000}}")
+    public long republishIntervalMs;
+
+    @Value("${node.store.republish-rate:${DHT_REPUBLISH_RATE:100}}")
+    public int republishRate;
 }
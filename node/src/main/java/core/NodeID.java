@@ -3,25 +3,40 @@ package core;
 import util.HashUtil;
 
 import java.io.Serializable;
-import java.util.Arrays;
+import java.util.HexFormat;
 
+/**
+ * ID 160 bit lưu trong 3 trường nguyên thủy (64 + 64 + 32 bit, big-endian: high là 64 bit đầu).
+ * So sánh khoảng cách XOR, prefix chung, getBit... đều tính trên long, không cấp phát.
+ */
 public class NodeID implements Comparable<NodeID>, Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
     public static final int ID_LENGTH = 20; // 160 bits = 20 bytes
-    private final byte[] id;
+    public static final int ID_BITS = ID_LENGTH * 8;
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final long high;   // bit 0..63
+    private final long middle; // bit 64..127
+    private final int low;     // bit 128..159
 
     public NodeID(byte[] id) {
         if (id.length != ID_LENGTH) {
             throw new IllegalArgumentException("NodeID must be 160 bits (20 bytes)");
         }
-        this.id = Arrays.copyOf(id, ID_LENGTH);
+        this.high = readLong(id, 0);
+        this.middle = readLong(id, 8);
+        this.low = (int) readBits(id, 16, 4);
     }
+
+    // Hex 40 ký tự (dạng của toString)
     public NodeID(String id) {
-        if (id.length() != ID_LENGTH) {
-            throw new IllegalArgumentException("NodeID must be 160 bits (20 bytes)");
-        }
-        byte [] bytes = hexStringToByteArray(id);
-        this.id = bytes;
+        this(hexStringToByteArray(checkHex(id)));
+    }
+
+    public NodeID(long high, long middle, int low) {
+        this.high = high;
+        this.middle = middle;
+        this.low = low;
     }
 
     // Tạo NodeID ngẫu nhiên
@@ -43,6 +58,13 @@ public class NodeID implements Comparable<NodeID>, Serializable {
         }
     }
 
+    private static String checkHex(String id) {
+        if (id.length() != ID_LENGTH * 2) {
+            throw new IllegalArgumentException("NodeID must be 160 bits (40 hex chars)");
+        }
+        return id;
+    }
+
     private static byte[] hexStringToByteArray(String s) {
         int len = s.length();
         byte[] data = new byte[len / 2];
@@ -53,61 +75,104 @@ public class NodeID implements Comparable<NodeID>, Serializable {
         return data;
     }
 
+    private static long readLong(byte[] bytes, int offset) {
+        return readBits(bytes, offset, 8);
+    }
+
+    private static long readBits(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
     // Tính khoảng cách XOR giữa 2 NodeID
     public NodeID xor(NodeID other) {
-        byte[] result = new byte[ID_LENGTH];
-        for (int i = 0; i < ID_LENGTH; i++) {
-            result[i] = (byte) (this.id[i] ^ other.id[i]);
-        }
-        return new NodeID(result);
+        return new NodeID(high ^ other.high, middle ^ other.middle, low ^ other.low);
+    }
+
+    // Số bit đầu giống nhau (0..160)
+    public int commonPrefixLength(NodeID other) {
+        long x = high ^ other.high;
+        if (x != 0) return Long.numberOfLeadingZeros(x);
+        x = middle ^ other.middle;
+        if (x != 0) return 64 + Long.numberOfLeadingZeros(x);
+        int y = low ^ other.low;
+        if (y != 0) return 128 + Integer.numberOfLeadingZeros(y);
+        return ID_BITS;
     }
 
-    // Tính số bit khác nhau từ trái sang (prefix length)
+    // Độ dài bit của khoảng cách XOR (0 = trùng nhau, 160 = khác ngay bit đầu)
     public int getDistance(NodeID other) {
-        NodeID xor = this.xor(other);
-        java.math.BigInteger distance = new java.math.BigInteger(1, xor.id);
-        return distance.bitLength();
+        return ID_BITS - commonPrefixLength(other);
+    }
+
+    /**
+     * So sánh đầy đủ 160 bit khoảng cách XOR của a và b tới target: âm nếu a gần target hơn.
+     */
+    public static int xorCompare(NodeID a, NodeID b, NodeID target) {
+        int c = Long.compareUnsigned(a.high ^ target.high, b.high ^ target.high);
+        if (c != 0) return c;
+        c = Long.compareUnsigned(a.middle ^ target.middle, b.middle ^ target.middle);
+        if (c != 0) return c;
+        return Integer.compareUnsigned(a.low ^ target.low, b.low ^ target.low);
     }
 
     // Lấy bit tại vị trí index (0 = MSB)
     public int getBit(int index) {
-        int byteIndex = index / 8;
-        int bitIndex = 7 - (index % 8);
-        return (id[byteIndex] >> bitIndex) & 1;
+        if (index < 64) return (int) (high >>> (63 - index)) & 1;
+        if (index < 128) return (int) (middle >>> (127 - index)) & 1;
+        return (low >>> (159 - index)) & 1;
     }
 
+    // count bit (≤ 31) bắt đầu từ index, bit index là bit cao nhất của kết quả
+    public int getBits(int index, int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) value = (value << 1) | getBit(index + i);
+        return value;
+    }
+
+    public long getHigh() { return high; }
+    public long getMiddle() { return middle; }
+    public int getLow() { return low; }
+
     public byte[] getBytes() {
-        return Arrays.copyOf(id, ID_LENGTH);
+        byte[] bytes = new byte[ID_LENGTH];
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (high >>> (56 - 8 * i));
+            bytes[8 + i] = (byte) (middle >>> (56 - 8 * i));
+        }
+        for (int i = 0; i < 4; i++) {
+            bytes[16 + i] = (byte) (low >>> (24 - 8 * i));
+        }
+        return bytes;
     }
 
     @Override
     public boolean equals(Object obj) {
         if (this == obj) return true;
-        if (!(obj instanceof NodeID)) return false;
-        return Arrays.equals(this.id, ((NodeID) obj).id);
+        if (!(obj instanceof NodeID other)) return false;
+        return high == other.high && middle == other.middle && low == other.low;
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(id);
+        // ID là hash SHA-1 nên các bit đã phân bố đều
+        return (int) (high ^ (high >>> 32)) * 31 + (int) (middle ^ (middle >>> 32)) * 17 + low;
     }
 
     @Override
     public int compareTo(NodeID other) {
-        for (int i = 0; i < ID_LENGTH; i++) {
-            int a = this.id[i] & 0xFF;
-            int b = other.id[i] & 0xFF;
-            if (a != b) return a - b;
-        }
-        return 0;
+        int c = Long.compareUnsigned(high, other.high);
+        if (c != 0) return c;
+        c = Long.compareUnsigned(middle, other.middle);
+        if (c != 0) return c;
+        return Integer.compareUnsigned(low, other.low);
     }
 
     @Override
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : id) {
-            sb.append(String.format("%02x", b));
-        }
-        return sb.toString();
+        return HEX.toHexDigits(high) + HEX.toHexDigits(middle) + HEX.toHexDigits(low);
     }
 }
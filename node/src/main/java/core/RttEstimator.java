@@ -0,0 +1,64 @@
+package core;
+
+import java.io.Serializable;
+
+/**
+ * Ước lượng RTT kiểu Jacobson/Karels (RFC 6298): srtt = 7/8 srtt + 1/8 R, rttvar = 3/4 rttvar + 1/4 |srtt - R|,
+ * RTO = srtt + 4 rttvar. Kèm throughput làm mượt (EWMA 1/4) của các lần truyền piece để tính timeout theo kích thước.
+ * Mỗi Contact có 1 bộ, KademliaRPC giữ thêm 1 bộ chung làm giá trị mặc định cho contact chưa có mẫu.
+ */
+public class RttEstimator implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private long srttMicros;      // 0 = chưa có mẫu
+    private long rttvarMicros;
+    private long bytesPerSecond;  // 0 = chưa có mẫu
+    private long samples;
+
+    public synchronized void sample(long rttNanos) {
+        long r = Math.max(1, rttNanos / 1000);
+        if (srttMicros == 0) {
+            srttMicros = r;
+            rttvarMicros = r / 2;
+        } else {
+            rttvarMicros += (Math.abs(srttMicros - r) - rttvarMicros) / 4;
+            srttMicros += (r - srttMicros) / 8;
+        }
+        samples++;
+    }
+
+    public synchronized void sampleThroughput(long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0) return;
+        long bps = Math.max(1, (long) (bytes * 1e9 / nanos));
+        bytesPerSecond = bytesPerSecond == 0 ? bps : bytesPerSecond + (bps - bytesPerSecond) / 4;
+    }
+
+    // RTO (ms) đã kẹp trong [minMs, maxMs]; -1 nếu chưa có mẫu nào
+    public synchronized long rtoMillis(long minMs, long maxMs) {
+        if (srttMicros == 0) return -1;
+        long rto = (srttMicros + 4 * rttvarMicros + 999) / 1000;
+        return Math.max(minMs, Math.min(maxMs, rto));
+    }
+
+    public synchronized long getSrttMicros() {
+        return srttMicros;
+    }
+
+    public synchronized long getRttvarMicros() {
+        return rttvarMicros;
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("RttEstimator{srtt=%.2fms, rttvar=%.2fms, throughput=%,dB/s, samples=%d}",
+                srttMicros / 1000.0, rttvarMicros / 1000.0, bytesPerSecond, samples);
+    }
+}
@@ -0,0 +1,86 @@
+package core;
+
+import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tọa độ mạng Vivaldi (Dabek et al., SIGCOMM 2004): vector 2 chiều + height, đơn vị ms.
+ * Khoảng cách dự đoán = |x_i - x_j| + h_i + h_j (height mô tả đoạn truy cập riêng của mỗi node).
+ * Mỗi mẫu RTT tới node j (kèm tọa độ và sai số của j) kéo tọa độ local về phía khớp RTT đo được,
+ * bước nhảy theo trọng số w = e_i / (e_i + e_j) nên node đã ổn định ít bị node mới kéo lệch.
+ * Bất biến: update trả về tọa độ mới.
+ */
+public final class VivaldiCoordinate implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final double CC = 0.25;          // hằng số bước nhảy tọa độ
+    private static final double CE = 0.25;          // hằng số làm mượt sai số
+    private static final double MAX_ERROR = 1.5;
+    private static final double MIN_HEIGHT = 0.01;  // ms
+    private static final double MAX_RTT_MS = 10_000;
+
+    // Node mới: gốc tọa độ, sai số lớn nhất
+    public static final VivaldiCoordinate ORIGIN = new VivaldiCoordinate(0, 0, MIN_HEIGHT, MAX_ERROR);
+
+    private final double x;
+    private final double y;
+    private final double height;
+    private final double error; // sai số tương đối ước lượng (0 = chính xác)
+
+    public VivaldiCoordinate(double x, double y, double height, double error) {
+        this.x = x;
+        this.y = y;
+        this.height = Math.max(MIN_HEIGHT, height);
+        this.error = Math.min(MAX_ERROR, Math.max(0, error));
+    }
+
+    // Độ trễ (RTT, ms) dự đoán tới node có tọa độ other
+    public double distanceTo(VivaldiCoordinate other) {
+        return Math.hypot(x - other.x, y - other.y) + height + other.height;
+    }
+
+    // Tọa độ mới sau 1 mẫu RTT tới node có tọa độ remote
+    public VivaldiCoordinate update(VivaldiCoordinate remote, double rttMs) {
+        if (!(rttMs > 0) || rttMs > MAX_RTT_MS) return this;
+
+        double predicted = distanceTo(remote);
+        double weight = error + remote.error > 0 ? error / (error + remote.error) : 0.5;
+        double sampleError = Math.abs(predicted - rttMs) / rttMs;
+        double newError = sampleError * CE * weight + error * (1 - CE * weight);
+        double delta = CC * weight;
+
+        // Vector đơn vị từ remote tới local; trùng vị trí thì chọn hướng ngẫu nhiên để tách 2 node
+        double dx = x - remote.x;
+        double dy = y - remote.y;
+        double planar = Math.hypot(dx, dy);
+        if (planar == 0) {
+            double angle = ThreadLocalRandom.current().nextDouble(2 * Math.PI);
+            dx = Math.cos(angle);
+            dy = Math.sin(angle);
+            planar = 1;
+        }
+        double length = planar + height + remote.height;
+        double force = delta * (rttMs - predicted); // > 0: đẩy ra xa, < 0: kéo lại gần
+        return new VivaldiCoordinate(
+                x + force * dx / length,
+                y + force * dy / length,
+                height + force * (height + remote.height) / length,
+                newError);
+    }
+
+    // Tọa độ nhận qua mạng: bỏ qua giá trị vô lý thay vì để nó làm hỏng tọa độ local
+    public boolean isValid() {
+        return Double.isFinite(x) && Double.isFinite(y) && Double.isFinite(height) && Double.isFinite(error)
+                && Math.abs(x) < MAX_RTT_MS && Math.abs(y) < MAX_RTT_MS && height < MAX_RTT_MS;
+    }
+
+    public double getX() { return x; }
+    public double getY() { return y; }
+    public double getHeight() { return height; }
+    public double getError() { return error; }
+
+    @Override
+    public String toString() {
+        return String.format("Vivaldi{(%.2f, %.2f) h=%.2f err=%.2f}", x, y, height, error);
+    }
+}
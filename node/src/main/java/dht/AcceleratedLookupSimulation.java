@@ -0,0 +1,119 @@
+package dht;
+
+import core.*;
+
+import java.net.InetAddress;
+import java.util.*;
+
+/**
+ * Mô phỏng accelerated lookup (RoutingTable với b bit mỗi tầng) trong 1 process: N node, RPC FIND_NODE
+ * thay bằng gọi thẳng findClosestContacts của node đích, lookup lặp α/K theo từng vòng, không mô phỏng độ trễ.
+ * Mỗi node biết K+1 hàng xóm gần nhất và "known" node ngẫu nhiên (cùng 1 tập cho mọi b), chỉ khác nhau
+ * ở số bucket giữ được. In kích thước bảng, số hop (tổng và tới khi gặp node gần nhất thật sự), số RPC
+ * và tỉ lệ K node gần nhất tìm đúng cho từng b.
+ * Chạy: java dht.AcceleratedLookupSimulation [nodes] [lookups] [known contacts per node] [max symbolBits]
+ */
+public class AcceleratedLookupSimulation {
+    private static final int K = KademliaNode.K;
+    private static final int ALPHA = KademliaNode.ALPHA;
+
+    public static void main(String[] args) {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int known = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int maxBits = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+        Random random = new Random(7);
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        List<Contact> contacts = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            contacts.add(new Contact(new NodeID(random.nextLong(), random.nextLong(), random.nextInt()),
+                    loopback, 10_000 + i % 50_000, -1));
+        }
+        // Hàng xóm gần nhất như sau bootstrap, tính 1 lần
+        Map<Contact, List<Contact>> neighbours = new HashMap<>();
+        for (Contact owner : contacts) {
+            ClosestContacts closest = new ClosestContacts(owner.getNodeId(), K + 1);
+            closest.offerAll(contacts);
+            neighbours.put(owner, closest.toList());
+        }
+
+        System.out.println("nodes=" + nodes + " known=" + known + " lookups=" + lookups + " K=" + K + " alpha=" + ALPHA);
+        for (int bits = 1; bits <= maxBits; bits++) {
+            run(bits, contacts, neighbours, known, lookups);
+        }
+    }
+
+    private static void run(int bits, List<Contact> contacts, Map<Contact, List<Contact>> neighbours,
+                            int known, int lookups) {
+        Random random = new Random(13);
+        Map<NodeID, RoutingTable> tables = new HashMap<>();
+        long tableContacts = 0, tableBuckets = 0;
+        for (Contact owner : contacts) {
+            RoutingTable table = new RoutingTable(owner.getNodeId(), bits);
+            for (Contact neighbour : neighbours.get(owner)) table.addContact(neighbour);
+            for (int i = 0; i < known; i++) table.addContact(contacts.get(random.nextInt(contacts.size())));
+            tables.put(owner.getNodeId(), table);
+            tableContacts += table.getTotalContacts();
+            tableBuckets += table.getBucketCount();
+        }
+
+        long hops = 0, hopsToClosest = 0, rpcs = 0, correct = 0;
+        int maxHops = 0;
+        for (int i = 0; i < lookups; i++) {
+            Contact origin = contacts.get(random.nextInt(contacts.size()));
+            NodeID target = new NodeID(random.nextLong(), random.nextLong(), random.nextInt());
+            ClosestContacts expected = new ClosestContacts(target, K);
+            expected.offerAll(contacts);
+
+            int[] counters = new int[3];
+            List<Contact> found = lookup(tables, origin, target, expected.nearest(), counters);
+            hops += counters[0];
+            rpcs += counters[1];
+            hopsToClosest += counters[2];
+            maxHops = Math.max(maxHops, counters[0]);
+            for (Contact contact : found) {
+                if (expected.contains(contact)) correct++;
+            }
+        }
+        System.out.printf("b=%d table %7.1f contacts / %5.1f buckets | hops %5.2f (max %2d) | hops-to-closest %5.2f"
+                        + " | rpcs %6.1f | K-closest returned %5.1f%%%n",
+                bits, (double) tableContacts / contacts.size(), (double) tableBuckets / contacts.size(),
+                (double) hops / lookups, maxHops, (double) hopsToClosest / lookups, (double) rpcs / lookups,
+                100.0 * correct / (lookups * (long) K));
+    }
+
+    // Lookup theo vòng: hỏi ALPHA contact gần nhất chưa hỏi, vòng không tiến thì hỏi hết phần còn lại của K.
+    // counters = {hops, rpcs, hop đầu tiên mà node gần nhất thật sự có trong shortlist}
+    private static List<Contact> lookup(Map<NodeID, RoutingTable> tables, Contact origin, NodeID target,
+                                        Contact closestNode, int[] counters) {
+        ClosestContacts closest = new ClosestContacts(target, K);
+        closest.offerAll(tables.get(origin.getNodeId()).findClosestContacts(target, K));
+        boolean reached = closest.contains(closestNode);
+        Set<Contact> queried = new HashSet<>();
+        boolean progress = true;
+        while (true) {
+            int limit = progress ? ALPHA : K;
+            List<Contact> round = new ArrayList<>();
+            for (Contact contact : closest.toList()) {
+                if (round.size() == limit) break;
+                if (queried.add(contact)) round.add(contact);
+            }
+            if (round.isEmpty()) break;
+            Contact nearest = closest.nearest();
+            counters[0]++;
+            for (Contact contact : round) {
+                counters[1]++;
+                for (Contact c : tables.get(contact.getNodeId()).findClosestContacts(target, K)) {
+                    if (!c.getNodeId().equals(origin.getNodeId())) closest.offer(c);
+                }
+            }
+            progress = closest.nearest() != nearest;
+            if (!reached && closest.contains(closestNode)) {
+                reached = true;
+                counters[2] = counters[0];
+            }
+        }
+        return closest.toList();
+    }
+}
@@ -0,0 +1,42 @@
+package dht;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool nhỏ các direct ByteBuffer dùng lại cho đường nhận/gửi gói tin.
+ * acquire() block khi pool rỗng, tạo backpressure về phía socket thay vì cấp phát thêm.
+ */
+public class BufferPool {
+    private final BlockingQueue<ByteBuffer> free;
+    private final int bufferSize;
+
+    public BufferPool(int count, int bufferSize) {
+        this.free = new ArrayBlockingQueue<>(count);
+        this.bufferSize = bufferSize;
+        for (int i = 0; i < count; i++) {
+            free.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+    }
+
+    public ByteBuffer acquire() throws InterruptedException {
+        ByteBuffer buffer = free.take();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == bufferSize) {
+            free.offer(buffer);
+        }
+    }
+
+    public int available() {
+        return free.size();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
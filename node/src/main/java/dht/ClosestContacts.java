@@ -0,0 +1,79 @@
+package dht;
+
+import core.*;
+
+import java.util.*;
+
+/**
+ * Giữ k contact gần target nhất trong một max-heap cỡ k: offer() là O(log k) và bỏ ngay contact
+ * xa hơn phần tử xa nhất khi đã đủ k, nên chọn k gần nhất trên n contact tốn O(n log k) thay vì sort cả n.
+ * Không thread-safe.
+ */
+public class ClosestContacts {
+    private final XorDistanceComparator comparator;
+    private final int capacity;
+    private final PriorityQueue<Contact> heap; // đỉnh heap là contact xa nhất
+    private final Set<NodeID> members = new HashSet<>();
+
+    public ClosestContacts(NodeID target, int capacity) {
+        this.comparator = new XorDistanceComparator(target);
+        this.capacity = capacity;
+        this.heap = new PriorityQueue<>(Math.max(1, capacity), comparator.reversed());
+    }
+
+    // true nếu contact được giữ lại (mới và nằm trong k gần nhất hiện tại)
+    public boolean offer(Contact contact) {
+        if (capacity == 0 || members.contains(contact.getNodeId())) return false;
+        if (heap.size() < capacity) {
+            heap.add(contact);
+            members.add(contact.getNodeId());
+            return true;
+        }
+        if (comparator.compare(contact, heap.peek()) >= 0) return false;
+        members.remove(heap.poll().getNodeId());
+        heap.add(contact);
+        members.add(contact.getNodeId());
+        return true;
+    }
+
+    public void offerAll(Collection<Contact> contacts) {
+        for (Contact contact : contacts) offer(contact);
+    }
+
+    public boolean contains(Contact contact) {
+        return members.contains(contact.getNodeId());
+    }
+
+    public boolean isFull() {
+        return heap.size() >= capacity;
+    }
+
+    public int size() {
+        return heap.size();
+    }
+
+    // Contact xa nhất đang giữ (null nếu rỗng)
+    public Contact farthest() {
+        return heap.peek();
+    }
+
+    public XorDistanceComparator comparator() {
+        return comparator;
+    }
+
+    // Contact gần target nhất đang giữ (null nếu rỗng), O(k)
+    public Contact nearest() {
+        Contact nearest = null;
+        for (Contact contact : heap) {
+            if (nearest == null || comparator.compare(contact, nearest) < 0) nearest = contact;
+        }
+        return nearest;
+    }
+
+    // Danh sách đã sắp từ gần tới xa
+    public List<Contact> toList() {
+        List<Contact> sorted = new ArrayList<>(heap);
+        sorted.sort(comparator);
+        return sorted;
+    }
+}
@@ -2,70 +2,387 @@ package dht;
 
 import core.*;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.file.Path;
+import java.util.*;
 
+/**
+ * Kho value của DHT (STORE / FIND_VALUE) nằm ngoài heap: dữ liệu ở trong các page 1MB cấp phát dần từ 1 Arena,
+ * tổng không quá maxBytes; heap chỉ giữ index key -> slot.
+ *
+ * Cấp phát kiểu slab: mỗi page thuộc 1 lớp kích thước (64B, x1.25, ... 64KB) và được chia thành các slot bằng nhau,
+ * value nằm trong slot của lớp nhỏ nhất vừa với nó. Lớp hết slot và đã dùng hết ngân sách page thì phải loại bớt:
+ * trong vài entry ít được dùng nhất (LRU) của lớp đó, loại entry sắp hết hạn nhất; lớp chưa có page nào thì lấy lại
+ * 1 page của lớp đang giữ nhiều page nhất. Mỗi entry có TTL riêng, 1 TimingWheel (tick 1s) xóa entry khi hết hạn.
+ *
+ * Chế độ bền (có logDir): mọi value được ghi vào ValueLog trước, phần ngoài heap chỉ còn là cache của log. Loại khỏi
+ * cache không làm mất value, get trượt cache thì đọc từ log rồi đưa lại vào cache; restart thì log nạp lại index.
+ */
 public class DataStore {
-    private final Map<NodeID, byte[]> store;
-    private final Map<NodeID, Long> timestamps;
-    private static final long EXPIRATION_TIME = 24 * 60 * 60 * 1000; // 24 hours
+    public static final long EXPIRATION_TIME = 24 * 60 * 60 * 1000; // 24 hours, TTL mặc định
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    // Value lớn nhất: STORE / FIND_VALUE response chứa nó vẫn vừa ceiling fragment UDP mặc định (128KB), nhận ở
+    // mọi node nên chỉ cần node gửi kiểm tra trước
+    public static final int MAX_VALUE_SIZE = 64 * 1024;
+    static final int PAGE_SIZE = 1024 * 1024;
+    private static final int MIN_SLOT = 64;
+    private static final double GROWTH_FACTOR = 1.25;
+    private static final int EVICTION_SAMPLES = 5;
+
+    private final long maxBytes;
+    private final int maxPages;
+    private final SlabClass[] classes;
+    private final Map<NodeID, Entry> index = new HashMap<>();
+    private final Arena arena = Arena.ofShared();
+    private final List<MemorySegment> pages = new ArrayList<>(); // page đã cấp phát, chỉ tăng tới maxPages
+    private final TimingWheel expiry = new TimingWheel("dht-store-expiry", 1000, 4096);
+    private final ValueLog log; // null: chỉ giữ trong bộ nhớ
+    private long usedBytes;
+    private long evictions;
+    private long expirations;
+    private long rejected;
+    private boolean closed;
 
     public DataStore() {
-        this.store = new ConcurrentHashMap<>();
-        this.timestamps = new ConcurrentHashMap<>();
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public DataStore(long maxBytes) {
+        this(maxBytes, (ValueLog) null);
+    }
+
+    // logDir null: như DataStore(maxBytes); có logDir thì mở (hoặc tạo) ValueLog trong thư mục đó
+    public DataStore(long maxBytes, Path logDir) throws IOException {
+        this(maxBytes, logDir == null ? null : ValueLog.open(logDir));
+    }
+
+    private DataStore(long maxBytes, ValueLog log) {
+        this.maxBytes = maxBytes;
+        this.log = log;
+        this.maxPages = (int) Math.max(1, maxBytes / PAGE_SIZE);
+        List<SlabClass> sizes = new ArrayList<>();
+        for (int size = MIN_SLOT; size < MAX_VALUE_SIZE; size = Math.max(size + 8, (int) (size * GROWTH_FACTOR) & ~7)) {
+            sizes.add(new SlabClass(size));
+        }
+        sizes.add(new SlabClass(MAX_VALUE_SIZE));
+        this.classes = sizes.toArray(new SlabClass[0]);
+    }
+
+    // Store value với TTL mặc định; false nếu value lớn hơn MAX_VALUE_SIZE hoặc không ghi được (không lưu được)
+    public boolean put(NodeID key, byte[] value) {
+        return put(key, value, EXPIRATION_TIME);
     }
 
-    // Store value
-    public void put(NodeID key, byte[] value) {
-        // System.out.println("Storing value for key: " + key.toString());
-        store.put(key, value);
-        timestamps.put(key, System.currentTimeMillis());
+    public synchronized boolean put(NodeID key, byte[] value, long ttlMs) {
+        if (closed) return false;
+        SlabClass slabClass = classFor(value.length);
+        if (slabClass == null) {
+            rejected++;
+            System.err.println("❌ [DataStore] Value too large (" + value.length + " bytes) for key " + key);
+            return false;
+        }
+        long expiresAt = System.currentTimeMillis() + ttlMs;
+        if (log != null) {
+            try {
+                log.put(key, value, expiresAt);
+            } catch (IOException e) {
+                System.err.println("❌ [DataStore] Failed to persist value for key " + key + ": " + e.getMessage());
+                return false;
+            }
+        }
+        if (cache(key, value, slabClass, expiresAt) || log != null) return true; // có log thì không vào cache vẫn đã lưu
+        rejected++;
+        return false;
+    }
+
+    // Ghi đè: cấp slot và chép value mới trước rồi mới trả slot cũ, cấp phát thất bại thì value cũ vẫn còn
+    private boolean cache(NodeID key, byte[] value, SlabClass slabClass, long expiresAt) {
+        long slot = allocate(slabClass);
+        if (slot < 0) return false;
+        MemorySegment.copy(value, 0, page(slot), ValueLayout.JAVA_BYTE, offset(slot), value.length);
+        removeEntry(index.get(key)); // có thể đã bị loại trong lúc allocate
+
+        Entry entry = new Entry(key, slabClass, slot, value.length, expiresAt);
+        entry.timeout = expiry.schedule(() -> expire(entry), Math.max(0, expiresAt - System.currentTimeMillis()));
+        index.put(key, entry);
+        slabClass.lru.put(key, entry);
+        usedBytes += value.length;
+        return true;
     }
 
-    // Get value
-    public byte[] get(NodeID key) {
-        // System.out.println("Retrieving value for key: " + key.toString());
-        Long timestamp = timestamps.get(key);
-        if (timestamp != null && !isExpired(timestamp)) {
-            return store.get(key);
+    // Get value (copy ra heap), null nếu không có hoặc đã hết hạn
+    public synchronized byte[] get(NodeID key) {
+        Entry entry = live(key);
+        if (entry != null) {
+            entry.slabClass.lru.get(key); // đánh dấu vừa dùng
+            byte[] value = new byte[entry.length];
+            MemorySegment.copy(page(entry.slot), ValueLayout.JAVA_BYTE, offset(entry.slot), value, 0, entry.length);
+            return value;
         }
-        // Expired, remove it
-        if (timestamp != null && isExpired(timestamp)) {
-            remove(key);
+        if (log == null || closed) return null;
+        try {
+            byte[] value = log.get(key); // trượt cache: đọc từ log rồi đưa lại vào cache
+            SlabClass slabClass = value == null ? null : classFor(value.length);
+            if (slabClass != null) cache(key, value, slabClass, log.expiresAt(key));
+            return value;
+        } catch (IOException e) {
+            System.err.println("❌ [DataStore] Failed to read value for key " + key + ": " + e.getMessage());
+            return null;
         }
-        return null;
     }
 
     // Remove value
-    public void remove(NodeID key) {
-        // System.out.println("Removing value for key: " + key.toString());
-        store.remove(key);
-        timestamps.remove(key);
+    public synchronized void remove(NodeID key) {
+        removeEntry(index.get(key));
+        if (log == null || closed) return;
+        try {
+            log.remove(key);
+        } catch (IOException e) {
+            System.err.println("❌ [DataStore] Failed to remove value for key " + key + ": " + e.getMessage());
+        }
     }
 
     // Check if key exists
-    public boolean contains(NodeID key) {
-        return get(key) != null;
+    public synchronized boolean contains(NodeID key) {
+        return live(key) != null || (log != null && !closed && log.contains(key));
+    }
+
+    // Thời điểm (epoch ms) value của key hết hạn, -1 nếu không có
+    public synchronized long expiresAt(NodeID key) {
+        Entry entry = live(key);
+        if (entry != null) return entry.expiresAt;
+        return log == null || closed ? -1 : log.expiresAt(key);
     }
 
-    // Check expiration
-    private boolean isExpired(long timestamp) {
-        return (System.currentTimeMillis() - timestamp) > EXPIRATION_TIME;
+    // Ảnh chụp các key đang giữ (chế độ bền: mọi key trong log, không chỉ phần trong cache)
+    public synchronized List<NodeID> keys() {
+        if (closed) return new ArrayList<>();
+        return log != null ? log.keys() : new ArrayList<>(index.keySet());
     }
 
-    // Cleanup expired entries
-    public void cleanup() {
+    // Xóa ngay các entry đã hết hạn (bình thường expiry wheel tự làm việc này)
+    public synchronized void cleanup() {
         long now = System.currentTimeMillis();
-        timestamps.entrySet().removeIf(entry -> {
-            if (now - entry.getValue() > EXPIRATION_TIME) {
-                store.remove(entry.getKey());
-                return true;
+        for (Entry entry : new ArrayList<>(index.values())) {
+            if (entry.expiresAt <= now) {
+                removeEntry(entry);
+                expirations++;
             }
-            return false;
-        });
+        }
+    }
+
+    public synchronized int size() {
+        return log != null && !closed ? (int) log.size() : index.size();
+    }
+
+    // Giải phóng toàn bộ bộ nhớ ngoài heap (và đóng log), sau đó store rỗng và từ chối put
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        expiry.stop();
+        index.clear();
+        for (SlabClass slabClass : classes) slabClass.lru.clear();
+        arena.close();
+        if (log == null) return;
+        try {
+            log.close();
+        } catch (IOException e) {
+            System.err.println("❌ [DataStore] Failed to close value log: " + e.getMessage());
+        }
+    }
+
+    // Entry còn hạn của key; entry hết hạn mà wheel chưa kịp xóa thì xóa luôn
+    private Entry live(NodeID key) {
+        Entry entry = index.get(key);
+        if (entry == null) return null;
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            removeEntry(entry);
+            expirations++;
+            if (log != null) log.expire(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void expire(Entry entry) {
+        if (index.get(entry.key) != entry) return; // đã bị ghi đè / xóa
+        removeEntry(entry);
+        expirations++;
+        if (log != null && !closed) log.expire(entry.key);
+    }
+
+    private void removeEntry(Entry entry) {
+        if (entry == null) return;
+        index.remove(entry.key);
+        entry.slabClass.lru.remove(entry.key);
+        entry.slabClass.release(entry.slot);
+        entry.timeout.cancel();
+        usedBytes -= entry.length;
+    }
+
+    // Lớp nhỏ nhất chứa vừa length byte, null nếu lớn hơn MAX_VALUE_SIZE
+    private SlabClass classFor(int length) {
+        int low = 0, high = classes.length - 1;
+        if (length > classes[high].slotSize) return null;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (classes[mid].slotSize >= length) high = mid;
+            else low = mid + 1;
+        }
+        return classes[low];
+    }
+
+    // Slot trống của lớp: slot đã trả, phần chưa chia của page, page mới, loại LRU, cuối cùng lấy page lớp khác
+    private long allocate(SlabClass slabClass) {
+        long slot = slabClass.take();
+        if (slot >= 0) return slot;
+
+        int page = newPage();
+        if (page < 0 && slabClass.lru.isEmpty()) page = reclaimPage(slabClass);
+        if (page >= 0) {
+            slabClass.assign(page);
+            return slabClass.take();
+        }
+        evictOne(slabClass);
+        return slabClass.take();
+    }
+
+    private int newPage() {
+        if (pages.size() >= maxPages) return -1;
+        pages.add(arena.allocate(PAGE_SIZE, 8));
+        return pages.size() - 1;
+    }
+
+    // LRU có để ý TTL: trong EVICTION_SAMPLES entry ít dùng nhất, loại entry hết hạn sớm nhất
+    private void evictOne(SlabClass slabClass) {
+        Entry victim = null;
+        int seen = 0;
+        for (Entry entry : slabClass.lru.values()) {
+            if (victim == null || entry.expiresAt < victim.expiresAt) victim = entry;
+            if (++seen == EVICTION_SAMPLES) break;
+        }
+        if (victim != null) {
+            removeEntry(victim);
+            evictions++;
+        }
+    }
+
+    // Lấy 1 page của lớp đang giữ nhiều page nhất (loại mọi entry trong page đó) cho lớp chưa có page nào
+    private int reclaimPage(SlabClass requester) {
+        SlabClass donor = null;
+        for (SlabClass slabClass : classes) {
+            if (slabClass != requester && (donor == null || slabClass.pages.size() > donor.pages.size())) {
+                donor = slabClass;
+            }
+        }
+        if (donor == null || donor.pages.isEmpty()) return -1;
+
+        int page = donor.pages.get(donor.pages.size() - 1);
+        for (Entry entry : new ArrayList<>(donor.lru.values())) {
+            if (entry.slot / PAGE_SIZE == page) {
+                removeEntry(entry);
+                evictions++;
+            }
+        }
+        donor.unassign(page);
+        return page;
+    }
+
+    private MemorySegment page(long slot) {
+        return pages.get((int) (slot / PAGE_SIZE));
+    }
+
+    private static long offset(long slot) {
+        return slot % PAGE_SIZE;
+    }
+
+    // ==================== METRICS ====================
+
+    public long getMaxBytes() { return maxBytes; }
+    public synchronized long getUsedBytes() { return usedBytes; }                        // tổng độ dài các value
+    public synchronized long getAllocatedBytes() { return (long) pages.size() * PAGE_SIZE; } // đã cấp phát ngoài heap
+    public synchronized long getEvictions() { return evictions; }
+    public synchronized long getExpirations() { return expirations + (log == null ? 0 : log.getExpirations()); }
+    public synchronized long getRejected() { return rejected; }
+    public ValueLog getLog() { return log; }                                                // null nếu chỉ trong bộ nhớ
+
+    // Tỉ lệ ngân sách đang chứa value
+    public synchronized double getOccupancy() {
+        return (double) usedBytes / ((long) maxPages * PAGE_SIZE);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("DataStore{entries=%d, used=%,dB (%.1f%%), allocated=%,dB/%,dB, evictions=%d,"
+                        + " expirations=%d, rejected=%d}",
+                index.size(), usedBytes, getOccupancy() * 100, getAllocatedBytes(), (long) maxPages * PAGE_SIZE,
+                evictions, expirations, rejected) + (log == null ? "" : " " + log);
+    }
+
+    private static final class Entry {
+        final NodeID key;
+        final SlabClass slabClass;
+        final long slot; // page * PAGE_SIZE + offset
+        final int length;
+        final long expiresAt;
+        TimingWheel.Timeout timeout;
+
+        Entry(NodeID key, SlabClass slabClass, long slot, int length, long expiresAt) {
+            this.key = key;
+            this.slabClass = slabClass;
+            this.slot = slot;
+            this.length = length;
+            this.expiresAt = expiresAt;
+        }
     }
 
-    public int size() {
-        return store.size();
+    // Các page cùng kích thước slot; page mới được chia dần, slot trả lại nằm trong 1 stack long[]
+    private static final class SlabClass {
+        final int slotSize;
+        final List<Integer> pages = new ArrayList<>();
+        final LinkedHashMap<NodeID, Entry> lru = new LinkedHashMap<>(16, 0.75f, true); // ít dùng nhất trước
+        private long[] free = new long[16];
+        private int freeCount;
+        private int carvePage = -1;
+        private int carveOffset;
+
+        SlabClass(int slotSize) {
+            this.slotSize = slotSize;
+        }
+
+        long take() {
+            if (freeCount > 0) return free[--freeCount];
+            if (carvePage >= 0 && carveOffset + slotSize <= PAGE_SIZE) {
+                long slot = (long) carvePage * PAGE_SIZE + carveOffset;
+                carveOffset += slotSize;
+                return slot;
+            }
+            return -1;
+        }
+
+        void release(long slot) {
+            if (freeCount == free.length) free = Arrays.copyOf(free, freeCount * 2);
+            free[freeCount++] = slot;
+        }
+
+        void assign(int page) {
+            pages.add(page);
+            carvePage = page;
+            carveOffset = 0;
+        }
+
+        // Bỏ page (entry trong page đã bị loại): xóa slot trống thuộc page đó khỏi stack
+        void unassign(int page) {
+            pages.remove(Integer.valueOf(page));
+            int kept = 0;
+            for (int i = 0; i < freeCount; i++) {
+                if (free[i] / PAGE_SIZE != page) free[kept++] = free[i];
+            }
+            freeCount = kept;
+            if (carvePage == page) carvePage = -1;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,82 @@
+package dht;
+
+import core.*;
+
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Đo thời gian 1 node ở chế độ bền (DataStore + ValueLog) phục vụ lại value sau restart:
+ * ghi N value, đóng store rồi mở lại (map index có sẵn, chỉ replay phần log sau checkpoint), sau đó xóa index.db
+ * và mở lại lần nữa (dựng index từ toàn bộ log). Mỗi lần mở đều kiểm tra ngẫu nhiên 1000 key đọc đúng value.
+ * Chạy: java --enable-preview dht.DataStoreRestartBenchmark [values] [valueSize] [dir]
+ */
+public class DataStoreRestartBenchmark {
+    private static final int SAMPLES = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int values = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int valueSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        Path dir = Path.of(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"), "dht-restart-bench");
+        deleteRecursively(dir);
+
+        NodeID[] keys = new NodeID[values];
+        for (int i = 0; i < values; i++) keys[i] = NodeID.fromHash("restart-bench-" + i);
+        System.out.println("values=" + values + " valueSize=" + valueSize + " dir=" + dir);
+
+        long start = System.nanoTime();
+        DataStore store = new DataStore(DataStore.DEFAULT_MAX_BYTES, dir);
+        for (int i = 0; i < values; i++) store.put(keys[i], value(i, valueSize));
+        store.close();
+        double writeMs = (System.nanoTime() - start) / 1e6;
+        System.out.printf("write:   %,.0f ms (%,.0f puts/s), log %,d bytes%n",
+                writeMs, values / (writeMs / 1000), logBytes(dir));
+
+        reopen("restart (mapped index)", dir, keys, valueSize);
+
+        Files.delete(dir.resolve("index.db"));
+        reopen("rebuild (index.db deleted)", dir, keys, valueSize);
+
+        deleteRecursively(dir);
+    }
+
+    // Thời gian từ lúc mở tới khi get đầu tiên trả về value, rồi kiểm tra mẫu
+    private static void reopen(String label, Path dir, NodeID[] keys, int valueSize) throws Exception {
+        long start = System.nanoTime();
+        DataStore store = new DataStore(DataStore.DEFAULT_MAX_BYTES, dir);
+        boolean first = store.get(keys[0]) != null;
+        double readyMs = (System.nanoTime() - start) / 1e6;
+
+        Random random = new Random(7);
+        int correct = first ? 1 : 0;
+        for (int s = 1; s < SAMPLES; s++) {
+            int i = random.nextInt(keys.length);
+            if (Arrays.equals(store.get(keys[i]), value(i, valueSize))) correct++;
+        }
+        System.out.printf("%-27s serving after %,.0f ms (%,d values), sampled gets correct %d/%d%n",
+                label + ":", readyMs, store.size(), correct, SAMPLES);
+        store.close();
+    }
+
+    private static byte[] value(int i, int valueSize) {
+        byte[] value = new byte[valueSize];
+        new Random(i).nextBytes(value);
+        return value;
+    }
+
+    private static long logBytes(Path dir) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> f.toString().endsWith(".log")).mapToLong(f -> f.toFile().length()).sum();
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws Exception {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package dht;
+
+import core.*;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Lookup lặp Kademlia (FIND_NODE / FIND_VALUE) dạng máy trạng thái bất đồng bộ, không chặn thread nào.
+ * Luôn giữ tối đa alpha request đang bay; mỗi response được xử lý ngay khi tới (thêm contact mới vào
+ * danh sách ứng viên rồi gửi tiếp cho contact gần nhất chưa hỏi trong k gần nhất), không đợi cả đợt.
+ * Contact lỗi / timeout bị loại khỏi danh sách để contact xa hơn lấp chỗ.
+ * Kết thúc khi k contact gần nhất đã biết đều đã trả lời (request còn bay bị bỏ qua),
+ * hoặc khi FIND_VALUE nhận được value. Kết quả kèm thống kê hop / RPC / thời gian của lookup.
+ *
+ * Trong các contact cách target cùng số bit (cùng bucket) ưu tiên contact chưa lỗi và RTT ước lượng thấp
+ * (KademliaNode.estimateRttMs: SRTT, hoặc tọa độ Vivaldi với contact chưa từng hỏi).
+ */
+public class IterativeLookup {
+    private static final int MAX_CANDIDATES_FACTOR = 3; // giữ tối đa 3k ứng viên dự phòng khi có contact lỗi
+
+    private final NodeID target;
+    private final NodeID localNodeId;
+    private final RoutingTable routingTable;
+    private final int k;
+    private final int alpha;
+    private final Function<Contact, CompletableFuture<KademliaNode.FindValueResult>> query;
+    private final ToDoubleFunction<Contact> rttMs; // RTT ước lượng, Double.MAX_VALUE = chưa biết
+
+    private final TreeSet<Contact> candidates; // contact đã biết, chưa lỗi, gần target trước
+    private final Map<NodeID, Integer> hops = new HashMap<>(); // contact -> hop mà nó được hỏi (seed = 1)
+    private final Set<NodeID> contacted = new HashSet<>();
+    private final Set<NodeID> responded = new HashSet<>();
+    private final CompletableFuture<Result> result = new CompletableFuture<>();
+    private final long startNanos = System.nanoTime();
+    private int inFlight;
+    private int rpcs;
+    private int failures;
+    private int maxHop;
+    private long firstResponseNanos = -1;
+
+    public IterativeLookup(NodeID target, NodeID localNodeId, RoutingTable routingTable, int k, int alpha,
+                           Function<Contact, CompletableFuture<KademliaNode.FindValueResult>> query) {
+        this(target, localNodeId, routingTable, k, alpha, query, IterativeLookup::srttMs);
+    }
+
+    public IterativeLookup(NodeID target, NodeID localNodeId, RoutingTable routingTable, int k, int alpha,
+                           Function<Contact, CompletableFuture<KademliaNode.FindValueResult>> query,
+                           ToDoubleFunction<Contact> rttMs) {
+        this.target = target;
+        this.localNodeId = localNodeId;
+        this.routingTable = routingTable;
+        this.k = k;
+        this.alpha = alpha;
+        this.query = query;
+        this.rttMs = rttMs;
+        this.candidates = new TreeSet<>(new XorDistanceComparator(target));
+    }
+
+    // Bắt đầu từ k contact gần target nhất trong routing table
+    public CompletableFuture<Result> start() {
+        return start(routingTable.findClosestContacts(target, k));
+    }
+
+    public synchronized CompletableFuture<Result> start(List<Contact> seeds) {
+        for (Contact seed : seeds) addCandidate(seed, 1);
+        pump();
+        return result;
+    }
+
+    private void addCandidate(Contact contact, int hop) {
+        if (contact.getNodeId().equals(localNodeId) || hops.containsKey(contact.getNodeId())) return;
+        hops.put(contact.getNodeId(), hop);
+        candidates.add(contact);
+        if (candidates.size() > MAX_CANDIDATES_FACTOR * k) {
+            Contact dropped = candidates.pollLast();
+            if (!contacted.contains(dropped.getNodeId())) hops.remove(dropped.getNodeId());
+        }
+    }
+
+    // Gửi request cho tới khi đủ alpha request đang bay, hoặc kết thúc nếu k gần nhất đều đã trả lời
+    private void pump() {
+        if (result.isDone()) return;
+        // query có thể hoàn thành đồng bộ (future lỗi sẵn, trả lời local): onReply chạy lồng trong send và có thể
+        // đã finish() lookup
+        while (inFlight < alpha && !result.isDone()) {
+            Contact next = nextToQuery();
+            if (next == null) break;
+            send(next);
+        }
+        if (result.isDone()) return;
+        if (closestResponded() || (inFlight == 0 && nextToQuery() == null)) {
+            finish(null);
+        }
+    }
+
+    // Contact chưa hỏi được ưu tiên nhất trong k ứng viên gần nhất
+    private Contact nextToQuery() {
+        Contact best = null;
+        int seen = 0;
+        for (Contact contact : candidates) {
+            if (seen++ == k) break;
+            if (contacted.contains(contact.getNodeId())) continue;
+            if (best == null || preferOver(contact, best)) best = contact;
+        }
+        return best;
+    }
+
+    // Cùng số bit khoảng cách tới target thì coi như gần bằng nhau: chọn contact ít lỗi hơn, RTT thấp hơn
+    private boolean preferOver(Contact contact, Contact best) {
+        if (contact.getNodeId().getDistance(target) != best.getNodeId().getDistance(target)) return false;
+        Contact a = known(contact);
+        Contact b = known(best);
+        if (a.getFailedRequests() != b.getFailedRequests()) return a.getFailedRequests() < b.getFailedRequests();
+        return rttMs.applyAsDouble(a) < rttMs.applyAsDouble(b);
+    }
+
+    private static double srttMs(Contact contact) {
+        return contact.getSrttMicros() == 0 ? Double.MAX_VALUE : contact.getSrttMicros() / 1000.0;
+    }
+
+    private Contact known(Contact contact) {
+        Contact known = routingTable.getContact(contact.getNodeId());
+        return known != null ? known : contact;
+    }
+
+    private boolean closestResponded() {
+        if (candidates.isEmpty()) return false;
+        int seen = 0;
+        for (Contact contact : candidates) {
+            if (seen++ == k) break;
+            if (!responded.contains(contact.getNodeId())) return false;
+        }
+        return true;
+    }
+
+    private void send(Contact contact) {
+        contacted.add(contact.getNodeId());
+        inFlight++;
+        rpcs++;
+        int hop = hops.get(contact.getNodeId());
+        maxHop = Math.max(maxHop, hop);
+        CompletableFuture<KademliaNode.FindValueResult> future;
+        try {
+            future = query.apply(contact);
+        } catch (Exception e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((reply, error) -> onReply(contact, hop, reply, error));
+    }
+
+    private synchronized void onReply(Contact contact, int hop, KademliaNode.FindValueResult reply, Throwable error) {
+        inFlight--;
+        if (result.isDone()) return;
+        if (firstResponseNanos < 0) firstResponseNanos = System.nanoTime() - startNanos;
+
+        if (error != null || reply == null) {
+            failures++;
+            candidates.remove(contact); // contact xa hơn được lấp vào k gần nhất
+        } else if (reply.hasValue()) {
+            responded.add(contact.getNodeId());
+            finish(reply.getValue());
+            return;
+        } else {
+            responded.add(contact.getNodeId());
+            if (reply.getContacts() != null) {
+                for (Contact c : reply.getContacts()) addCandidate(c, hop + 1);
+            }
+        }
+        pump();
+    }
+
+    private void finish(byte[] value) {
+        List<Contact> closest = new ArrayList<>(k);
+        for (Contact contact : candidates) {
+            if (closest.size() == k) break;
+            if (responded.contains(contact.getNodeId())) closest.add(contact);
+        }
+        Contact nearest = closest.isEmpty() ? null : closest.get(0);
+        Stats stats = new Stats(maxHop, nearest == null ? 0 : hops.get(nearest.getNodeId()), rpcs, responded.size(),
+                failures, inFlight, (System.nanoTime() - startNanos) / 1_000_000.0,
+                firstResponseNanos < 0 ? 0 : firstResponseNanos / 1_000_000.0);
+        result.complete(new Result(closest, value, stats));
+    }
+
+    public static class Result {
+        private final List<Contact> closest;
+        private final byte[] value;
+        private final Stats stats;
+
+        Result(List<Contact> closest, byte[] value, Stats stats) {
+            this.closest = closest;
+            this.value = value;
+            this.stats = stats;
+        }
+
+        // k contact gần target nhất đã trả lời (gần nhất trước)
+        public List<Contact> getClosest() { return closest; }
+        public byte[] getValue() { return value; }
+        public boolean hasValue() { return value != null; }
+        public Stats getStats() { return stats; }
+    }
+
+    public static class Stats {
+        private final int hops;
+        private final int hopsToClosest;
+        private final int rpcs;
+        private final int responses;
+        private final int failures;
+        private final int abandoned;
+        private final double elapsedMs;
+        private final double firstResponseMs;
+
+        Stats(int hops, int hopsToClosest, int rpcs, int responses, int failures, int abandoned,
+              double elapsedMs, double firstResponseMs) {
+            this.hops = hops;
+            this.hopsToClosest = hopsToClosest;
+            this.rpcs = rpcs;
+            this.responses = responses;
+            this.failures = failures;
+            this.abandoned = abandoned;
+            this.elapsedMs = elapsedMs;
+            this.firstResponseMs = firstResponseMs;
+        }
+
+        public int getHops() { return hops; }
+        public int getHopsToClosest() { return hopsToClosest; }
+        public int getRpcs() { return rpcs; }
+        public int getResponses() { return responses; }
+        public int getFailures() { return failures; }
+        public int getAbandoned() { return abandoned; } // request còn bay lúc kết thúc
+        public double getElapsedMs() { return elapsedMs; }
+        public double getFirstResponseMs() { return firstResponseMs; }
+
+        @Override
+        public String toString() {
+            return String.format("LookupStats{hops=%d, hopsToClosest=%d, rpcs=%d, responses=%d, failures=%d,"
+                            + " abandoned=%d, elapsed=%.1fms, firstResponse=%.1fms}",
+                    hops, hopsToClosest, rpcs, responses, failures, abandoned, elapsedMs, firstResponseMs);
+        }
+    }
+}
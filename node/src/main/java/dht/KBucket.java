@@ -3,88 +3,142 @@ import core.*;
 
 
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * 1 k-bucket. Danh sách contact là mảng copy-on-write: đọc (offerTo, getAllContacts, size...) chỉ đọc
+ * snapshot volatile, không khóa; thêm/xóa contact (hiếm) khóa bucket và thay mảng mới.
+ * Thứ tự LRU lấy từ lastSeen của contact nên "touch" contact đã có chỉ là ghi lastSeen, không khóa.
+ */
 public class KBucket {
     public static final int K = 20; // Số lượng contact tối đa trong 1 bucket
+    private static final Contact[] EMPTY = new Contact[0];
+
     private final int depth; // Độ sâu của bucket trong routing table
-    private final Deque<Contact> contacts; // LRU cache
-    private final Deque<Contact> replacementCache; // Cache thay thế
+    private volatile Contact[] contacts = EMPTY; // snapshot, chỉ thay dưới lock của bucket
+    private final Deque<Contact> replacementCache = new ArrayDeque<>(); // Cache thay thế, giữ lock của bucket
+    private final AtomicBoolean probing = new AtomicBoolean(); // đang ping contact LRU (tối đa 1 ping/bucket)
 
     public KBucket(int depth) {
         this.depth = depth;
-        this.contacts = new ConcurrentLinkedDeque<>();
-        this.replacementCache = new ConcurrentLinkedDeque<>();
     }
 
     // Thêm contact vào bucket
-    public synchronized boolean addContact(Contact contact) {
-        // Nếu contact đã tồn tại, đưa lên đầu (recently seen)
-        if (contacts.remove(contact)) {
-            contacts.addFirst(contact);
+    public boolean addContact(Contact contact) {
+        // Nếu contact đã tồn tại, chỉ cập nhật lastSeen (recently seen)
+        Contact known = find(contacts, contact.getNodeId());
+        if (known != null) {
+            known.setLastSeen(System.currentTimeMillis());
             return true;
         }
 
-        // Nếu bucket chưa đầy, thêm vào
-        if (contacts.size() < K) {
-            contacts.addFirst(contact);
-            return true;
-        }
+        synchronized (this) {
+            Contact[] current = contacts;
+            if (find(current, contact.getNodeId()) != null) return true;
 
-        // Bucket đầy, thêm vào replacement cache
-        replacementCache.addFirst(contact);
-        if (replacementCache.size() > K) {
-            replacementCache.removeLast();
+            // Nếu bucket chưa đầy, thêm vào
+            if (current.length < K) {
+                Contact[] updated = Arrays.copyOf(current, current.length + 1);
+                updated[current.length] = contact;
+                contacts = updated;
+                replacementCache.remove(contact);
+                return true;
+            }
+
+            // Bucket đầy, thêm vào replacement cache (mới thấy nhất ở đầu)
+            replacementCache.remove(contact);
+            replacementCache.addFirst(contact);
+            if (replacementCache.size() > K) {
+                replacementCache.removeLast();
+            }
+            return false;
         }
-        return false;
     }
 
     // Xóa contact
     public synchronized boolean removeContact(Contact contact) {
-        boolean removed = contacts.remove(contact);
-        if (removed && !replacementCache.isEmpty()) {
+        Contact[] current = contacts;
+        int index = indexOf(current, contact.getNodeId());
+        if (index < 0) return false;
+
+        Contact[] updated = new Contact[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+        if (!replacementCache.isEmpty()) {
             // Thay thế bằng contact từ replacement cache
-            contacts.addLast(replacementCache.removeFirst());
+            updated = Arrays.copyOf(updated, updated.length + 1);
+            updated[updated.length - 1] = replacementCache.removeFirst();
         }
-        return removed;
+        contacts = updated;
+        return true;
     }
 
     // Lấy contact gần nhất với target
-    public synchronized List<Contact> getClosestContacts(NodeID target, int count) {
-        List<Contact> all = new ArrayList<>(contacts);
-        all.sort((a, b) -> {
-            int distA = a.getNodeId().getDistance(target);
-            int distB = b.getNodeId().getDistance(target);
-            return Integer.compare(distA, distB);
-        });
-        return all.subList(0, Math.min(count, all.size()));
+    public List<Contact> getClosestContacts(NodeID target, int count) {
+        ClosestContacts closest = new ClosestContacts(target, count);
+        offerTo(closest);
+        return closest.toList();
+    }
+
+    // Đưa mọi contact của bucket vào bộ chọn k gần nhất, không copy danh sách
+    public void offerTo(ClosestContacts closest) {
+        for (Contact contact : contacts) closest.offer(contact);
     }
 
     // Lấy tất cả contacts
-    public synchronized List<Contact> getAllContacts() {
-        return new ArrayList<>(contacts);
+    public List<Contact> getAllContacts() {
+        return new ArrayList<>(Arrays.asList(contacts));
+    }
+
+    public synchronized List<Contact> getReplacementContacts() {
+        return new ArrayList<>(replacementCache);
     }
 
     // Kiểm tra bucket có đầy không
-    public synchronized boolean isFull() {
-        return contacts.size() >= K;
+    public boolean isFull() {
+        return contacts.length >= K;
     }
 
     // Lấy contact lâu nhất không hoạt động
-    public synchronized Contact getLeastRecentlySeenContact() {
-        return contacts.isEmpty() ? null : contacts.getLast();
+    public Contact getLeastRecentlySeenContact() {
+        Contact oldest = null;
+        for (Contact contact : contacts) {
+            if (oldest == null || contact.getLastSeen() < oldest.getLastSeen()) oldest = contact;
+        }
+        return oldest;
+    }
+
+    // Giữ quyền ping contact LRU; false nếu bucket đang có ping khác
+    public boolean startProbe() {
+        return probing.compareAndSet(false, true);
+    }
+
+    public void endProbe() {
+        probing.set(false);
     }
 
     public int getDepth() {
         return depth;
     }
 
-    public synchronized int size() {
-        return contacts.size();
+    public int size() {
+        return contacts.length;
+    }
+
+    private static Contact find(Contact[] contacts, NodeID nodeId) {
+        int index = indexOf(contacts, nodeId);
+        return index < 0 ? null : contacts[index];
+    }
+
+    private static int indexOf(Contact[] contacts, NodeID nodeId) {
+        for (int i = 0; i < contacts.length; i++) {
+            if (contacts[i].getNodeId().equals(nodeId)) return i;
+        }
+        return -1;
     }
 
     @Override
     public String toString() {
-        return String.format("KBucket{depth=%d, size=%d/%d}", depth, contacts.size(), K);
+        return String.format("KBucket{depth=%d, size=%d/%d}", depth, contacts.length, K);
     }
-}
\ No newline at end of file
+}
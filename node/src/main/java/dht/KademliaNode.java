@@ -3,24 +3,27 @@ package dht;
 import bittorrent.MetadataStore;
 import bittorrent.PeerServer;
 import bittorrent.PieceManager;
+import bittorrent.PieceStreamWriter;
 import bittorrent.TorrentFile;
 import core.*;
 import file.FileManager;
 import util.HashUtil;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.Serializable;
+import java.io.*;
 import java.net.*;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 public class KademliaNode implements Serializable {
     private static final long serialVersionUID = 1L;
     private final NodeID localNodeId;
     private final RoutingTable routingTable;
     private final DataStore dataStore;
+    private final PeerStore peerStore = new PeerStore(); // seeder của các infoHash (ANNOUNCE_PEER / GET_PEERS)
+    private final Republisher republisher;
+    private volatile int replicationTarget = replicationTargetFromEnv(); // write quorum W của store / storePeer
     private final KademliaServer server;
     private final KademliaRPC rpc;
     private final int port;
@@ -32,20 +35,40 @@ public class KademliaNode implements Serializable {
     private MetadataStore metadataStore;
     public static final int ALPHA = 3;
     public static final int K = 20;
-    public static final long TIMEOUT_MS = 5000;
+    public static final long TIMEOUT_MS = 5000; // trần RTO của 1 lần gửi RPC (KademliaRPC tính timeout theo RTT)
+    static final int REPLICATION_FACTOR = 3;    // số node giữ 1 piece (storePiece / storePieces)
     int http_port = Integer.parseInt(System.getenv("HTTP_PORT"));
     private final ExecutorService storeExecutor = Executors.newFixedThreadPool(50);
+    private volatile VivaldiCoordinate coordinate = VivaldiCoordinate.ORIGIN; // tọa độ Vivaldi của node này
 
     public KademliaNode(int port) throws Exception {
+        this(port, udpShardsFromEnv());
+    }
+
+    public KademliaNode(int port, int udpShards) throws Exception {
+        this(port, udpShards, symbolBitsFromEnv());
+    }
+
+    public KademliaNode(int port, int udpShards, int lookupSymbolBits) throws Exception {
+        this(port, udpShards, lookupSymbolBits, DataStore.DEFAULT_MAX_BYTES, null,
+                Republisher.DEFAULT_INTERVAL_MS, Republisher.DEFAULT_RATE);
+    }
+
+    // storeMaxBytes: ngân sách ngoài heap của DataStore, storeDir: thư mục ValueLog (null = chỉ trong bộ nhớ),
+    // republishIntervalMs / republishRate: chu kỳ và tốc độ của Republisher; xem các field tương ứng của NodeConfig
+    public KademliaNode(int port, int udpShards, int lookupSymbolBits, long storeMaxBytes, Path storeDir,
+                        long republishIntervalMs, int republishRate) throws Exception {
         this.port = port;
         FileManager fileManager = new FileManager();
         this.pieceManager = new PieceManager(fileManager,256 * 1024);
         this.localAddress = InetAddress.getLocalHost();
         this.localNodeId = NodeID.fromHash(localAddress.getHostAddress() + ":" + port);
-        this.routingTable = new RoutingTable(localNodeId);
-        this.dataStore = new DataStore();
-        this.server = new KademliaServer(this, port);
-        this.rpc = new KademliaRPC(this, server.getSocket());
+        this.routingTable = new RoutingTable(localNodeId, lookupSymbolBits);
+        this.dataStore = new DataStore(storeMaxBytes, storeDir);
+        this.republisher = new Republisher(this, republishIntervalMs, republishRate);
+        this.server = new KademliaServer(this, port, udpShards);
+        this.rpc = new KademliaRPC(this, server);
+        this.routingTable.setPinger(rpc::pingAsync);
         this.peerPort = port + 1000;
         this.selfContact = new Contact(localNodeId, localAddress, port, http_port);
         System.out.println("Kademlia Node initialized: " + localNodeId + " at " + localAddress.getHostAddress() + ":" + port);
@@ -53,6 +76,27 @@ public class KademliaNode implements Serializable {
 
     public int getHttp_port() { return http_port; }
 
+    // UDP_SHARDS: số socket UDP SO_REUSEPORT (mặc định 1 = UDP chạy trên reactor)
+    public static int udpShardsFromEnv() {
+        String shards = System.getenv("UDP_SHARDS");
+        return shards == null || shards.isBlank() ? 1 : Math.max(1, Integer.parseInt(shards.trim()));
+    }
+
+    // LOOKUP_SYMBOL_BITS: b của accelerated lookup (mặc định 1), xem NodeConfig.lookupSymbolBits
+    static int symbolBitsFromEnv() {
+        String bits = System.getenv("LOOKUP_SYMBOL_BITS");
+        return bits == null || bits.isBlank() ? 1 : Integer.parseInt(bits.trim());
+    }
+
+    // REPLICATION_TARGET: write quorum W (mặc định 3), xem NodeConfig.replicationTarget
+    static int replicationTargetFromEnv() {
+        String target = System.getenv("REPLICATION_TARGET");
+        return target == null || target.isBlank() ? 3 : Math.max(1, Integer.parseInt(target.trim()));
+    }
+
+    public void setReplicationTarget(int replicationTarget) { this.replicationTarget = Math.max(1, replicationTarget); }
+    public int getReplicationTarget() { return replicationTarget; }
+
     public void startPeerServer(PieceManager pieceManager, MetadataStore metadataStore) throws IOException {
         if (peerServer != null) throw new IllegalStateException("Peer server already started");
         peerServer = new PeerServer(peerPort, pieceManager, metadataStore);
@@ -68,14 +112,18 @@ public class KademliaNode implements Serializable {
         }
     }
     public void storePiece(String pieceKey, byte[] pieceData) {
+        storePiece(pieceKey, pieceData, null);
+    }
+
+    // pieceHash: SHA-1 hex của piece trong TorrentFile, node nhận sẽ từ chối nếu dữ liệu không khớp
+    public void storePiece(String pieceKey, byte[] pieceData, String pieceHash) {
         // 1. Hash piece key thành NodeID
         NodeID targetId = NodeID.fromHash(pieceKey);
 
         System.out.println("[storePiece] Key: " + pieceKey + " → Target ID: " + targetId);
 
         // 2. Tìm K nodes gần nhất (dùng hàm có sẵn của bạn)
-        int replicationFactor = 3; // Lưu ở 3 nodes để redundancy
-        List<Contact> closestNodes = routingTable.findClosestContacts(targetId, replicationFactor);
+        List<Contact> closestNodes = routingTable.findClosestContacts(targetId, REPLICATION_FACTOR);
 
         System.out.println("[storePiece] Found " + closestNodes.size() + " closest nodes");
 
@@ -90,7 +138,7 @@ public class KademliaNode implements Serializable {
                         System.out.println("✅ Stored piece locally: " + pieceKey);
                     } else {
                         // Gửi đến remote node qua DHT
-                        rpc.sendStorePiece(node, pieceKey, pieceData);
+                        rpc.sendStorePiece(node, pieceKey, pieceData, pieceHash);
                         System.out.println("✅ Sent piece to " + node.getIp() + ":" + node.getPort());
                     }
                 } catch (Exception e) {
@@ -100,14 +148,85 @@ public class KademliaNode implements Serializable {
         }
     }
 
+    // Lưu nhiều piece: tìm replica của mọi piece trong 1 lượt (locateMany), gom theo node đích rồi gửi
+    // mỗi node vài STORE_PIECES thay vì 1 RPC cho mỗi piece
+    public void storePieces(List<String> pieceKeys, List<byte[]> pieces, List<String> pieceHashes) {
+        Map<NodeID, List<Contact>> owners = locateMany(pieceKeys.stream().map(NodeID::fromHash).toList(), REPLICATION_FACTOR);
+        Map<Contact, List<Integer>> byNode = new LinkedHashMap<>();
+        for (int i = 0; i < pieceKeys.size(); i++) {
+            for (Contact node : owners.get(NodeID.fromHash(pieceKeys.get(i)))) {
+                byNode.computeIfAbsent(node, c -> new ArrayList<>()).add(i);
+            }
+        }
+
+        System.out.println("[storePieces] " + pieceKeys.size() + " pieces → " + byNode.size() + " nodes");
+
+        for (Map.Entry<Contact, List<Integer>> entry : byNode.entrySet()) {
+            Contact node = entry.getKey();
+            if (node.getNodeId().equals(localNodeId)) {
+                // Node này nằm trong số replica: lưu local
+                for (int i : entry.getValue()) {
+                    storeExecutor.submit(() -> {
+                        try {
+                            pieceManager.savePieceData(pieceKeys.get(i), pieces.get(i));
+                        } catch (IOException e) {
+                            System.err.println("❌ Failed to store piece locally: " + pieceKeys.get(i) + " - " + e.getMessage());
+                        }
+                    });
+                }
+                continue;
+            }
+            for (List<Integer> batch : splitBatch(entry.getValue(), pieces)) {
+                storeExecutor.submit(() -> {
+                    List<String> keys = new ArrayList<>(batch.size());
+                    List<byte[]> data = new ArrayList<>(batch.size());
+                    List<String> hashes = new ArrayList<>(batch.size());
+                    for (int i : batch) {
+                        keys.add(pieceKeys.get(i));
+                        data.add(pieces.get(i));
+                        hashes.add(pieceHashes == null ? null : pieceHashes.get(i));
+                    }
+                    Set<String> stored = rpc.sendStorePieces(node, keys, data, hashes);
+                    if (stored.size() < keys.size()) {
+                        System.err.println("❌ " + (keys.size() - stored.size()) + " pieces not stored at "
+                                + node.getIp() + ":" + node.getPort());
+                    }
+                });
+            }
+        }
+    }
+
+    // Chia danh sách piece thành các batch không vượt quá giới hạn số piece / số byte của 1 RPC
+    private static List<List<Integer>> splitBatch(List<Integer> indexes, List<byte[]> pieces) {
+        List<List<Integer>> batches = new ArrayList<>();
+        List<Integer> current = new ArrayList<>();
+        long bytes = 0;
+        for (int i : indexes) {
+            int size = pieces.get(i).length;
+            if (!current.isEmpty() && (current.size() >= KademliaRPC.MAX_BATCH_PIECES
+                    || bytes + size > KademliaRPC.MAX_BATCH_BYTES)) {
+                batches.add(current);
+                current = new ArrayList<>();
+                bytes = 0;
+            }
+            current.add(i);
+            bytes += size;
+        }
+        if (!current.isEmpty()) batches.add(current);
+        return batches;
+    }
+
     public void start() {
         server.start();
+        republisher.start();
         System.out.println("Kademlia Node started on port: " + port);
     }
 
     public void stop() {
+        republisher.stop();
         server.stop();
         rpc.shutdown();
+        dataStore.close();
         System.out.println("Kademlia Node stopped");
     }
 
@@ -127,14 +246,24 @@ public class KademliaNode implements Serializable {
         }
     }
 
-    // Store generic key-value
-    public void store(NodeID key, byte[] value) {
-        List<Contact> closestNodes = nodeLookup(key);
-        int successCount = 0;
-        for (Contact contact : closestNodes) {
-            if (rpc.store(contact, key, value)) successCount++;
+    /**
+     * Store generic key-value: STORE song song tới các node gần key nhất, trả về ngay khi replicationTarget node
+     * xác nhận; các STORE còn lại chạy tiếp ở nền, kết quả từng replica được log khi xong (xem WriteQuorum).
+     * Value lớn hơn DataStore.MAX_VALUE_SIZE bị từ chối (IllegalArgumentException) vì không node nào nhận.
+     * Node gốc giữ 1 bản local để Republisher đọc lại khi publish lại (xem Republisher).
+     */
+    public WriteQuorum store(NodeID key, byte[] value) {
+        if (value.length > DataStore.MAX_VALUE_SIZE) {
+            throw new IllegalArgumentException("Value of " + value.length + " bytes exceeds " + DataStore.MAX_VALUE_SIZE);
         }
-        System.out.println("Stored key " + key + " on " + successCount + " nodes");
+        if (dataStore.put(key, value)) republisher.published(key);
+        List<Contact> closestNodes = nodeLookup(key);
+        WriteQuorum write = WriteQuorum.start(closestNodes, replicationTarget,
+                contact -> rpc.storeAsync(contact, key, value, DataStore.EXPIRATION_TIME));
+        write.awaitQuorum();
+        System.out.println("Stored key " + key + ": " + write);
+        write.getCompletion().thenAccept(done -> System.out.println("Store " + key + " finished: " + done.describe()));
+        return write;
     }
 
     // Find value in DHT
@@ -142,108 +271,151 @@ public class KademliaNode implements Serializable {
         byte[] localValue = dataStore.get(key);
         if (localValue != null) return localValue;
 
-        Set<Contact> queried = new HashSet<>();
-        Set<Contact> toQuery = new HashSet<>(routingTable.findClosestContacts(key, ALPHA));
-        byte[] result = null;
+        IterativeLookup.Result result = findValueLookup(key).join();
+        System.out.println("🔍 findValue " + key.toString().substring(0, 8) + ": " + result.getStats());
+        return result.getValue();
+    }
 
-        while (!toQuery.isEmpty() && result == null) {
-            List<Future<FindValueResult>> futures = new ArrayList<>();
-            for (Contact contact : toQuery) {
-                if (!queried.contains(contact)) {
-                    futures.add(rpc.findValueAsync(contact, key));
-                    queried.add(contact);
-                }
-            }
-            toQuery.clear();
+    /**
+     * Node giữ replica (count node gần nhất trong mạng, tính cả node này) của nhiều key cùng lúc.
+     * Key được sắp theo ID và dùng chung kết quả lookup khi chắc chắn đúng (xem KeyLocator), nên
+     * vài nghìn piece chỉ cần khoảng (số node / K) lookup thay vì 1 lookup cho mỗi piece.
+     */
+    public Map<NodeID, List<Contact>> locateMany(Collection<NodeID> keys) {
+        return locateMany(keys, REPLICATION_FACTOR);
+    }
 
-            for (Future<FindValueResult> future : futures) {
-                try {
-                    FindValueResult fvResult = future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
-                    if (fvResult.hasValue()) {
-                        result = fvResult.getValue();
-                        break;
-                    } else {
-                        for (Contact c : fvResult.getContacts()) {
-                            if (!queried.contains(c)) toQuery.add(c);
-                        }
-                    }
-                } catch (Exception ignored) {}
-            }
-        }
-        return result;
+    public Map<NodeID, List<Contact>> locateMany(Collection<NodeID> keys, int count) {
+        if (keys.isEmpty()) return Collections.emptyMap();
+        KeyLocator locator = new KeyLocator(this::nodeLookup, selfContact, K);
+        Map<NodeID, List<Contact>> replicas = locator.locate(keys, count);
+        System.out.println("[locateMany] " + replicas.size() + " keys → " + locator.getLookups() + " lookups");
+        return replicas;
     }
 
-    // Node lookup
+    // Node lookup: tối đa ALPHA FIND_NODE đang bay, xử lý từng response ngay khi tới (xem IterativeLookup);
+    // dừng khi K contact gần target nhất đã biết đều đã trả lời
     public List<Contact> nodeLookup(NodeID target) {
-        Set<Contact> queried = new HashSet<>();
-        Set<Contact> toQuery = new HashSet<>(routingTable.findClosestContacts(target, ALPHA));
-        TreeSet<Contact> closest = new TreeSet<>((a,b)-> Integer.compare(a.getNodeId().getDistance(target), b.getNodeId().getDistance(target)));
-        closest.addAll(toQuery);
-
-        while (!toQuery.isEmpty()) {
-            List<Future<List<Contact>>> futures = new ArrayList<>();
-            for (Contact contact : toQuery) {
-                if (!queried.contains(contact)) {
-                    futures.add(rpc.findNodeAsync(contact, target));
-                    queried.add(contact);
-                }
-            }
+        IterativeLookup.Result result = nodeLookupAsync(target).join();
+        System.out.println("🔍 nodeLookup " + target.toString().substring(0, 8) + ": " + result.getStats());
+        return result.getClosest();
+    }
 
-            Set<Contact> nextToQuery = new HashSet<>();
-            for (Future<List<Contact>> future : futures) {
-                try {
-                    List<Contact> contacts = future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
-                    if (contacts != null) {
-                        for (Contact c : contacts) {
-                            if (!queried.contains(c)) nextToQuery.add(c);
-                        }
-                    }
-                } catch (Exception e) { e.printStackTrace(); }
-            }
-            toQuery = nextToQuery;
-        }
-        return new ArrayList<>(closest).subList(0, Math.min(K, closest.size()));
+    public CompletableFuture<IterativeLookup.Result> nodeLookupAsync(NodeID target) {
+        return new IterativeLookup(target, localNodeId, routingTable, K, ALPHA,
+                contact -> rpc.findNodeAsync(contact, target).thenApply(contacts -> new FindValueResult(null, contacts)),
+                this::estimateRttMs)
+                .start();
+    }
+
+    // FIND_VALUE lặp, dừng ngay khi 1 node trả về value
+    public CompletableFuture<IterativeLookup.Result> findValueLookup(NodeID key) {
+        return new IterativeLookup(key, localNodeId, routingTable, K, ALPHA, contact -> rpc.findValueAsync(contact, key),
+                this::estimateRttMs)
+                .start();
+    }
+
+    // ==================== VIVALDI ====================
+
+    public VivaldiCoordinate getCoordinate() { return coordinate; }
+
+    // Gắn tọa độ hiện tại vào message trước khi encode (đi trong header của mọi frame)
+    <T extends Message> T stamp(T message) {
+        message.setCoordinate(coordinate);
+        return message;
+    }
+
+    /**
+     * Tọa độ contact gửi kèm message: lưu lên Contact (bản trong routing table nếu có). rttNanos >= 0 là RTT
+     * đo được của request vừa nhận response đó, dùng để cập nhật tọa độ của node này.
+     */
+    void observeCoordinate(Contact contact, VivaldiCoordinate remote, long rttNanos) {
+        if (remote == null) return;
+        contact.setCoordinate(remote);
+        Contact known = routingTable.getContact(contact.getNodeId());
+        if (known != null && known != contact) known.setCoordinate(remote);
+        if (rttNanos >= 0) updateCoordinate(remote, rttNanos / 1_000_000.0);
+    }
+
+    private synchronized void updateCoordinate(VivaldiCoordinate remote, double rttMs) {
+        coordinate = coordinate.update(remote, rttMs);
+    }
+
+    /**
+     * RTT (ms) ước lượng tới contact: SRTT nếu đã từng đo, không thì dự đoán theo tọa độ Vivaldi
+     * (contact nghe qua FIND_NODE cũng mang tọa độ); Double.MAX_VALUE nếu chưa biết gì.
+     */
+    public double estimateRttMs(Contact contact) {
+        Contact known = routingTable.getContact(contact.getNodeId());
+        if (known == null) known = contact;
+        if (known.getSrttMicros() > 0) return known.getSrttMicros() / 1000.0;
+        VivaldiCoordinate remote = known.getCoordinate() != null ? known.getCoordinate() : contact.getCoordinate();
+        return remote == null ? Double.MAX_VALUE : coordinate.distanceTo(remote);
+    }
+
+    /**
+     * Trong replicas node gần key nhất (đều có thể giữ piece) thử node có RTT ước lượng thấp trước;
+     * các node xa hơn (dự phòng khi routing table lệch) vẫn giữ thứ tự XOR phía sau.
+     */
+    List<Contact> rankByLatency(List<Contact> nodes, int replicas) {
+        List<Contact> ranked = new ArrayList<>(nodes);
+        int head = Math.min(replicas, ranked.size());
+        ranked.subList(0, head).sort(Comparator.comparingDouble(this::estimateRttMs));
+        return ranked;
     }
 
     public NodeID getLocalNodeId() { return localNodeId; }
     public RoutingTable getRoutingTable() { return routingTable; }
     public DataStore getDataStore() { return dataStore; }
+    public PeerStore getPeerStore() { return peerStore; }
+    public Republisher getRepublisher() { return republisher; }
     public int getPort() { return port; }
     public KademliaRPC getRPC() { return rpc; }
+    public KademliaServer getServer() { return server; }
 
+    // Announce node này (địa chỉ peer server) là seeder của infoHash tới K node gần infoHash nhất (kể cả node này)
     public void storePeer(String infoHashHex) {
         try {
-            byte[] infoHashBytes = hexStringToByteArray(infoHashHex);
-            NodeID key = new NodeID(infoHashBytes);
-            String value = getLocalIp() + ":" + port;
-
-            List<Contact> closest = routingTable.findClosestContacts(key, K);
-            for (Contact contact : closest) {
-                try { rpc.store(contact, key, value.getBytes()); }
-                catch (Exception e) { System.err.println("Failed to store at " + contact.getIp()); }
-            }
+            NodeID key = new NodeID(hexStringToByteArray(infoHashHex));
+            byte[] peer = PeerStore.compact(localAddress, peerPort);
+            republisher.announced(infoHashHex);
+            List<Contact> replicas = locateMany(List.of(key), K).getOrDefault(key, List.of());
+
+            WriteQuorum write = WriteQuorum.start(replicas, replicationTarget, contact ->
+                    contact.getNodeId().equals(localNodeId)
+                            ? CompletableFuture.completedFuture(peerStore.announce(key, peer))
+                            : rpc.announcePeerAsync(contact, key, peer));
+            write.awaitQuorum();
+            System.out.println("Announced peer for " + infoHashHex + ": " + write);
+            write.getCompletion().thenAccept(done ->
+                    System.out.println("Announce " + infoHashHex + " finished: " + done.describe()));
         } catch (Exception e) {
             System.err.println("Failed to store peer: " + e.getMessage());
         }
     }
 
+    // Gom seeder của infoHash từ mọi node giữ nó: GET_PEERS lặp tới khi K node gần nhất đã trả lời
     public List<Contact> findPeers(String infoHashHex) {
         try {
-            byte[] infoHashBytes = hexStringToByteArray(infoHashHex);
-            NodeID key = new NodeID(infoHashBytes);
-            byte[] value = findValue(key);
-            if (value != null) return List.of(new Contact(localNodeId, localAddress, peerPort, http_port));
-            return nodeLookup(key);
+            NodeID key = new NodeID(hexStringToByteArray(infoHashHex));
+            Queue<byte[]> found = new ConcurrentLinkedQueue<>(peerStore.get(key, Integer.MAX_VALUE));
+            IterativeLookup.Result result = new IterativeLookup(key, localNodeId, routingTable, K, ALPHA,
+                    contact -> rpc.getPeersAsync(contact, key, found), this::estimateRttMs)
+                    .start().join();
+
+            Map<String, Contact> peers = new LinkedHashMap<>(); // các replica trả về trùng nhau
+            for (byte[] peer : found) {
+                InetSocketAddress address = PeerStore.toAddress(peer);
+                String id = address.getAddress().getHostAddress() + ":" + address.getPort();
+                peers.computeIfAbsent(id, k -> new Contact(NodeID.fromHash(id), address));
+            }
+            System.out.println("🔍 findPeers " + infoHashHex + ": " + peers.size() + " peers, " + result.getStats());
+            return new ArrayList<>(peers.values());
         } catch (Exception e) {
             return Collections.emptyList();
         }
     }
 
-    private String getLocalIp() {
-        try { return InetAddress.getLocalHost().getHostAddress(); }
-        catch (Exception e) { return "127.0.0.1"; }
-    }
-
     private static byte[] hexStringToByteArray(String s) {
         int len = s.length();
         byte[] data = new byte[len / 2];
@@ -267,8 +439,8 @@ public class KademliaNode implements Serializable {
         // 2. Hash key để tìm target nodes
         NodeID targetId = NodeID.fromHash(pieceKey);
 
-        // 3. Tìm nodes có thể chứa piece này
-        List<Contact> nodes = routingTable.findClosestContacts(targetId, 5);
+        // 3. Tìm nodes có thể chứa piece này, replica gần (RTT thấp) được hỏi trước
+        List<Contact> nodes = rankByLatency(routingTable.findClosestContacts(targetId, 5), REPLICATION_FACTOR);
 
         System.out.println("[retrievePiece] Querying " + nodes.size() + " nodes for: " + pieceKey);
 
@@ -297,6 +469,114 @@ public class KademliaNode implements Serializable {
         return null;
     }
 
+    // Giống retrievePiece nhưng stream piece vào writer thay vì trả byte[]; true khi piece đã commit (hash khớp)
+    public boolean retrievePiece(String pieceKey, PieceStreamWriter writer) {
+        // 1. Check local first
+        if (retrieveLocalPiece(pieceKey, writer)) return true;
+
+        NodeID targetId = NodeID.fromHash(pieceKey);
+        List<Contact> nodes = rankByLatency(routingTable.findClosestContacts(targetId, 5), REPLICATION_FACTOR);
+
+        for (Contact node : nodes) {
+            if (node.getNodeId().equals(localNodeId)) continue;
+            if (rpc.sendGetPiece(node, pieceKey, writer)) {
+                return true;
+            }
+        }
+
+        System.err.println("❌ Piece not found: " + pieceKey);
+        return false;
+    }
+
+    /**
+     * Lấy nhiều piece: kiểm tra local trước, phần còn lại gom theo node gần nhất và xin bằng GET_PIECES.
+     * Piece mà node đó không có được thử lại ở node gần kế tiếp (tối đa REPLICATION_FACTOR node như retrievePiece,
+     * tức các node giữ replica).
+     * onPiece được gọi ngay khi từng piece commit; trả về các key đã lấy được.
+     */
+    public Set<String> retrievePieces(Map<String, PieceStreamWriter> writers, Consumer<String> onPiece) {
+        Set<String> retrieved = ConcurrentHashMap.newKeySet();
+        Consumer<String> committed = key -> {
+            retrieved.add(key);
+            if (onPiece != null) onPiece.accept(key);
+        };
+
+        List<String> remaining = new ArrayList<>();
+        for (Map.Entry<String, PieceStreamWriter> entry : writers.entrySet()) {
+            if (retrieveLocalPiece(entry.getKey(), entry.getValue())) {
+                committed.accept(entry.getKey());
+                continue;
+            }
+            remaining.add(entry.getKey());
+        }
+        // Node giữ replica của mọi piece còn thiếu, tìm trong 1 lượt quét (bỏ chính mình, local đã kiểm tra);
+        // replica có RTT ước lượng thấp được xin ở vòng đầu
+        Map<NodeID, List<Contact>> owners = locateMany(remaining.stream().map(NodeID::fromHash).toList(), REPLICATION_FACTOR);
+        Map<String, List<Contact>> candidates = new HashMap<>();
+        for (String key : remaining) {
+            List<Contact> nodes = rankByLatency(owners.get(NodeID.fromHash(key)), REPLICATION_FACTOR);
+            nodes.removeIf(node -> node.getNodeId().equals(localNodeId));
+            candidates.put(key, nodes);
+        }
+
+        for (int round = 0; round < REPLICATION_FACTOR && !remaining.isEmpty(); round++) {
+            Map<Contact, List<String>> byNode = new LinkedHashMap<>();
+            for (String key : remaining) {
+                List<Contact> nodes = candidates.get(key);
+                if (round < nodes.size()) byNode.computeIfAbsent(nodes.get(round), c -> new ArrayList<>()).add(key);
+            }
+            if (byNode.isEmpty()) break;
+
+            System.out.println("[retrievePieces] Round " + (round + 1) + ": " + remaining.size()
+                    + " pieces from " + byNode.size() + " nodes");
+
+            // Mỗi node 1 task, các batch của cùng node gửi lần lượt để piece về gần đúng thứ tự
+            List<Future<?>> tasks = new ArrayList<>();
+            for (Map.Entry<Contact, List<String>> entry : byNode.entrySet()) {
+                Contact node = entry.getKey();
+                List<String> keys = entry.getValue();
+                tasks.add(storeExecutor.submit(() -> {
+                    for (int i = 0; i < keys.size(); i += KademliaRPC.MAX_BATCH_PIECES) {
+                        Map<String, PieceStreamWriter> batch = new LinkedHashMap<>();
+                        for (String key : keys.subList(i, Math.min(i + KademliaRPC.MAX_BATCH_PIECES, keys.size()))) {
+                            batch.put(key, writers.get(key));
+                        }
+                        rpc.sendGetPieces(node, batch, committed);
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    System.err.println("❌ [retrievePieces] " + e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return retrieved;
+                }
+            }
+            remaining.removeIf(retrieved::contains);
+        }
+
+        if (!remaining.isEmpty()) {
+            System.err.println("❌ " + remaining.size() + " pieces not found");
+        }
+        return retrieved;
+    }
+
+    private boolean retrieveLocalPiece(String pieceKey, PieceStreamWriter writer) {
+        File localFile = pieceManager.getPieceFile(pieceKey);
+        if (localFile == null) return false;
+        try (InputStream in = new FileInputStream(localFile)) {
+            writer.reset();
+            writer.transferFrom(in, localFile.length());
+            return writer.commit();
+        } catch (IOException e) {
+            // Không đọc được bản local, thử peer
+            return false;
+        }
+    }
+
     public TorrentFile getMetadataFromDHT(String infoHash) {
         try {
             System.out.println("[DHT] Looking up metadata for: " + infoHash);
@@ -311,37 +591,17 @@ public class KademliaNode implements Serializable {
                 return null;
             }
 
-            // Query các nodes song song
-            List<Future<KademliaNode.FindValueResult>> futures = new ArrayList<>();
-            for (Contact contact : closestNodes) {
-                futures.add(rpc.findValueAsync(contact, metadataKey));
-            }
-
-            // Đợi kết quả
-            for (Future<KademliaNode.FindValueResult> future : futures) {
-                try {
-                    FindValueResult result = future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
-
-                    if (result.value!= null) {
-                        // Deserialize metadata từ bytes
-                        ByteArrayInputStream bis = new ByteArrayInputStream(result.value);
-                        ObjectInputStream ois = new ObjectInputStream(bis);
-                        TorrentFile metadata = (TorrentFile) ois.readObject();
-
-                        System.out.println("✅ Found metadata from DHT: " + metadata.getFileName());
-                        return metadata;
-                    }
-
-                    // Nếu có thêm contacts, thêm vào routing table
-                    if (result.contacts != null) {
-                        result.contacts.forEach(routingTable::addContact);
-                    }
-
-                } catch (TimeoutException e) {
-                    // Skip timeout nodes
-                } catch (Exception e) {
-                    System.err.println("Error querying node: " + e.getMessage());
-                }
+            // FIND_VALUE lặp bất đồng bộ, dừng ngay khi 1 node trả về metadata
+            IterativeLookup.Result result = findValueLookup(metadataKey).join();
+            System.out.println("🔍 metadata lookup: " + result.getStats());
+            if (result.hasValue()) {
+                // Deserialize metadata từ bytes
+                ByteArrayInputStream bis = new ByteArrayInputStream(result.getValue());
+                ObjectInputStream ois = new ObjectInputStream(bis);
+                TorrentFile metadata = (TorrentFile) ois.readObject();
+
+                System.out.println("✅ Found metadata from DHT: " + metadata.getFileName());
+                return metadata;
             }
 
             System.out.println("⚠ Metadata not found in DHT");
@@ -1,33 +1,66 @@
 package dht;
 
+import bittorrent.PieceStreamWriter;
 import bittorrent.TorrentFile;
 import core.*;
+import util.ConcurrentLongMap;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class KademliaRPC {
-    private final KademliaNode node;
-    private final DatagramSocket socket;
-    private final Map<String, CompletableFuture<Message>> pendingRequests;
-    private final ExecutorService executor;
-    private volatile boolean running;
+    // Giới hạn 1 batch STORE_PIECES / GET_PIECES; batch lớn hơn được chia thành nhiều RPC
+    public static final int MAX_BATCH_PIECES = 64;
+    public static final int MAX_BATCH_BYTES = 16 * 1024 * 1024;
+    // Timeout RPC thích ứng: RTO Jacobson/Karels của contact (hoặc ước lượng chung khi contact chưa có mẫu),
+    // UDP gửi lại tối đa MAX_RETRANSMITS lần với RTO gấp đôi mỗi lần (Karn: không lấy mẫu RTT từ request gửi lại)
+    static final long MIN_RTO_MS = 50;
+    static final long INITIAL_RTO_MS = 1000;
+    static final int MAX_RETRANSMITS = 2;
+    // Timeout piece = RTO + PIECE_SAFETY_FACTOR * thời gian truyền ước lượng theo throughput đã đo
+    private static final long DEFAULT_THROUGHPUT_BPS = 256 * 1024;
+    private static final long PIECE_SIZE_HINT = 1024 * 1024; // GET_PIECE chưa biết kích thước piece trả về
+    private static final int PIECE_SAFETY_FACTOR = 4;
+    private static final long MIN_PIECE_TIMEOUT_MS = 2000;
+    private static final long MIN_THROUGHPUT_SAMPLE_BYTES = 64 * 1024;
 
-    public KademliaRPC(KademliaNode node, DatagramSocket socket) throws SocketException {
+    private final KademliaNode node;
+    private final KademliaServer server;
+    // requestId -> request đang chờ; mọi timeout do 1 timing wheel quản lý, không có thread nào chặn chờ riêng
+    private final ConcurrentLongMap<CompletableFuture<Message>> pendingRequests;
+    private final TimingWheel timeouts;
+    private final TcpConnectionPool tcpPool;
+    private final RttEstimator globalRtt = new RttEstimator(); // mọi mẫu RTT / throughput, dùng khi contact chưa có mẫu
+    private final ConcurrentLongMap<WriterSink> pieceSinks;        // requestId -> nơi ghi piece của GET_PIECE
+    private final ConcurrentLongMap<PieceBatch> pieceBatches;      // requestId -> GET_PIECES đang chờ
+    private volatile boolean running = true; // false sau shutdown(): mọi request mới thất bại ngay
+
+    public KademliaRPC(KademliaNode node, KademliaServer server) {
         this.node = node;
-        this.socket = socket;
-        this.pendingRequests = new ConcurrentHashMap<>();
-        this.executor = Executors.newFixedThreadPool(5);
+        this.server = server;
+        this.pendingRequests = new ConcurrentLongMap<>(1024);
+        this.timeouts = new TimingWheel("kademlia-rpc-timeouts-" + node.getPort(), 10, 512);
+        this.pieceSinks = new ConcurrentLongMap<>();
+        this.pieceBatches = new ConcurrentLongMap<>();
+        this.tcpPool = new TcpConnectionPool(server.getReactor(), this::handleResponse, this::receivePayload);
     }
 
     public void handleResponse(Message message) {
-        String requestId = getRequestId(message);
+        // GET_PIECES nhận nhiều response cùng requestId, không dùng pendingRequests
+        if (message instanceof GetPieceResponseMessage pieceResponse) {
+            PieceBatch batch = pieceBatches.get(pieceResponse.getRequestId());
+            if (batch != null) {
+                batch.onResponse(pieceResponse);
+                return;
+            }
+        }
+
+        long requestId = getRequestId(message);
 
-        if (requestId != null) {
+        if (requestId != 0) {
             CompletableFuture<Message> future = pendingRequests.remove(requestId);
             if (future != null) {
                 future.complete(message);
@@ -38,7 +71,7 @@ public class KademliaRPC {
         }
     }
 
-    private String getRequestId(Message message) {
+    private long getRequestId(Message message) {
         if (message instanceof PongMessage) return ((PongMessage) message).getRequestId();
         if (message instanceof StoreResponseMessage) return ((StoreResponseMessage) message).getRequestId();
         if (message instanceof FindNodeResponseMessage) return ((FindNodeResponseMessage) message).getRequestId();
@@ -46,83 +79,190 @@ public class KademliaRPC {
         if (message instanceof StorePieceResponseMessage) return ((StorePieceResponseMessage) message).getRequestId();
         if (message instanceof GetPieceResponseMessage) return ((GetPieceResponseMessage) message).getRequestId();
         if (message instanceof StoreMetadataResponseMessage) return ((StoreMetadataResponseMessage) message).getRequestId();
-        if (message instanceof GetPieceResponseMessage) return ((GetPieceResponseMessage) message).getRequestId(); // ← ADD THIS
+        if (message instanceof StorePiecesResponseMessage) return ((StorePiecesResponseMessage) message).getRequestId();
+        if (message instanceof GetPeersResponseMessage) return ((GetPeersResponseMessage) message).getRequestId();
 
-        return null;
+        return 0;
     }
 
-    private Message sendRequest(Message request, Contact contact, long timeoutMs) throws Exception {
-        CompletableFuture<Message> future = new CompletableFuture<>();
-        pendingRequests.put(request.getMessageId(), future);
-        System.out.println("KademliaRPC sending request: " + request.toString());
+    // Request nhỏ: timeout theo RTO của contact, có gửi lại nếu đi UDP
+    private Message sendRequest(Message request, Contact contact) throws Exception {
+        return await(sendRequestAsync(request, contact, MessageCodec.toBytes(node.stamp(request))));
+    }
 
+    private Message sendRequest(Message request, Contact contact, long timeoutMs, byte[]... frameParts) throws Exception {
+        return await(sendRequestAsync(request, contact, timeoutMs, 0, frameParts));
+    }
+
+    private Message await(CompletableFuture<Message> future) throws Exception {
         try {
-            byte[] data = request.toBytes();
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) throw new Exception("Request timeout");
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        }
+    }
+
+    private CompletableFuture<Message> sendRequestAsync(Message request, Contact contact, byte[] frame) {
+        if (usesTcp(request, frame.length)) {
+            return sendRequestAsync(request, contact, transferTimeout(contact, frame.length), 0, frame);
+        }
+        return sendRequestAsync(request, contact, rpcTimeout(contact), MAX_RETRANSMITS, frame);
+    }
 
-            // Check if message is too large for UDP (>60KB)
-            if (data.length > 60000) {
-                System.out.println("⚠ Large message detected (" + data.length + " bytes), using TCP fallback");
-                return sendViaTCP(request, contact, timeoutMs);
+    /**
+     * Gửi request, future hoàn thành khi có response hoặc lỗi với TimeoutException. Qua UDP, hết timeoutMs mà
+     * chưa có response thì gửi lại đúng frame đó (cùng requestId) tối đa retransmits lần, timeout gấp đôi mỗi lần.
+     * Entry trong pendingRequests luôn được gỡ khi future kết thúc, kể cả khi gửi lỗi.
+     * frameParts nối lại thành 1 frame; chia nhiều phần để ghi dữ liệu piece mà không gom vào 1 mảng (chỉ qua TCP)
+     */
+    private CompletableFuture<Message> sendRequestAsync(Message request, Contact contact, long timeoutMs,
+                                                        int retransmits, byte[]... frameParts) {
+        if (!running) return CompletableFuture.failedFuture(new IOException("RPC is shut down"));
+        long requestId = request.getMessageId();
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        pendingRequests.put(requestId, future);
+
+        long size = 0;
+        for (byte[] part : frameParts) size += part.length;
+        // Piece RPC và message lớn hơn ceiling fragment đi qua kết nối TCP dùng lại trong pool;
+        // message vừa (1.2KB..ceiling) đi UDP dạng fragment
+        boolean tcp = frameParts.length > 1 || usesTcp(request, size);
+        Retransmitter retransmitter = new Retransmitter(future, contact, frameParts[0], tcp ? 0 : retransmits);
+        retransmitter.arm(timeoutMs);
+
+        long sentAt = System.nanoTime();
+        long requestBytes = size;
+        future.whenComplete((response, error) -> {
+            retransmitter.cancel();
+            pendingRequests.remove(requestId);
+            // Liveness của contact: RTT chỉ đo trên RPC nhỏ chưa gửi lại (cũng là mẫu cho tọa độ Vivaldi),
+            // piece RPC đo throughput
+            long elapsed = System.nanoTime() - sentAt;
+            if (error == null) {
+                boolean sample = !isPieceRequest(request) && retransmitter.attempts == 0;
+                node.getRoutingTable().recordResponse(contact, sample ? elapsed : -1);
+                node.observeCoordinate(contact, response.getCoordinate(), sample ? elapsed : -1);
+                if (sample) globalRtt.sample(elapsed);
+                if (isPieceRequest(request)) recordTransfer(contact, requestBytes + responseBytes(response), elapsed);
+            } else if (error instanceof TimeoutException) {
+                node.getRoutingTable().recordFailure(contact);
             }
+        });
 
-            try {
-                DatagramPacket packet = new DatagramPacket(
-                        data,
-                        data.length,
-                        contact.getAddress().getAddress(),
-                        contact.getAddress().getPort()
-                );
-                System.out.println("Sending request to " + contact.getAddress().getAddress() + ":" + contact.getAddress().getPort());
-                socket.send(packet);
-            } catch (IOException e) {
-                System.out.println("Error sending request to " + contact.getAddress().getAddress());
-                throw e;
+        try {
+            if (tcp) {
+                tcpPool.send(contact, frameParts);
+            } else {
+                server.sendFrame(frameParts[0], contact.getAddress());
             }
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
 
-            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
-        } catch (TimeoutException e) {
-            pendingRequests.remove(request.getMessageId());
-            throw new Exception("Request timeout");
+    // Hẹn giờ 1 request: hết hạn thì gửi lại (UDP) với timeout gấp đôi, hết lượt thì báo TimeoutException
+    private class Retransmitter implements Runnable {
+        private final CompletableFuture<Message> future;
+        private final Contact contact;
+        private final byte[] frame;
+        private final int maxRetransmits;
+        private volatile int attempts;
+        private volatile long timeoutMs;
+        private volatile TimingWheel.Timeout timeout;
+
+        Retransmitter(CompletableFuture<Message> future, Contact contact, byte[] frame, int maxRetransmits) {
+            this.future = future;
+            this.contact = contact;
+            this.frame = frame;
+            this.maxRetransmits = maxRetransmits;
+        }
+
+        void arm(long timeoutMs) {
+            this.timeoutMs = timeoutMs;
+            this.timeout = timeouts.schedule(this, timeoutMs);
+        }
+
+        void cancel() {
+            TimingWheel.Timeout current = timeout;
+            if (current != null) current.cancel();
+        }
+
+        @Override
+        public void run() {
+            if (future.isDone()) return;
+            if (attempts >= maxRetransmits) {
+                future.completeExceptionally(new TimeoutException("Request timeout"));
+                return;
+            }
+            attempts++;
+            try {
+                server.sendFrame(frame, contact.getAddress());
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+                return;
+            }
+            arm(Math.min(timeoutMs * 2, KademliaNode.TIMEOUT_MS));
         }
     }
 
-    /**
-     * TCP fallback for large messages (pieces)
-     */
-    private Message sendViaTCP(Message request, Contact contact, long timeoutMs) throws Exception {
-        try (Socket tcpSocket = new Socket()) {
-            tcpSocket.connect(new InetSocketAddress(
-                    contact.getAddress().getAddress(),
-                    contact.getPort()
-            ), (int) timeoutMs);
+    // RTO của contact (bản trong routing table nếu có), không có mẫu thì dùng ước lượng chung rồi INITIAL_RTO_MS
+    long rpcTimeout(Contact contact) {
+        long rto = known(contact).getRtt().rtoMillis(MIN_RTO_MS, KademliaNode.TIMEOUT_MS);
+        if (rto < 0) rto = globalRtt.rtoMillis(MIN_RTO_MS, KademliaNode.TIMEOUT_MS);
+        return rto < 0 ? INITIAL_RTO_MS : rto;
+    }
 
-            // Send request
-            tcpSocket.getOutputStream().write(request.toBytes());
+    // Timeout cho RPC mang bytes dữ liệu: RTO + PIECE_SAFETY_FACTOR lần thời gian truyền theo throughput đã đo
+    long transferTimeout(Contact contact, long bytes) {
+        long bps = known(contact).getRtt().getBytesPerSecond();
+        if (bps == 0) bps = globalRtt.getBytesPerSecond();
+        if (bps == 0) bps = DEFAULT_THROUGHPUT_BPS;
+        long transferMs = bytes * 1000 / bps;
+        return Math.max(MIN_PIECE_TIMEOUT_MS, rpcTimeout(contact) + PIECE_SAFETY_FACTOR * transferMs);
+    }
 
-            tcpSocket.shutdownOutput();
-            System.out.println("[RPC->TCP] Sent request, waiting for response...");
+    // Chỉ lấy mẫu throughput từ lần truyền đủ lớn, lần nhỏ chủ yếu là RTT
+    private void recordTransfer(Contact contact, long bytes, long nanos) {
+        if (bytes < MIN_THROUGHPUT_SAMPLE_BYTES) return;
+        known(contact).getRtt().sampleThroughput(bytes, nanos);
+        globalRtt.sampleThroughput(bytes, nanos);
+    }
 
-            // Wait for response
+    private static long responseBytes(Message response) {
+        return response instanceof GetPieceResponseMessage r && r.hasData() ? r.getPieceData().length : 0;
+    }
 
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            byte[] tmp = new byte[8192];
-            int len;
+    // Bản trong routing table (giữ RTT / throughput) của contact
+    private Contact known(Contact contact) {
+        Contact known = node.getRoutingTable().getContact(contact.getNodeId());
+        return known != null ? known : contact;
+    }
 
-            InputStream in = tcpSocket.getInputStream();
-            while ((len = in.read(tmp)) != -1) {
-                buffer.write(tmp, 0, len);
-            }
+    public RttEstimator getGlobalRtt() {
+        return globalRtt;
+    }
 
-            byte[] responseData = buffer.toByteArray();
+    // Response của GET_PIECE chứa cả piece nên request cũng phải đi TCP để nhận về cùng kết nối;
+    // STORE_METADATA chỉ được server xử lý trên TCP (processTCPMessage) nên luôn đi TCP
+    private boolean usesTcp(Message request, long size) {
+        return size > server.getFragmenter().getCeiling() || isPieceRequest(request)
+                || request.getType() == Message.MessageType.STORE_METADATA;
+    }
 
-            if (responseData.length > 0) {
-                Message response = Message.fromBytes(responseData);
-                System.out.println("✅ [RPC->TCP] Received response: " + response.getType());
-                return response;
-            }
+    private static boolean isPieceRequest(Message request) {
+        return request.getType() == Message.MessageType.STORE_PIECE
+                || request.getType() == Message.MessageType.GET_PIECE
+                || request.getType() == Message.MessageType.STORE_PIECES
+                || request.getType() == Message.MessageType.GET_PIECES;
+    }
 
-            throw new Exception("No response received via TCP");
-        }
+    public TcpConnectionPool getTcpPool() {
+        return tcpPool;
     }
 
     // ==================== EXISTING METHODS ====================
@@ -132,7 +272,7 @@ public class KademliaRPC {
             PingMessage request = new PingMessage(node.getLocalNodeId(), node.getPort());
             System.out.println("RPC: sending ping request to " + contact.getAddress() + " : " + request.toString());
 
-            Message response = sendRequest(request, contact, KademliaNode.TIMEOUT_MS);
+            Message response = sendRequest(request, contact);
 
             if (response != null) {
                 System.out.println("RPC: received ping response: " + response.toString());
@@ -145,18 +285,40 @@ public class KademliaRPC {
                 System.out.println("RPC: unexpected response or null");
             }
         } catch (Exception e) {
-            contact.incrementFailedRequests();
             e.printStackTrace();
             System.err.println("RPC: ping failed to " + contact.getAddress() + " -> " + e.getMessage());
         }
         return null;
     }
 
+    // Ping không chặn thread, true nếu nhận được PONG (dùng cho ping-before-evict)
+    public CompletableFuture<Boolean> pingAsync(Contact contact) {
+        PingMessage request = new PingMessage(node.getLocalNodeId(), node.getPort());
+        return sendRequestAsync(request, contact, MessageCodec.toBytes(node.stamp(request)))
+                .handle((response, error) -> response instanceof PongMessage);
+    }
+
     public boolean store(Contact contact, NodeID key, byte[] value) {
+        return store(contact, key, value, DataStore.EXPIRATION_TIME);
+    }
+
+    // true nếu contact xác nhận đã lưu; timeout / lỗi gửi làm future lỗi (WriteQuorum tính là FAILED)
+    public CompletableFuture<Boolean> storeAsync(Contact contact, NodeID key, byte[] value, long ttlMs) {
+        if (value.length > DataStore.MAX_VALUE_SIZE) {
+            return CompletableFuture.failedFuture(new IOException("Value of " + value.length + " bytes exceeds "
+                    + DataStore.MAX_VALUE_SIZE));
+        }
+        StoreMessage request = new StoreMessage(node.getLocalNodeId(), key, value, ttlMs, node.getHttp_port());
+        return sendRequestAsync(request, contact, MessageCodec.toBytes(node.stamp(request)))
+                .thenApply(response -> response instanceof StoreResponseMessage r && r.isSuccess());
+    }
+
+    public boolean store(Contact contact, NodeID key, byte[] value, long ttlMs) {
+        if (value.length > DataStore.MAX_VALUE_SIZE) return false; // không node nào nhận
         try {
             System.out.println("RPC: sending store request to " + contact.getAddress() + " : " + value.toString() + "key: " + key.toString());
-            StoreMessage request = new StoreMessage(node.getLocalNodeId(), key, value, node.getHttp_port());
-            Message response = sendRequest(request, contact, KademliaNode.TIMEOUT_MS);
+            StoreMessage request = new StoreMessage(node.getLocalNodeId(), key, value, ttlMs, node.getHttp_port());
+            Message response = sendRequest(request, contact);
             return response instanceof StoreResponseMessage && ((StoreResponseMessage) response).isSuccess();
         } catch (Exception e) {
             return false;
@@ -164,39 +326,64 @@ public class KademliaRPC {
     }
 
     public List<Contact> findNode(Contact contact, NodeID targetId) {
-        try {
-            FindNodeMessage request = new FindNodeMessage(node.getLocalNodeId(), targetId);
-            Message response = sendRequest(request, contact, KademliaNode.TIMEOUT_MS);
-            if (response instanceof FindNodeResponseMessage) {
-                List<Contact> contacts = ((FindNodeResponseMessage) response).getContacts();
-                contacts.forEach(node.getRoutingTable()::addContact);
-                return contacts;
-            }
-        } catch (Exception e) {
-        }
-        return Collections.emptyList();
+        return findNodeAsync(contact, targetId).exceptionally(error -> Collections.emptyList()).join();
     }
 
-    public Future<List<Contact>> findNodeAsync(Contact contact, NodeID targetId) {
-        return CompletableFuture.supplyAsync(() -> findNode(contact, targetId), executor);
+    // Không chiếm thread nào trong lúc chờ: kết quả được xử lý trên thread giao response (hoặc timing wheel).
+    // Timeout / lỗi gửi làm future lỗi để lookup phân biệt được contact không trả lời với contact trả về rỗng
+    public CompletableFuture<List<Contact>> findNodeAsync(Contact contact, NodeID targetId) {
+        FindNodeMessage request = new FindNodeMessage(node.getLocalNodeId(), targetId);
+        return sendRequestAsync(request, contact, MessageCodec.toBytes(node.stamp(request)))
+                .thenApply(response -> {
+                    if (response instanceof FindNodeResponseMessage) {
+                        List<Contact> contacts = ((FindNodeResponseMessage) response).getContacts();
+                        contacts.forEach(node.getRoutingTable()::addContact);
+                        return contacts;
+                    }
+                    return Collections.emptyList();
+                });
     }
 
     public KademliaNode.FindValueResult findValue(Contact contact, NodeID key) {
-        try {
-            FindValueMessage request = new FindValueMessage(node.getLocalNodeId(), key);
-            Message response = sendRequest(request, contact, KademliaNode.TIMEOUT_MS);
-            if (response instanceof FindValueResponseMessage fvr) {
-                if (fvr.hasValue()) return new KademliaNode.FindValueResult(fvr.getValue(), null);
-                fvr.getContacts().forEach(node.getRoutingTable()::addContact);
-                return new KademliaNode.FindValueResult(null, fvr.getContacts());
-            }
-        } catch (Exception e) {
-        }
-        return new KademliaNode.FindValueResult(null, Collections.emptyList());
+        return findValueAsync(contact, key)
+                .exceptionally(error -> new KademliaNode.FindValueResult(null, Collections.emptyList()))
+                .join();
+    }
+
+    public CompletableFuture<KademliaNode.FindValueResult> findValueAsync(Contact contact, NodeID key) {
+        FindValueMessage request = new FindValueMessage(node.getLocalNodeId(), key);
+        return sendRequestAsync(request, contact, MessageCodec.toBytes(node.stamp(request)))
+                .thenApply(response -> {
+                    if (response instanceof FindValueResponseMessage fvr) {
+                        if (fvr.hasValue()) return new KademliaNode.FindValueResult(fvr.getValue(), null);
+                        fvr.getContacts().forEach(node.getRoutingTable()::addContact);
+                        return new KademliaNode.FindValueResult(null, fvr.getContacts());
+                    }
+                    return new KademliaNode.FindValueResult(null, Collections.emptyList());
+                });
     }
 
-    public Future<KademliaNode.FindValueResult> findValueAsync(Contact contact, NodeID key) {
-        return CompletableFuture.supplyAsync(() -> findValue(contact, key), executor);
+    // true nếu contact đã nhận peer vào tập peer của infoHash
+    public CompletableFuture<Boolean> announcePeerAsync(Contact contact, NodeID infoHash, byte[] peer) {
+        AnnouncePeerMessage request = new AnnouncePeerMessage(node.getLocalNodeId(), infoHash, peer, node.getHttp_port());
+        return sendRequestAsync(request, contact, MessageCodec.toBytes(node.stamp(request)))
+                .thenApply(response -> response instanceof StoreResponseMessage r && r.isSuccess());
+    }
+
+    // Peer contact đang giữ được thêm vào peers; trả về contact gần infoHash để lookup đi tiếp (luôn chạy hết lookup
+    // để gom peer từ mọi replica, không dừng ở node đầu tiên có peer như FIND_VALUE)
+    public CompletableFuture<KademliaNode.FindValueResult> getPeersAsync(Contact contact, NodeID infoHash,
+                                                                         Collection<byte[]> peers) {
+        GetPeersMessage request = new GetPeersMessage(node.getLocalNodeId(), infoHash);
+        return sendRequestAsync(request, contact, MessageCodec.toBytes(node.stamp(request)))
+                .thenApply(response -> {
+                    if (response instanceof GetPeersResponseMessage r) {
+                        peers.addAll(r.getPeers());
+                        r.getContacts().forEach(node.getRoutingTable()::addContact);
+                        return new KademliaNode.FindValueResult(null, r.getContacts());
+                    }
+                    return new KademliaNode.FindValueResult(null, Collections.emptyList());
+                });
     }
 
     // ==================== NEW PIECE DISTRIBUTION METHODS ====================
@@ -205,6 +392,13 @@ public class KademliaRPC {
      * Send STORE_PIECE request to remote node
      */
     public boolean sendStorePiece(Contact contact, String pieceKey, byte[] pieceData) {
+        return sendStorePiece(contact, pieceKey, pieceData, null);
+    }
+
+    /**
+     * Send STORE_PIECE kèm SHA-1 mong đợi; bên nhận stream piece ra đĩa và từ chối nếu hash sai
+     */
+    public boolean sendStorePiece(Contact contact, String pieceKey, byte[] pieceData, String pieceHash) {
         try {
             System.out.println("[RPC] Sending STORE_PIECE to " + contact.getIp() + " for key: " + pieceKey + " (" + pieceData.length + " bytes)");
 
@@ -212,10 +406,12 @@ public class KademliaRPC {
                     node.getLocalNodeId(),
                     pieceKey,
                     pieceData,
-                    node.getPort()
+                    node.getPort(),
+                    pieceHash
             );
 
-            Message response = sendRequest(request, contact, 30000); // 30s timeout for large pieces
+            Message response = sendRequest(request, contact, transferTimeout(contact, pieceData.length),
+                    MessageCodec.toBytes(node.stamp(request)));
 
             if (response instanceof StorePieceResponseMessage) {
                 boolean success = ((StorePieceResponseMessage) response).isSuccess();
@@ -250,7 +446,8 @@ public class KademliaRPC {
                     node.getPort()
             );
 
-            Message response = sendRequest(request, contact, 30000); // 30s timeout
+            Message response = sendRequest(request, contact, transferTimeout(contact, PIECE_SIZE_HINT),
+                    MessageCodec.toBytes(node.stamp(request)));
 
             if (response instanceof GetPieceResponseMessage) {
                 GetPieceResponseMessage pieceResponse = (GetPieceResponseMessage) response;
@@ -274,6 +471,139 @@ public class KademliaRPC {
         }
     }
 
+    /**
+     * Send GET_PIECE, stream piece trả về thẳng vào writer (kiểm tra SHA-1 khi commit)
+     */
+    public boolean sendGetPiece(Contact contact, String pieceKey, PieceStreamWriter writer) {
+        GetPieceMessage request = new GetPieceMessage(node.getLocalNodeId(), pieceKey, node.getPort());
+        try {
+            writer.reset();
+        } catch (IOException e) {
+            System.err.println("❌ [RPC] Cannot reset writer for " + pieceKey + ": " + e.getMessage());
+            return false;
+        }
+        WriterSink sink = new WriterSink(writer, pieceKey);
+        pieceSinks.put(request.getMessageId(), sink);
+        try {
+            long start = System.nanoTime();
+            Message response = sendRequest(request, contact, transferTimeout(contact, PIECE_SIZE_HINT),
+                    MessageCodec.toBytes(node.stamp(request)));
+            // piece được stream vào writer nên response không mang dữ liệu: đo throughput theo số byte đã ghi
+            recordTransfer(contact, writer.getBytesWritten(), System.nanoTime() - start);
+            if (!(response instanceof GetPieceResponseMessage)) {
+                System.err.println("❌ [RPC] Unexpected response type for GET_PIECE");
+            }
+        } catch (Exception e) {
+            System.err.println("❌ [RPC] Error getting piece from " + contact.getIp() + ": " + e.getMessage());
+        } finally {
+            pieceSinks.remove(request.getMessageId());
+            // TcpConnectionPool commit piece trước khi giao response header, nên nếu đã có response thì commit đã
+            // xong. Timeout giữa lúc đang stream: chặn các đoạn còn lại để caller reset() writer và thử peer khác
+            sink.cancel();
+        }
+        return writer.isCommitted();
+    }
+
+    /**
+     * Send STORE_PIECES: đẩy nhiều piece tới 1 node trong 1 round trip.
+     * Dữ liệu các piece được ghi nối tiếp ngay sau header; trả về các key node đó đã lưu (hash khớp).
+     */
+    public Set<String> sendStorePieces(Contact contact, List<String> pieceKeys, List<byte[]> pieces, List<String> pieceHashes) {
+        StorePiecesMessage request = new StorePiecesMessage(
+                node.getLocalNodeId(), pieceKeys, pieceHashes, pieces, node.getPort());
+        try {
+            System.out.println("[RPC] Sending STORE_PIECES to " + contact.getIp() + " (" + pieceKeys.size()
+                    + " pieces, " + request.getTotalLength() + " bytes)");
+
+            byte[][] frameParts = new byte[pieces.size() + 1][];
+            frameParts[0] = MessageCodec.encodeStorePiecesHeader(node.stamp(request));
+            for (int i = 0; i < pieces.size(); i++) frameParts[i + 1] = pieces.get(i);
+
+            Message response = sendRequest(request, contact, transferTimeout(contact, request.getTotalLength()), frameParts);
+            if (response instanceof StorePiecesResponseMessage batchResponse) {
+                System.out.println("✅ [RPC] " + contact.getIp() + " stored " + batchResponse.getStoredKeys().size()
+                        + "/" + pieceKeys.size() + " pieces");
+                return new HashSet<>(batchResponse.getStoredKeys());
+            }
+            System.err.println("❌ [RPC] Unexpected response type for STORE_PIECES");
+        } catch (Exception e) {
+            System.err.println("❌ [RPC] Error sending STORE_PIECES to " + contact.getIp() + ": " + e.getMessage());
+        }
+        return Collections.emptySet();
+    }
+
+    /**
+     * Send GET_PIECES: xin nhiều piece trong 1 round trip. Node kia trả từng piece thành 1 frame riêng,
+     * mỗi piece được stream vào writer của nó ngay khi tới và onPiece được gọi với key vừa commit.
+     * Trả về các key đã nhận đủ và đúng hash.
+     */
+    public Set<String> sendGetPieces(Contact contact, Map<String, PieceStreamWriter> writers, Consumer<String> onPiece) {
+        GetPiecesMessage request = new GetPiecesMessage(
+                node.getLocalNodeId(), new ArrayList<>(writers.keySet()), node.getPort());
+        PieceBatch batch = new PieceBatch(writers, onPiece);
+        try {
+            for (PieceStreamWriter writer : writers.values()) writer.reset();
+            pieceBatches.put(request.getMessageId(), batch);
+            tcpPool.send(contact, node.stamp(request).toBytes());
+
+            // Timeout tính từ lần cuối nhận được piece, batch lớn không bị cắt giữa chừng khi vẫn đang chạy
+            if (!batch.await(transferTimeout(contact, PIECE_SIZE_HINT))) {
+                System.err.println("⏱ [RPC] GET_PIECES to " + contact.getIp() + " stalled after "
+                        + batch.received.get() + "/" + writers.size() + " pieces");
+            }
+        } catch (Exception e) {
+            System.err.println("❌ [RPC] Error getting pieces from " + contact.getIp() + ": " + e.getMessage());
+        } finally {
+            pieceBatches.remove(request.getMessageId());
+            // Như sendGetPiece: piece còn đang stream không được ghi tiếp vào writer mà caller sắp reset() cho node khác
+            batch.cancel();
+        }
+        return batch.committed;
+    }
+
+    // Gọi từ TcpConnectionPool khi response mang dữ liệu piece: stream thẳng vào writer đang chờ nếu có
+    private TcpSession.PayloadSink receivePayload(Message header, int length) {
+        if (header instanceof GetPieceResponseMessage response) {
+            PieceBatch batch = pieceBatches.get(response.getRequestId());
+            if (batch == null) return pieceSinks.remove(response.getRequestId());
+            return batch.open(response.getPieceKey());
+        }
+        return null;
+    }
+
+    // Ghi từng đoạn vào writer, commit (kiểm tra SHA-1) khi nhận đủ
+    // cancel() rồi thì không ghi / commit gì thêm vào writer (write() ném lỗi để TcpSession bỏ các đoạn còn lại)
+    private static class WriterSink implements TcpSession.PayloadSink {
+        private final PieceStreamWriter writer;
+        private final String pieceKey;
+        private boolean cancelled;
+
+        WriterSink(PieceStreamWriter writer, String pieceKey) {
+            this.writer = writer;
+            this.pieceKey = pieceKey;
+        }
+
+        @Override
+        public synchronized void write(byte[] data, int offset, int length) throws IOException {
+            if (cancelled) throw new IOException("GET_PIECE " + pieceKey + " timed out");
+            writer.write(data, offset, length);
+        }
+
+        @Override
+        public synchronized void complete() {
+            if (cancelled) return;
+            try {
+                writer.commit();
+            } catch (IOException e) {
+                System.err.println("❌ [RPC] Failed to commit piece " + pieceKey + ": " + e.getMessage());
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+        }
+    }
+
     /**
      * Send STORE_METADATA request to remote node
      */
@@ -287,7 +617,7 @@ public class KademliaRPC {
                     node.getPort()
             );
 
-            Message response = sendRequest(request, contact, KademliaNode.TIMEOUT_MS);
+            Message response = sendRequest(request, contact);
 
             if (response instanceof StoreMetadataResponseMessage) {
                 boolean success = ((StoreMetadataResponseMessage) response).isSuccess();
@@ -308,9 +638,58 @@ public class KademliaRPC {
         }
     }
 
+    // Trạng thái 1 GET_PIECES: đếm response (có hoặc không có dữ liệu) tới khi đủ số key đã xin
+    private static class PieceBatch {
+        private final Map<String, PieceStreamWriter> writers;
+        private final Consumer<String> onPiece;
+        private final Set<String> committed = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger received = new AtomicInteger();
+        private final CountDownLatch done;
+        private final List<WriterSink> sinks = new ArrayList<>();
+        private boolean cancelled;
+        private volatile long lastProgress = System.currentTimeMillis();
+
+        PieceBatch(Map<String, PieceStreamWriter> writers, Consumer<String> onPiece) {
+            this.writers = writers;
+            this.onPiece = onPiece;
+            this.done = new CountDownLatch(writers.size());
+        }
+
+        void onResponse(GetPieceResponseMessage response) {
+            lastProgress = System.currentTimeMillis();
+            PieceStreamWriter writer = writers.get(response.getPieceKey());
+            if (writer != null && writer.isCommitted() && committed.add(response.getPieceKey())) {
+                if (onPiece != null) onPiece.accept(response.getPieceKey());
+            }
+            received.incrementAndGet();
+            done.countDown();
+        }
+
+        // Sink cho 1 piece của batch, null (bỏ qua dữ liệu) nếu key lạ hoặc batch đã kết thúc
+        synchronized WriterSink open(String pieceKey) {
+            PieceStreamWriter writer = writers.get(pieceKey);
+            if (cancelled || writer == null) return null;
+            WriterSink sink = new WriterSink(writer, pieceKey);
+            sinks.add(sink);
+            return sink;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            for (WriterSink sink : sinks) sink.cancel();
+        }
+
+        boolean await(long idleTimeoutMs) throws InterruptedException {
+            while (!done.await(idleTimeoutMs, TimeUnit.MILLISECONDS)) {
+                if (System.currentTimeMillis() - lastProgress >= idleTimeoutMs) return false;
+            }
+            return true;
+        }
+    }
+
     public void shutdown() {
         running = false;
-        socket.close();
-        executor.shutdown();
+        tcpPool.shutdown();
+        timeouts.stop();
     }
 }
\ No newline at end of file
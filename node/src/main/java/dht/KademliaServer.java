@@ -1,78 +1,209 @@
 package dht;
 
-import bittorrent.TorrentFile;
+import bittorrent.PieceStreamWriter;
 import core.*;
 
 import java.io.IOException;
 import java.io.*;
 import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class KademliaServer {
+    private static final int UDP_BUFFER_SIZE = 65535;
+    private static final int UDP_SEND_BUFFERS = 16;
+    private static final int UDP_HANDLER_QUEUE = 4096;
+    private static final int UDP_READS_PER_WAKEUP = 64;
+
     private final KademliaNode node;
     private final int port;
-    private DatagramSocket socket;
-    private final ExecutorService executor;
+    private final Reactor reactor;
+    private DatagramChannel channel;
+    // UDP_SHARDS > 1: nhiều socket cùng port (SO_REUSEPORT), mỗi shard 1 thread nhận + decode + xử lý riêng
+    private final List<DatagramChannel> shards = new ArrayList<>();
+    private final AtomicInteger nextSendShard = new AtomicInteger();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(UDP_BUFFER_SIZE); // chỉ dùng trên reactor
+    private final BufferPool sendPool;
+    // Frame UDP > 1200 byte được chia fragment (tránh IP fragmentation), tới UDP_FRAGMENT_CEILING
+    private final UdpFragmenter fragmenter = new UdpFragmenter(this::sendDatagram, UdpFragmenter.ceilingFromEnv());
+    private final ExecutorService executor;      // xử lý message UDP (CPU)
+    private final ExecutorService pieceExecutor; // request TCP: đọc/ghi piece, metadata (đĩa)
+    private final ScheduledExecutorService reaper;
+    private final Set<TcpSession> sessions = ConcurrentHashMap.newKeySet();
     private volatile boolean running;
     private final  int httpPort = Integer.parseInt(System.getenv("HTTP_PORT"));
-    private ServerSocket tcpServer;
+    private ServerSocketChannel tcpServer;
+    // GET_PIECE qua TCP: stream file piece thẳng ra socket (sendfile) thay vì đọc vào heap
+    private final boolean zeroCopyPieces = !"false".equalsIgnoreCase(System.getenv("PIECE_ZERO_COPY"));
+    private final LongAdder receivedPackets = new LongAdder();
+    private final AtomicLong droppedPackets = new AtomicLong();
+
+    public KademliaServer(KademliaNode node, int port) throws IOException {
+        this(node, port, 1);
+    }
 
-    public KademliaServer(KademliaNode node, int port) {
+    public KademliaServer(KademliaNode node, int port, int udpShards) throws IOException {
         this.node = node;
         this.port = port;
-        this.executor = Executors.newFixedThreadPool(10);
-        try {
-            socket = new DatagramSocket(port);
-        } catch (SocketException e) {
-            e.printStackTrace();
+        this.reactor = new Reactor("kademlia-reactor-" + port);
+        // Hàng đợi có giới hạn: quá tải thì bỏ gói UDP (bên gửi tự timeout/gửi lại) thay vì dồn bộ nhớ
+        this.executor = new ThreadPoolExecutor(10, 10, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(UDP_HANDLER_QUEUE),
+                (task, pool) -> droppedPackets.incrementAndGet());
+        this.pieceExecutor = Executors.newFixedThreadPool(8);
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "kademlia-session-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        this.sendPool = new BufferPool(UDP_SEND_BUFFERS, UDP_BUFFER_SIZE);
+        openUdp(udpShards);
+    }
 
+    private void openUdp(int udpShards) throws IOException {
+        channel = DatagramChannel.open();
+        if (udpShards > 1 && !channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            System.err.println("⚠ SO_REUSEPORT not supported, using a single UDP socket");
+            udpShards = 1;
+        }
+        if (udpShards > 1) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.bind(new InetSocketAddress(port));
+        shards.add(channel);
+
+        for (int i = 1; i < udpShards; i++) {
+            DatagramChannel shard = DatagramChannel.open();
+            shard.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            shard.bind(new InetSocketAddress(port));
+            shards.add(shard);
         }
     }
-    public DatagramSocket getSocket() {
-        return socket;
+
+    public int getUdpShards() {
+        return shards.size();
+    }
+
+    public Reactor getReactor() {
+        return reactor;
     }
+
     public void start() {
         try {
             System.out.println("KademliaServer started "+port);
             running = true;
 
-            executor.submit(() -> {
+            // UDP, TCP listener và các kết nối đều chạy trên cùng 1 reactor; chế độ shard thì UDP có thread riêng
+            if (shards.size() == 1) {
+                reactor.register(channel, SelectionKey.OP_READ, key -> onDatagram()).get();
+            } else {
+                for (int i = 0; i < shards.size(); i++) {
+                    DatagramChannel shard = shards.get(i);
+                    Thread receiver = new Thread(() -> shardLoop(shard), "kademlia-udp-" + port + "-" + i);
+                    receiver.setDaemon(true);
+                    receiver.start();
+                }
+                System.out.println("🟢 UDP receiving on " + shards.size() + " SO_REUSEPORT shards");
+            }
+            tcpServer = ServerSocketChannel.open();
+            tcpServer.bind(new InetSocketAddress(port));
+            reactor.register(tcpServer, SelectionKey.OP_ACCEPT, key -> onAccept()).get();
+            System.out.println("🟢 Kademlia TCP server listening on port " + port);
 
+            long period = TcpConnectionPool.DEFAULT_IDLE_TIMEOUT_MS / 4;
+            reaper.scheduleAtFixedRate(this::reapIdleSessions, period, period, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to start server", e);
+        }
+    }
 
-                while (running) {
-                    System.out.println("start receiving packet");
-                    try {
-                        byte[] buffer = new byte[65535];
-                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                        socket.receive(packet);
+    // Đọc hết datagram đang chờ (tối đa UDP_READS_PER_WAKEUP mỗi lượt), decode trên reactor rồi giao cho worker
+    private void onDatagram() throws IOException {
+        for (int i = 0; i < UDP_READS_PER_WAKEUP; i++) {
+            receiveBuffer.clear();
+            InetSocketAddress source = (InetSocketAddress) channel.receive(receiveBuffer);
+            if (source == null) return;
+            receiveBuffer.flip();
+            receivedPackets.increment();
 
-                        executor.submit(() -> handleMessage(packet));
+            Message message;
+            try {
+                message = decodeDatagram(receiveBuffer, source);
+                if (message == null) continue;
+            } catch (IOException e) {
+                System.err.println("Dropping malformed packet from " + source + ": " + e.getMessage());
+                continue;
+            }
+            executor.execute(() -> handleMessage(message, source));
+        }
+    }
 
-                    } catch (Exception e) {
-                        if (running) System.err.println("Error receiving packet: " + e.getMessage());
-                    }
-                }
-            });
-            executor.submit(this::startTCPListener);
+    // Kernel chia gói theo 4-tuple nguồn/đích cho các socket cùng port; mỗi shard tự decode và xử lý
+    // trên thread của nó. Response cho request của ta có thể về shard bất kỳ: KademliaRPC ghép theo requestId
+    // trong 1 bảng dùng chung nên không phụ thuộc shard nhận.
+    private void shardLoop(DatagramChannel shard) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(UDP_BUFFER_SIZE);
+        while (running) {
+            InetSocketAddress source;
+            try {
+                buffer.clear();
+                source = (InetSocketAddress) shard.receive(buffer);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (running) System.err.println("Error receiving packet: " + e.getMessage());
+                continue;
+            }
+            buffer.flip();
+            receivedPackets.increment();
 
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to start server", e);
+            Message message;
+            try {
+                message = decodeDatagram(buffer, source);
+                if (message == null) continue;
+            } catch (IOException e) {
+                System.err.println("Dropping malformed packet from " + source + ": " + e.getMessage());
+                continue;
+            }
+            handleMessage(message, source);
+        }
+    }
+
+    // null khi datagram là fragment chưa ghép đủ hoặc gói điều khiển (NACK/ACK) của fragmenter
+    private Message decodeDatagram(ByteBuffer datagram, InetSocketAddress source) throws IOException {
+        if (!datagram.hasRemaining()) throw new IOException("Empty datagram");
+        if (!UdpFragmenter.isFragmentPacket(datagram)) {
+            return MessageCodec.decode(datagram);
         }
+        byte[] frame = fragmenter.onPacket(datagram, source);
+        return frame == null ? null : MessageCodec.fromBytes(frame, 0, frame.length);
     }
+
     public int getHTTPPort() {
         return httpPort;
     }
-    private void handleMessage(DatagramPacket packet) {
+    public long getReceivedPackets() {
+        return receivedPackets.sum();
+    }
+    public long getDroppedPackets() {
+        return droppedPackets.get();
+    }
+    private void handleMessage(Message message, InetSocketAddress source) {
         try {
-            byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
-            Message message = Message.fromBytes(data);
-
-            System.out.println("← Received " + message.getType()
-                    + " from " + packet.getAddress() + ":" + packet.getPort());
-
             // ✅ Kiểm tra: Request hay Response?
             if (isResponse(message)) {
                 // Đây là response → forward cho RPC
@@ -83,80 +214,85 @@ public class KademliaServer {
             // ✅ Đây là request → xử lý tại đây
             int senderHttpPort = (message instanceof HttpAware httpMsg)
                     ? httpMsg.getHttpPort()
-                    : packet.getPort() % 2206 + 8082;
+                    : source.getPort() % 2206 + 8082;
 
-            Contact sender = new Contact(
+            Contact sender = node.getRoutingTable().touchContact(
                     message.getSenderId(),
-                    packet.getAddress(),
-                    packet.getPort(),
+                    source,
                     senderHttpPort
             );
+            node.observeCoordinate(sender, message.getCoordinate(), -1);
 
-            node.getRoutingTable().addContact(sender);
+            Message response = handleRequest(message);
+            if (response != null) {
+                sendMessage(response, source);
+            }
+        } catch (Exception e) {
+            System.err.println("Error handling message: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
 
-            Message response = null;
+    // Xử lý request DHT nhận qua UDP hoặc qua TCP (request lớn hơn ceiling fragment); null nếu không có response
+    private Message handleRequest(Message message) {
+        Message response = null;
 
-            switch (message.getType()) {
-                case PING -> {
-                    response = new PongMessage(node.getLocalNodeId(), message.getMessageId());
-                }
-                case STORE -> {
-                    StoreMessage storeMsg = (StoreMessage) message;
-                    NodeID key = storeMsg.getKey();
-                    byte[] value = storeMsg.getValue();
-                    if (key != null && value != null) {
-                        node.getDataStore().put(key, value);
-                        response = new StoreResponseMessage(node.getLocalNodeId(), message.getMessageId(), true);
-                    } else {
-                        response = new StoreResponseMessage(node.getLocalNodeId(), message.getMessageId(), false);
-                    }
-                }
-                case FIND_NODE -> {
-                    List<Contact> closest = node.getRoutingTable().findClosestContacts(
-                            ((FindNodeMessage) message).getTargetId(), KademliaNode.K);
-                    response = new FindNodeResponseMessage(
-                            node.getLocalNodeId(),
-                            message.getMessageId(),
-                            new ArrayList<>(closest)
-                    );
-                }
-                case FIND_VALUE -> {
-                    FindValueMessage fvMsg = (FindValueMessage) message;
-                    byte[] value = node.getDataStore().get(fvMsg.getKey());
-                    List<Contact> closest = null;
-                    if (value == null) {
-                        closest = node.getRoutingTable().findClosestContacts(
-                                fvMsg.getKey(), KademliaNode.K);
-                    }
-                    response = new FindValueResponseMessage(
-                            node.getLocalNodeId(),
-                            message.getMessageId(),
-                            value,
-                            closest
-                    );
-                }
-                case STORE_PIECE -> {
-                    handleStorePiece((StorePieceMessage) message, sender);
-                    return; // đã gửi response trong handleStorePiece
-                }
-                case GET_PIECE -> {
-                    handleGetPiece((GetPieceMessage) message, sender);
-                    return; // đã gửi response trong handleGetPiece
+        switch (message.getType()) {
+            case PING -> {
+                response = new PongMessage(node.getLocalNodeId(), message.getMessageId());
+            }
+            case STORE -> {
+                StoreMessage storeMsg = (StoreMessage) message;
+                NodeID key = storeMsg.getKey();
+                byte[] value = storeMsg.getValue();
+                long ttlMs = Math.min(storeMsg.getTtlMs(), DataStore.EXPIRATION_TIME);
+                if (key != null && value != null && ttlMs > 0 && node.getDataStore().put(key, value, ttlMs)) {
+                    node.getRepublisher().received(key);
+                    response = new StoreResponseMessage(node.getLocalNodeId(), message.getMessageId(), true);
+                } else {
+                    response = new StoreResponseMessage(node.getLocalNodeId(), message.getMessageId(), false);
                 }
-                case STORE_METADATA -> {
-                    handleStoreMetadata((StoreMetadataMessage) message, sender);
-                    return; // đã gửi response trong handleStoreMetadata
+            }
+            case FIND_NODE -> {
+                List<Contact> closest = node.getRoutingTable().findClosestContacts(
+                        ((FindNodeMessage) message).getTargetId(), KademliaNode.K);
+                response = new FindNodeResponseMessage(
+                        node.getLocalNodeId(),
+                        message.getMessageId(),
+                        new ArrayList<>(closest)
+                );
+            }
+            case FIND_VALUE -> {
+                FindValueMessage fvMsg = (FindValueMessage) message;
+                byte[] value = node.getDataStore().get(fvMsg.getKey());
+                List<Contact> closest = null;
+                if (value == null) {
+                    closest = node.getRoutingTable().findClosestContacts(
+                            fvMsg.getKey(), KademliaNode.K);
                 }
+                response = new FindValueResponseMessage(
+                        node.getLocalNodeId(),
+                        message.getMessageId(),
+                        value,
+                        closest
+                );
             }
-
-            if (response != null) {
-                sendMessage(response, packet.getAddress(), packet.getPort());
+            case ANNOUNCE_PEER -> {
+                AnnouncePeerMessage announce = (AnnouncePeerMessage) message;
+                boolean stored = node.getPeerStore().announce(announce.getInfoHash(), announce.getPeer());
+                response = new StoreResponseMessage(node.getLocalNodeId(), message.getMessageId(), stored);
+            }
+            case GET_PEERS -> {
+                NodeID infoHash = ((GetPeersMessage) message).getInfoHash();
+                response = new GetPeersResponseMessage(
+                        node.getLocalNodeId(),
+                        message.getMessageId(),
+                        node.getPeerStore().get(infoHash, PeerStore.MAX_RESPONSE),
+                        node.getRoutingTable().findClosestContacts(infoHash, KademliaNode.K)
+                );
             }
-
-        } catch (Exception e) {
-            System.err.println("Error handling message: " + e.getMessage());
-            e.printStackTrace();
         }
+        return response;
     }
 
     // ✅ Helper method
@@ -166,326 +302,346 @@ public class KademliaServer {
                 message.getType() == Message.MessageType.FIND_NODE_RESPONSE ||
                 message.getType() == Message.MessageType.FIND_VALUE_RESPONSE ||
                 message.getType() == Message.MessageType.GET_PIECES_RESPONSE||
-                message.getType() == Message.MessageType.STORE_METADATA_RESPONSE;
+                message.getType() == Message.MessageType.STORE_PIECES_RESPONSE ||
+                message.getType() == Message.MessageType.STORE_METADATA_RESPONSE ||
+                message.getType() == Message.MessageType.GET_PEERS_RESPONSE;
 
 
     }
 
-    private void sendMessage(Message message, InetAddress address, int port) {
+    // Encode thẳng vào buffer của pool rồi gửi qua channel, không tạo byte[] trung gian;
+    // message lớn hơn 1 datagram thì chia fragment, lớn hơn ceiling fragment thì gửi qua TCP tới cùng port
+    // (phía nhận chuyển cho RPC như response TCP khác)
+    private void sendMessage(Message message, InetSocketAddress target) throws IOException {
+        node.stamp(message);
+        int size = MessageCodec.encodedSize(message);
+        if (size > fragmenter.getCeiling()) {
+            node.getRPC().getTcpPool().sendOneWay(target, MessageCodec.toBytes(message));
+            return;
+        }
+        if (size > UdpFragmenter.FRAGMENT_THRESHOLD) {
+            fragmenter.send(MessageCodec.toBytes(message), target);
+            return;
+        }
+        ByteBuffer buffer = null;
         try {
-            byte[] data = message.toBytes();
-            DatagramPacket packet = new DatagramPacket(data, data.length, address, port);
-            socket.send(packet);
-        } catch (Exception e) {
-            System.err.println("Error sending message: " + e.getMessage());
+            buffer = sendPool.acquire();
+            MessageCodec.encode(message, buffer);
+            buffer.flip();
+            sendDatagram(buffer, target);
+        } catch (BufferOverflowException e) {
+            throw new IOException("Message too large for UDP: " + message.getType());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending " + message.getType());
+        } finally {
+            sendPool.release(buffer);
         }
     }
 
-    public void stop() {
-        running = false;
-        if (socket != null && !socket.isClosed()) socket.close();
-        executor.shutdown();
+    // Gửi 1 frame đã encode qua UDP, chia fragment nếu lớn hơn 1 datagram
+    public void sendFrame(byte[] frame, InetSocketAddress target) throws IOException {
+        if (frame.length <= UdpFragmenter.FRAGMENT_THRESHOLD) {
+            sendDatagram(ByteBuffer.wrap(frame), target);
+        } else {
+            fragmenter.send(frame, target);
+        }
     }
 
+    public UdpFragmenter getFragmenter() {
+        return fragmenter;
+    }
 
-        private void handleStorePiece(StorePieceMessage message, Contact sender) {
-            try {
-                String pieceKey = message.getPieceKey();
-                byte[] pieceData = message.getPieceData();
-
-                System.out.println("[Server] Received STORE_PIECE from " + sender.getIp() +
-                        " for key: " + pieceKey + " (" + pieceData.length + " bytes)");
-
-                // Store piece locally
-                node.getPieceManager().savePieceData(pieceKey, pieceData);
-
-                System.out.println("✅ [Server] Stored piece: " + pieceKey);
+    // Channel ở chế độ không chặn: khi socket buffer đầy gói bị bỏ, như mất gói UDP thông thường.
+    // Các shard cùng port nên gửi từ shard nào cũng được, xoay vòng để chia tải
+    public void sendDatagram(ByteBuffer datagram, InetSocketAddress target) throws IOException {
+        DatagramChannel out = shards.size() == 1
+                ? channel
+                : shards.get(Math.floorMod(nextSendShard.getAndIncrement(), shards.size()));
+        if (out.send(datagram, target) == 0) {
+            droppedPackets.incrementAndGet();
+        }
+    }
 
-                // Send success response
-                StorePieceResponseMessage response = new StorePieceResponseMessage(
-                        node.getLocalNodeId(),
-                        message.getMessageId(),
-                        true
-                );
+    public void stop() {
+        running = false;
+        reactor.close();
+        for (DatagramChannel shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException ignored) {}
+        }
+        try {
+            if (tcpServer != null) tcpServer.close();
+        } catch (IOException ignored) {}
+        for (TcpSession session : sessions) session.close();
+        reaper.shutdownNow();
+        fragmenter.shutdown();
+        executor.shutdown();
+        pieceExecutor.shutdown();
+    }
 
-                sendResponse(response, sender);
+    private void onAccept() throws IOException {
+        SocketChannel client;
+        while ((client = tcpServer.accept()) != null) {
+            client.socket().setTcpNoDelay(true);
+            TcpSession session = new TcpSession(reactor, client, new PeerConnectionHandler(), pieceExecutor);
+            sessions.add(session);
+            session.start();
+        }
+    }
 
-                // Update routing table
-                node.getRoutingTable().addContact(sender);
+    // Đóng kết nối nhàn rỗi quá lâu (trước đây là soTimeout của socket chặn)
+    private void reapIdleSessions() {
+        long now = System.currentTimeMillis();
+        for (TcpSession session : sessions) {
+            if (now - session.getLastActivity() > 2 * TcpConnectionPool.DEFAULT_IDLE_TIMEOUT_MS) {
+                session.close();
+            }
+        }
+    }
 
-            } catch (Exception e) {
-                System.err.println("❌ [Server] Failed to store piece: " + e.getMessage());
-                e.printStackTrace();
+    /**
+     * Xử lý 1 kết nối TCP từ peer. Frame được giao lần lượt trên hàng đợi của session (pieceExecutor);
+     * piece trong STORE_PIECE(S) được stream thẳng ra đĩa, các request khác chạy song song trên pieceExecutor
+     * và response được ghi theo thứ tự hoàn thành.
+     */
+    private class PeerConnectionHandler implements TcpSession.Listener {
+
+        // Kết nối TCP chỉ cho biết port nguồn tạm, không phải UDP port của peer: chỉ làm mới (lastSeen, httpPort
+        // nếu message có) contact đã có trong routing table với cùng IP, peer chưa biết thì không thêm; null nếu không có
+        private Contact touchSender(TcpSession session, Message message) {
+            Contact known = node.getRoutingTable().getContact(message.getSenderId());
+            if (known == null
+                    || !known.getAddress().getAddress().equals(session.getRemoteAddress().getAddress())) {
+                return null;
+            }
+            Contact sender = node.getRoutingTable().touchContact(
+                    message.getSenderId(),
+                    known.getAddress(),
+                    (message instanceof HttpAware h) ? h.getHttpPort() : -1
+            );
+            node.observeCoordinate(sender, message.getCoordinate(), -1);
+            return sender;
+        }
 
-                // Send failure response
+        @Override
+        public void onMessage(TcpSession session, Message request) {
+            Contact sender = touchSender(session, request);
+            pieceExecutor.execute(() -> {
                 try {
-                    StorePieceResponseMessage response = new StorePieceResponseMessage(
-                            node.getLocalNodeId(),
-                            message.getMessageId(),
-                            false
-                    );
-                    sendResponse(response, sender);
-                } catch (Exception ex) {
-                    System.err.println("Failed to send error response: " + ex.getMessage());
+                    if (zeroCopyPieces && request instanceof GetPieceMessage getMsg) {
+                        servePiece(getMsg.getMessageId(), getMsg.getPieceKey(), session);
+                        return;
+                    }
+                    if (request instanceof GetPiecesMessage batchMsg) {
+                        // Mỗi piece là 1 frame riêng cùng requestId, ghi ra ngay khi sẵn sàng
+                        for (String pieceKey : batchMsg.getPieceKeys()) {
+                            servePiece(request.getMessageId(), pieceKey, session);
+                        }
+                        return;
+                    }
+                    Message response = processTCPMessage(request, sender);
+                    if (response != null) {
+                        session.send(node.stamp(response).toBytes());
+                    }
+                } catch (Exception e) {
+                    System.err.println("❌ [TCP] Error handling " + request.getType() + ": " + e.getMessage());
                 }
-            }
+            });
         }
 
+        @Override
+        public TcpSession.PayloadSink onPayload(TcpSession session, Message header, int length) {
+            touchSender(session, header);
+            if (header instanceof StorePieceMessage storeMsg) {
+                return new StorePieceSink(session, storeMsg);
+            }
+            if (header instanceof StorePiecesMessage batchMsg) {
+                return new StorePiecesSink(session, batchMsg);
+            }
+            return null;
+        }
 
-        private void handleGetPiece(GetPieceMessage message, Contact sender) {
-            try {
-                String pieceKey = message.getPieceKey();
-
-                System.out.println("[Server] Received GET_PIECE from " + sender.getIp() +
-                        " for key: " + pieceKey);
-
-                // Load piece from local storage
-                byte[] pieceData = node.getPieceManager().loadPieceData(pieceKey);
-
-                if (pieceData != null) {
-                    System.out.println("✅ [Server] Found piece: " + pieceKey + " (" + pieceData.length + " bytes)");
-
-                    // Send piece data
-                    GetPieceResponseMessage response = new GetPieceResponseMessage(
-                            node.getLocalNodeId(),
-                            message.getMessageId(),
-                            pieceKey,
-                            pieceData
-                    );
-
-                    sendResponse(response, sender);
-                } else {
-                    System.out.println("⚠ [Server] Piece not found: " + pieceKey);
-
-                    // Send empty response
-                    GetPieceResponseMessage response = new GetPieceResponseMessage(
-                            node.getLocalNodeId(),
-                            message.getMessageId(),
-                            pieceKey,
-                            null
-                    );
-
-                    sendResponse(response, sender);
-                }
-
-                // Update routing table
-                node.getRoutingTable().addContact(sender);
+        @Override
+        public void onClose(TcpSession session) {
+            sessions.remove(session);
+        }
+    }
 
-            } catch (Exception e) {
-                System.err.println("❌ [Server] Error handling GET_PIECE: " + e.getMessage());
-                e.printStackTrace();
+    // Stream piece từ socket thẳng vào storage, SHA-1 được kiểm tra khi commit
+    private PieceStreamWriter openPieceWriter(String pieceKey, String pieceHash) {
+        try {
+            return node.getPieceManager().openPieceWriter(pieceKey, pieceHash);
+        } catch (IOException e) {
+            System.err.println("❌ [Server] Failed to store piece: " + e.getMessage());
+            return null;
+        }
+    }
 
-                // Send error response
-                try {
-                    GetPieceResponseMessage response = new GetPieceResponseMessage(
-                            node.getLocalNodeId(),
-                            message.getMessageId(),
-                            message.getPieceKey(),
-                            null
-                    );
-                    sendResponse(response, sender);
-                } catch (Exception ex) {
-                    System.err.println("Failed to send error response: " + ex.getMessage());
-                }
-            }
+    private static boolean commitPiece(PieceStreamWriter writer, String pieceKey) {
+        try (writer) {
+            return writer.commit();
+        } catch (IOException e) {
+            System.err.println("❌ [Server] Failed to commit piece " + pieceKey + ": " + e.getMessage());
+            return false;
         }
+    }
 
-        /**
-         * Handle STORE_METADATA request
-         */
-    private void handleStoreMetadata(StoreMetadataMessage message, Contact sender) {
+    private static void closeQuietly(PieceStreamWriter writer) {
+        if (writer == null) return;
         try {
-            TorrentFile metadata = message.getMetadata();
-
-            System.out.println("[Server] Received STORE_METADATA from " + sender.getIp() +
-                    " for file: " + metadata.getInfoHash());
+            writer.close();
+        } catch (IOException ignored) {}
+    }
 
-            // Store metadata locally
-            //
-            node.getMetadataStore().storeMetadata(metadata);
+    private class StorePieceSink implements TcpSession.PayloadSink {
+        private final TcpSession session;
+        private final StorePieceMessage message;
+        private final PieceStreamWriter writer;
 
-            System.out.println("✅ [Server] Stored metadata: " + metadata.getInfoHash());
+        StorePieceSink(TcpSession session, StorePieceMessage message) {
+            this.session = session;
+            this.message = message;
+            this.writer = openPieceWriter(message.getPieceKey(), message.getPieceHash());
+        }
 
-            // Send success response
-            StoreMetadataResponseMessage response = new StoreMetadataResponseMessage(
-                    node.getLocalNodeId(),
-                    message.getMessageId(),
-                    true
-            );
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            if (writer != null) writer.write(data, offset, length);
+        }
 
-            sendResponse(response, sender);
+        @Override
+        public void complete() {
+            boolean stored = writer != null && commitPiece(writer, message.getPieceKey());
+            session.send(MessageCodec.toBytes(node.stamp(
+                    new StorePieceResponseMessage(node.getLocalNodeId(), message.getMessageId(), stored))));
+        }
 
-            // Update routing table
-            node.getRoutingTable().addContact(sender);
+        @Override
+        public void abort() {
+            closeQuietly(writer);
+        }
+    }
 
-        } catch (Exception e) {
-            System.err.println("❌ [Server] Failed to store metadata: " + e.getMessage());
-            e.printStackTrace();
+    // Các piece nằm nối tiếp nhau trong payload theo đúng thứ tự key; tách theo danh sách độ dài
+    private class StorePiecesSink implements TcpSession.PayloadSink {
+        private final TcpSession session;
+        private final StorePiecesMessage message;
+        private final List<String> stored = new ArrayList<>();
+        private int index = -1;
+        private int remaining;
+        private PieceStreamWriter writer;
+
+        StorePiecesSink(TcpSession session, StorePiecesMessage message) {
+            this.session = session;
+            this.message = message;
+            advance();
+        }
 
-            // Send failure response
-            try {
-                StoreMetadataResponseMessage response = new StoreMetadataResponseMessage(
-                        node.getLocalNodeId(),
-                        message.getMessageId(),
-                        false
-                );
-                sendResponse(response, sender);
-            } catch (Exception ex) {
-                System.err.println("Failed to send error response: " + ex.getMessage());
+        // Chuyển sang piece kế tiếp (bỏ qua piece rỗng sau khi commit)
+        private void advance() {
+            while (remaining == 0 && index + 1 < message.getPieceKeys().size()) {
+                if (index >= 0) finishCurrent();
+                index++;
+                remaining = message.getPieceLengths()[index];
+                writer = openPieceWriter(message.getPieceKeys().get(index), message.getPieceHashes().get(index));
             }
         }
-    }
 
+        private void finishCurrent() {
+            String pieceKey = message.getPieceKeys().get(index);
+            if (writer != null && commitPiece(writer, pieceKey)) stored.add(pieceKey);
+            writer = null;
+        }
 
-//    private void sendResponse(Message response, Contact recipient) throws IOException {
-//        byte[] data = response.toBytes();
-//
-//        // Check if too large for UDP
-//        if (data.length > 60000) {
-//            System.out.println("⚠ Large response (" + data.length + " bytes), using TCP");
-//            sendViaTCP(response, recipient);
-//        } else {
-//            DatagramPacket packet = new DatagramPacket(
-//                    data,
-//                    data.length,
-//                    recipient.getAddress().getAddress(),
-//                    recipient.getAddress().getPort()
-//            );
-//            socket.send(packet);
-//            System.out.println("✅ Sent response to " + recipient.getIp());
-//        }
-//    }
-    private void sendResponse(Message response, Contact recipient) throws IOException {
-        byte[] data = response.toBytes();
-
-        // Chỉ gửi qua UDP
-        // TCP response đã được xử lý trong handleTCPConnection()
-        DatagramPacket packet = new DatagramPacket(
-                data,
-                data.length,
-                recipient.getAddress().getAddress(),
-                recipient.getAddress().getPort()
-        );
-        socket.send(packet);
-        System.out.println("✅ Sent UDP response to " + recipient.getIp());
-    }
-    private void sendViaTCP(Message response, Contact recipient) {
-        Socket tcp = null;
-        try {
-            String addr = recipient.getIp();
-            int tcpPort = recipient.getPort(); // port TCP của peer (bên kia lắng nghe ở đây)
-            System.out.println("📡 [Server->TCP] Connecting to " + addr + ":" + tcpPort + " to send response " + response.getType());
-
-            tcp = new Socket();
-            int connectTimeout = 10000; // ms
-            tcp.connect(new InetSocketAddress(addr, tcpPort), connectTimeout);
-            tcp.setSoTimeout(10000);
-
-            // Gửi bytes
-            byte[] outBytes = response.toBytes();
-            OutputStream out = tcp.getOutputStream();
-            out.write(outBytes);
-            out.flush();
-            tcp.shutdownOutput(); // báo bên kia đã gửi xong
-            System.out.println("📤 [Server->TCP] Sent " + outBytes.length + " bytes to " + recipient.getIp());
-
-            // (Tùy chọn) đọc dữ liệu trả lời (ack) nếu client trả về qua cùng kết nối
-            try (InputStream in = tcp.getInputStream();
-                 ByteArrayOutputStream buf = new ByteArrayOutputStream()) {
-                byte[] tmp = new byte[8192];
-                int len;
-                // đọc cho tới EOF (client sẽ shutdownOutput nếu có trả)
-                while ((len = in.read(tmp)) != -1) {
-                    buf.write(tmp, 0, len);
-                }
-                byte[] reply = buf.toByteArray();
-                if (reply.length > 0) {
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0 && remaining > 0) {
+                int take = Math.min(length, remaining);
+                if (writer != null) {
                     try {
-                        Message maybe = Message.fromBytes(reply);
-                        // Nếu reply là 1 response matching, forward cho RPC handler
-                        node.getRPC().handleResponse(maybe);
-                        System.out.println("⬅️ [Server->TCP] Received reply type " + maybe.getType() + " from " + recipient.getIp());
-                    } catch (Exception ex) {
-                        System.out.println("⚠ [Server->TCP] Received non-message or failed to parse reply: " + ex.getMessage());
+                        writer.write(data, offset, take);
+                    } catch (IOException e) {
+                        // Lỗi 1 piece không làm hỏng các piece còn lại trong batch
+                        System.err.println("❌ [Server] Failed to write piece " + message.getPieceKeys().get(index) + ": " + e.getMessage());
+                        closeQuietly(writer);
+                        writer = null;
                     }
                 }
-            } catch (SocketTimeoutException ste) {
-                // không có reply từ client — ok, đây không phải lỗi bắt buộc
-                System.out.println("⏱ [Server->TCP] No follow-up reply from " + recipient.getIp());
-            }
-
-        } catch (ConnectException ce) {
-            System.err.println("🚫 [Server->TCP] Cannot connect to " + recipient.getIp() + ":" + recipient.getPort() + " -> " + ce.getMessage());
-        } catch (SocketTimeoutException te) {
-            System.err.println("⏱ [Server->TCP] Timeout when connecting/reading from " + recipient.getIp() + ":" + recipient.getPort());
-        } catch (IOException ioe) {
-            System.err.println("❌ [Server->TCP] I/O error sending response to " + recipient.getIp() + ":" + recipient.getPort() + " -> " + ioe.getMessage());
-        } finally {
-            if (tcp != null && !tcp.isClosed()) {
-                try { tcp.close(); } catch (IOException ignored) {}
+                offset += take;
+                length -= take;
+                remaining -= take;
+                advance();
             }
         }
-    }
 
-    private void startTCPListener() {
-        try {
-            tcpServer = new ServerSocket(port);
-            System.out.println("🟢 Kademlia TCP server listening on port " + port);
-
-            while (running) {
-                Socket clientSocket = tcpServer.accept();
-                executor.submit(() -> handleTCPConnection(clientSocket));
-            }
+        @Override
+        public void complete() {
+            if (index >= 0) finishCurrent();
+            System.out.println("✅ [Server] Stored " + stored.size() + "/" + message.getPieceKeys().size()
+                    + " pieces from batch");
+            session.send(MessageCodec.toBytes(node.stamp(
+                    new StorePiecesResponseMessage(node.getLocalNodeId(), message.getMessageId(), stored))));
+        }
 
-        } catch (IOException e) {
-            if (running) {
-                System.err.println("❌ TCP listener error: " + e.getMessage());
-                e.printStackTrace();
-            }
+        @Override
+        public void abort() {
+            closeQuietly(writer);
         }
     }
-    private void handleTCPConnection(Socket socket) {
-        try (socket;
-             InputStream in = socket.getInputStream();
-             ByteArrayOutputStream buffer = new ByteArrayOutputStream()) {
-
-            byte[] tmp = new byte[8192];
-            int len;
-            while ((len = in.read(tmp)) != -1) {
-                buffer.write(tmp, 0, len);
-            }
-
-            byte[] data = buffer.toByteArray();
-            Message message = Message.fromBytes(data);
-
-            System.out.println("← [TCP] Received " + message.getType() + " (" + data.length + " bytes)");
-
-            // Xử lý message tương tự UDP
-            Contact sender = new Contact(
-                    message.getSenderId(),
-                    socket.getInetAddress(),
-                    port, // không cần UDP port ở đây
-                    (message instanceof HttpAware h) ? port : 0
-            );
 
-            node.getRoutingTable().addContact(sender);
+    // Ghi header GET_PIECES_RESPONSE rồi transferTo nội dung file piece, dữ liệu không đi qua heap
+    // (PIECE_ZERO_COPY=false: đọc piece vào heap và ghi cả frame như trước)
+    private void servePiece(long requestId, String pieceKey, TcpSession session) throws IOException {
+        File pieceFile = node.getPieceManager().getPieceFile(pieceKey);
+        GetPieceResponseMessage response = new GetPieceResponseMessage(
+                node.getLocalNodeId(), requestId, pieceKey, null);
+
+        if (!zeroCopyPieces && pieceFile != null) {
+            response = new GetPieceResponseMessage(node.getLocalNodeId(), requestId, pieceKey,
+                    node.getPieceManager().loadPieceData(pieceKey));
+            pieceFile = null;
+        }
+        FileChannel file = openPiece(pieceFile);
+        node.stamp(response);
+        if (file == null) {
+            session.send(response.toBytes());
+            return;
+        }
 
-            Message response = processTCPMessage(message, sender);
-            if (response != null) {
-                socket.getOutputStream().write(response.toBytes());
-                socket.shutdownOutput();
-            }
+        long size = file.size();
+        session.sendFile(MessageCodec.encodePieceResponseHeader(response, (int) size), file, size);
+    }
 
-        } catch (Exception e) {
-            System.err.println("❌ [TCP] Error handling connection: " + e.getMessage());
-            e.printStackTrace();
+    // File bị xóa/lỗi trước khi ghi header thì trả null để báo thiếu piece thay vì bỏ lửng request
+    private static FileChannel openPiece(File pieceFile) {
+        if (pieceFile == null) return null;
+        try {
+            return FileChannel.open(pieceFile.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            System.err.println("❌ [TCP] Failed to open piece " + pieceFile.getName() + ": " + e.getMessage());
+            return null;
         }
     }
+
     private Message processTCPMessage(Message message, Contact sender) throws IOException {
+        if (isResponse(message)) {
+            // GET_PIECES_RESPONSE, hoặc response UDP vượt ceiling fragment được gửi lại qua TCP
+            node.getRPC().handleResponse(message);
+            return null;
+        }
         switch (message.getType()) {
             case STORE_PIECE -> {
-                handleStorePiece((StorePieceMessage) message, sender);
-                return new StorePieceResponseMessage(node.getLocalNodeId(), message.getMessageId(), true);
+                StorePieceMessage storeMsg = (StorePieceMessage) message;
+                boolean success = true;
+                try {
+                    node.getPieceManager().savePieceData(storeMsg.getPieceKey(), storeMsg.getPieceData());
+                } catch (IOException e) {
+                    System.err.println("❌ [Server] Failed to store piece: " + e.getMessage());
+                    success = false;
+                }
+                return new StorePieceResponseMessage(node.getLocalNodeId(), message.getMessageId(), success);
             }
             case GET_PIECE -> {
                 byte[] pieceData = node.getPieceManager().loadPieceData(((GetPieceMessage) message).getPieceKey());
@@ -493,16 +649,14 @@ public class KademliaServer {
                         ((GetPieceMessage) message).getPieceKey(), pieceData);
             }
             case STORE_METADATA -> {
-                handleStoreMetadata((StoreMetadataMessage) message, sender);
+                node.getMetadataStore().storeMetadata(((StoreMetadataMessage) message).getMetadata());
                 return new StoreMetadataResponseMessage(node.getLocalNodeId(), message.getMessageId(), true);
             }
-            case GET_PIECES_RESPONSE -> {
-                node.getRPC().handleResponse(message);
-                return null;
-            }
             default -> {
-                System.out.println("⚠ [TCP] Unhandled message type: " + message.getType());
-                return null;
+                // STORE / FIND_VALUE... lớn hơn ceiling fragment được RPC gửi qua TCP: trả lời trên cùng kết nối
+                Message response = handleRequest(message);
+                if (response == null) System.out.println("⚠ [TCP] Unhandled message type: " + message.getType());
+                return response;
             }
         }
     }
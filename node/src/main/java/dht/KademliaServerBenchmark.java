@@ -0,0 +1,110 @@
+package dht;
+
+import core.*;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Đo số packet/giây mà KademliaServer xử lý: bắn PING liên tục, đếm PONG nhận về.
+ * Chạy lần lượt với từng số shard UDP (SO_REUSEPORT); mỗi client là 1 socket nguồn riêng
+ * để kernel chia gói sang các shard khác nhau.
+ * Chạy: HTTP_PORT=8080 DATA_PATH=/tmp/bench java dht.KademliaServerBenchmark [seconds] [window] [shards=1,2,4] [clients]
+ */
+public class KademliaServerBenchmark {
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int window = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        String[] shardCounts = (args.length > 2 ? args[2] : "1,2,4").split(",");
+        int clients = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+        System.out.println("cores=" + Runtime.getRuntime().availableProcessors() + " clients=" + clients);
+        int port = 9301;
+        for (String shardCount : shardCounts) {
+            int shards = Integer.parseInt(shardCount.trim());
+            double throughput = run(port++, shards, clients, seconds, window);
+            System.out.printf("shards=%d throughput: %,.0f packets/s (PING->PONG round-trips)%n", shards, throughput);
+        }
+        System.exit(0);
+    }
+
+    private static double run(int port, int shards, int clients, int seconds, int window) throws Exception {
+        KademliaNode node = new KademliaNode(port, shards);
+        node.start();
+        Thread.sleep(500);
+
+        InetSocketAddress target = new InetSocketAddress("127.0.0.1", port);
+        byte[] ping = new PingMessage(NodeID.fromHash("benchmark-client"), 8080).toBytes();
+
+        AtomicLong sent = new AtomicLong();
+        AtomicLong received = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        List<DatagramChannel> channels = new ArrayList<>();
+
+        for (int c = 0; c < clients; c++) {
+            DatagramChannel client = DatagramChannel.open();
+            client.bind(new InetSocketAddress("127.0.0.1", 0));
+            client.connect(target);
+            channels.add(client);
+            AtomicLong clientSent = new AtomicLong();
+            AtomicLong clientReceived = new AtomicLong();
+
+            Thread receiver = new Thread(() -> {
+                ByteBuffer in = ByteBuffer.allocateDirect(65535);
+                try {
+                    while (System.nanoTime() < deadline) {
+                        in.clear();
+                        client.receive(in);
+                        clientReceived.incrementAndGet();
+                        received.incrementAndGet();
+                    }
+                } catch (Exception ignored) {}
+            });
+            Thread sender = new Thread(() -> {
+                ByteBuffer out = ByteBuffer.wrap(ping);
+                long stalledSince = 0;
+                try {
+                    while (System.nanoTime() < deadline) {
+                        // Giữ tối đa "window" PING chưa có PONG để không làm tràn socket buffer;
+                        // gói bị mất thì sau 50ms coi như đã trả lời để cửa sổ không kẹt mãi
+                        if (clientSent.get() - clientReceived.get() >= window) {
+                            if (stalledSince == 0) stalledSince = System.nanoTime();
+                            if (System.nanoTime() - stalledSince > 50_000_000L) {
+                                clientSent.set(clientReceived.get());
+                            }
+                            Thread.yield();
+                            continue;
+                        }
+                        stalledSince = 0;
+                        out.rewind();
+                        client.write(out);
+                        clientSent.incrementAndGet();
+                        sent.incrementAndGet();
+                    }
+                } catch (Exception ignored) {}
+            });
+            receiver.setDaemon(true);
+            sender.setDaemon(true);
+            threads.add(receiver);
+            threads.add(sender);
+        }
+
+        long start = System.nanoTime();
+        threads.forEach(Thread::start);
+        Thread.sleep(seconds * 1000L);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("shards=%d sent=%d pong=%d server-received=%d server-dropped=%d%n",
+                node.getServer().getUdpShards(), sent.get(), received.get(),
+                node.getServer().getReceivedPackets(), node.getServer().getDroppedPackets());
+
+        for (DatagramChannel client : channels) client.close();
+        node.stop();
+        return received.get() / elapsed;
+    }
+}
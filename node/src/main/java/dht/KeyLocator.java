@@ -0,0 +1,101 @@
+package dht;
+
+import core.*;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Tìm node giữ replica cho nhiều key trong 1 lượt quét không gian ID thay vì 1 lookup cho mỗi key.
+ * Key được sắp theo giá trị nên các key liền nhau chung prefix dài; 1 node lookup cho key T trả về k node
+ * gần T nhất, tức mọi node trong bán kính d_K = d(T, node thứ k). Với key x kế tiếp, gọi ρ là khoảng cách
+ * tới node thứ count gần x nhất trong tập đó: nếu d(T, x) + ρ < d_K thì mọi node cách x dưới ρ đều nằm
+ * trong tập (XOR: d(T, n) ≤ d(T, x) + d(x, n)), nên count node đó chính là replica của x, không cần lookup mới.
+ * Chỉ khi điều kiện không thỏa mới lookup tiếp, lấy chính x làm target.
+ */
+public class KeyLocator {
+    private static final int REGIONS_CHECKED = 2; // thử lại vùng của vài lookup gần nhất
+
+    private final Function<NodeID, List<Contact>> lookup;
+    private final Contact self;
+    private final int k;
+    private int lookups;
+
+    // lookup: node lookup trả về k node gần target nhất; self được tính là 1 ứng viên replica
+    public KeyLocator(Function<NodeID, List<Contact>> lookup, Contact self, int k) {
+        this.lookup = lookup;
+        this.self = self;
+        this.k = k;
+    }
+
+    public Map<NodeID, List<Contact>> locate(Collection<NodeID> keys, int count) {
+        List<NodeID> sorted = new ArrayList<>(new HashSet<>(keys));
+        Collections.sort(sorted);
+
+        Map<NodeID, List<Contact>> replicas = new LinkedHashMap<>();
+        Deque<Region> regions = new ArrayDeque<>();
+        for (NodeID key : sorted) {
+            List<Contact> owners = null;
+            for (Region region : regions) {
+                owners = region.owners(key, count);
+                if (owners != null) break;
+            }
+            if (owners == null) {
+                Region region = new Region(key, lookup.apply(key));
+                lookups++;
+                regions.addFirst(region);
+                if (regions.size() > REGIONS_CHECKED) regions.removeLast();
+                owners = region.closest(key, count);
+            }
+            replicas.put(key, owners);
+        }
+        return replicas;
+    }
+
+    // Số node lookup đã chạy (cộng dồn qua các lần locate)
+    public int getLookups() {
+        return lookups;
+    }
+
+    // Kết quả 1 lookup: các node gần target nhất, đủ tin cậy trong bán kính radius (null = đã biết cả mạng)
+    private class Region {
+        private final NodeID target;
+        private final List<Contact> contacts;
+        private final BigInteger radius;
+
+        Region(NodeID target, List<Contact> found) {
+            this.target = target;
+            this.contacts = new ArrayList<>(found);
+            ClosestContacts closest = new ClosestContacts(target, k);
+            closest.offerAll(found);
+            this.radius = closest.size() < k ? null : distance(target, closest.farthest().getNodeId());
+            if (self != null && !found.contains(self)) contacts.add(self);
+        }
+
+        List<Contact> closest(NodeID key, int count) {
+            ClosestContacts closest = new ClosestContacts(key, count);
+            closest.offerAll(contacts);
+            return closest.toList();
+        }
+
+        // count node gần key nhất nếu chắc chắn đúng theo bán kính của vùng, ngược lại null
+        List<Contact> owners(NodeID key, int count) {
+            List<Contact> owners = closest(key, count);
+            if (radius == null) return owners;
+            if (owners.size() < count) return null;
+            BigInteger reach = distance(target, key).add(distance(key, owners.get(owners.size() - 1).getNodeId()));
+            return reach.compareTo(radius) < 0 ? owners : null;
+        }
+    }
+
+    private static BigInteger distance(NodeID a, NodeID b) {
+        byte[] xor = ByteBuffer.allocate(NodeID.ID_LENGTH)
+                .putLong(a.getHigh() ^ b.getHigh())
+                .putLong(a.getMiddle() ^ b.getMiddle())
+                .putInt(a.getLow() ^ b.getLow())
+                .array();
+        return new BigInteger(1, xor);
+    }
+}
@@ -0,0 +1,256 @@
+package dht;
+
+import core.*;
+
+import java.net.InetAddress;
+import java.util.*;
+
+/**
+ * Mô phỏng lookup trong 1 process (không có mạng): N node, mỗi node có RoutingTable thật chứa các node khác,
+ * RPC FIND_NODE được thay bằng gọi thẳng findClosestContacts của node đích.
+ *
+ * So sánh 3 cách chọn contact:
+ *   legacy     - nodeLookup cũ: TreeSet so theo độ dài bit của XOR, hỏi mọi contact mới nhận được
+ *   bit-length - lookup lặp α/K chuẩn nhưng shortlist vẫn so theo độ dài bit (contact cùng bucket bị coi là trùng)
+ *   xor        - lookup lặp α/K với XorDistanceComparator + ClosestContacts (heap K gần nhất)
+ * In số vòng (hop), số vòng tới khi gặp node gần nhất thật sự, số RPC và tỉ lệ K node gần nhất trong kết quả.
+ * Chạy: java dht.LookupSimulation [nodes] [lookups] [known contacts per node]
+ */
+public class LookupSimulation {
+    private static final int K = KademliaNode.K;
+    private static final int ALPHA = KademliaNode.ALPHA;
+
+    private final Map<NodeID, RoutingTable> tables = new HashMap<>();
+    private final List<Contact> contacts = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int known = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        LookupSimulation simulation = new LookupSimulation(nodes, known, new Random(7));
+        System.out.println("nodes=" + nodes + " known=" + known + " lookups=" + lookups + " K=" + K + " alpha=" + ALPHA);
+        simulation.run(lookups, new Random(11));
+    }
+
+    LookupSimulation(int nodes, int known, Random random) {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        for (int i = 0; i < nodes; i++) {
+            byte[] id = new byte[NodeID.ID_LENGTH];
+            random.nextBytes(id);
+            Contact contact = new Contact(new NodeID(id), loopback, 10_000 + i, -1);
+            contacts.add(contact);
+            tables.put(contact.getNodeId(), new RoutingTable(contact.getNodeId()));
+        }
+        // Mỗi node biết K hàng xóm gần nhất (như sau bootstrap) và "known" node ngẫu nhiên cho các bucket xa;
+        // bucket đầy thì contact vào replacement cache. Lookup phải đi nhiều hop mới tới vùng của target
+        for (Contact owner : contacts) {
+            RoutingTable table = tables.get(owner.getNodeId());
+            ClosestContacts neighbours = new ClosestContacts(owner.getNodeId(), K + 1);
+            neighbours.offerAll(contacts);
+            for (Contact neighbour : neighbours.toList()) table.addContact(neighbour);
+            for (int i = 0; i < known; i++) {
+                table.addContact(contacts.get(random.nextInt(contacts.size())));
+            }
+        }
+    }
+
+    void run(int lookups, Random random) {
+        Stats legacy = new Stats("legacy");
+        Stats bitLength = new Stats("bit-length");
+        Stats xor = new Stats("xor");
+
+        for (int i = 0; i < lookups; i++) {
+            Contact origin = contacts.get(random.nextInt(contacts.size()));
+            byte[] id = new byte[NodeID.ID_LENGTH];
+            random.nextBytes(id);
+            NodeID target = new NodeID(id);
+            List<NodeID> expected = trueClosest(target);
+
+            legacy.record(legacyLookup(origin, target, expected.get(0)), expected);
+            bitLength.record(iterativeLookup(origin, target, expected.get(0), false), expected);
+            xor.record(iterativeLookup(origin, target, expected.get(0), true), expected);
+        }
+        legacy.print();
+        bitLength.print();
+        xor.print();
+    }
+
+    // Lookup cũ của KademliaNode.nodeLookup
+    private Result legacyLookup(Contact origin, NodeID target, NodeID closestId) {
+        Result result = new Result(closestId);
+        Set<Contact> queried = new HashSet<>();
+        Set<Contact> toQuery = new HashSet<>(legacyClosest(tables.get(origin.getNodeId()), target, ALPHA));
+        TreeSet<Contact> closest = new TreeSet<>(bitLengthComparator(target));
+        closest.addAll(toQuery);
+        result.seen(toQuery);
+
+        while (!toQuery.isEmpty()) {
+            Set<Contact> next = new HashSet<>();
+            boolean asked = false;
+            for (Contact contact : toQuery) {
+                if (!queried.add(contact)) continue;
+                asked = true;
+                result.rpcs++;
+                for (Contact c : legacyClosest(tables.get(contact.getNodeId()), target, K)) {
+                    if (!queried.contains(c)) next.add(c);
+                }
+            }
+            if (asked) result.hops++;
+            result.seen(next);
+            toQuery = next;
+        }
+        result.found = new ArrayList<>(closest).subList(0, Math.min(K, closest.size()));
+        return result;
+    }
+
+    // Lookup lặp chuẩn: mỗi vòng hỏi ALPHA contact gần nhất chưa hỏi trong shortlist K
+    private Result iterativeLookup(Contact origin, NodeID target, NodeID closestId, boolean fullXor) {
+        Result result = new Result(closestId);
+        RoutingTable start = tables.get(origin.getNodeId());
+        Shortlist shortlist = fullXor ? new XorShortlist(target) : new BitLengthShortlist(target);
+        shortlist.offerAll(fullXor ? start.findClosestContacts(target, K) : legacyClosest(start, target, K));
+        result.seen(shortlist.sorted());
+        Set<Contact> queried = new HashSet<>();
+        boolean progress = true;
+
+        // Lookup theo vòng (bản đồng bộ trước IterativeLookup): vòng không có node gần hơn thì hỏi hết phần chưa hỏi của K
+        while (true) {
+            int limit = progress ? ALPHA : K;
+            List<Contact> sorted = shortlist.sorted();
+            List<Contact> round = new ArrayList<>();
+            for (Contact contact : sorted) {
+                if (round.size() == limit) break;
+                if (queried.add(contact)) round.add(contact);
+            }
+            if (round.isEmpty()) break;
+            Contact nearest = sorted.get(0);
+            result.hops++;
+            for (Contact contact : round) {
+                result.rpcs++;
+                RoutingTable remote = tables.get(contact.getNodeId());
+                List<Contact> returned = fullXor ? remote.findClosestContacts(target, K) : legacyClosest(remote, target, K);
+                for (Contact c : returned) {
+                    if (!c.getNodeId().equals(origin.getNodeId())) shortlist.offer(c);
+                }
+            }
+            List<Contact> after = shortlist.sorted();
+            progress = after.get(0) != nearest;
+            result.seen(after);
+        }
+        result.found = shortlist.sorted();
+        return result;
+    }
+
+    // findClosestContacts cũ: sort mọi contact theo độ dài bit rồi cắt
+    private static List<Contact> legacyClosest(RoutingTable table, NodeID target, int count) {
+        List<Contact> all = table.getAllContacts();
+        all.sort(bitLengthComparator(target));
+        return all.subList(0, Math.min(count, all.size()));
+    }
+
+    private static Comparator<Contact> bitLengthComparator(NodeID target) {
+        return (a, b) -> Integer.compare(a.getNodeId().getDistance(target), b.getNodeId().getDistance(target));
+    }
+
+    // K node gần target nhất trong toàn mạng, gần nhất đứng đầu
+    private List<NodeID> trueClosest(NodeID target) {
+        ClosestContacts closest = new ClosestContacts(target, K);
+        closest.offerAll(contacts);
+        List<NodeID> ids = new ArrayList<>();
+        for (Contact contact : closest.toList()) ids.add(contact.getNodeId());
+        return ids;
+    }
+
+    private interface Shortlist {
+        void offer(Contact contact);
+        List<Contact> sorted();
+
+        default void offerAll(List<Contact> contacts) {
+            for (Contact contact : contacts) offer(contact);
+        }
+    }
+
+    private static final class XorShortlist implements Shortlist {
+        private final ClosestContacts closest;
+
+        XorShortlist(NodeID target) {
+            this.closest = new ClosestContacts(target, K);
+        }
+
+        public void offer(Contact contact) { closest.offer(contact); }
+        public List<Contact> sorted() { return closest.toList(); }
+    }
+
+    // TreeSet theo độ dài bit: contact cùng độ dài bit với 1 phần tử có sẵn bị bỏ
+    private static final class BitLengthShortlist implements Shortlist {
+        private final TreeSet<Contact> closest;
+
+        BitLengthShortlist(NodeID target) {
+            this.closest = new TreeSet<>(bitLengthComparator(target));
+        }
+
+        public void offer(Contact contact) {
+            closest.add(contact);
+            if (closest.size() > K) closest.pollLast();
+        }
+
+        public List<Contact> sorted() { return new ArrayList<>(closest); }
+    }
+
+    private static final class Result {
+        private final NodeID closestId;
+        int hops;
+        int rpcs;
+        int hopsToClosest = -1; // vòng đầu tiên node gần nhất thật sự xuất hiện trong shortlist
+        List<Contact> found;
+
+        Result(NodeID closestId) {
+            this.closestId = closestId;
+        }
+
+        void seen(Collection<Contact> contacts) {
+            if (hopsToClosest >= 0) return;
+            for (Contact contact : contacts) {
+                if (contact.getNodeId().equals(closestId)) {
+                    hopsToClosest = hops;
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final class Stats {
+        private final String name;
+        private long hops, rpcs, lookups, correct, exactClosest, reachedClosest, hopsToClosest;
+
+        Stats(String name) {
+            this.name = name;
+        }
+
+        void record(Result result, List<NodeID> expected) {
+            lookups++;
+            hops += result.hops;
+            rpcs += result.rpcs;
+            Set<NodeID> found = new HashSet<>();
+            for (Contact contact : result.found) found.add(contact.getNodeId());
+            for (NodeID id : expected) {
+                if (found.contains(id)) correct++;
+            }
+            if (found.contains(expected.get(0))) exactClosest++;
+            if (result.hopsToClosest >= 0) {
+                reachedClosest++;
+                hopsToClosest += result.hopsToClosest;
+            }
+        }
+
+        void print() {
+            System.out.printf("%-10s hops %5.2f | hops-to-closest %5.2f (reached %5.1f%%) | rpcs %7.1f"
+                            + " | K-closest returned %5.1f%% | closest returned %5.1f%%%n",
+                    name, (double) hops / lookups,
+                    reachedClosest == 0 ? 0.0 : (double) hopsToClosest / reachedClosest,
+                    100.0 * reachedClosest / lookups, (double) rpcs / lookups,
+                    100.0 * correct / (lookups * K), 100.0 * exactClosest / lookups);
+        }
+    }
+}
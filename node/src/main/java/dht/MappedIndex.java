@@ -0,0 +1,226 @@
+package dht;
+
+import core.*;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Index key -> vị trí record trong ValueLog, là bảng băm địa chỉ mở (dò tuyến tính) nằm trong file map vào bộ nhớ:
+ * mở lại chỉ cần map file, không phải đọc hết log hay dựng lại bảng trên heap.
+ * Header ghi checkpoint (segment, offset): index phản ánh đúng log tới vị trí đó, phần log phía sau được
+ * replay lúc khởi động. Không thread-safe, ValueLog gọi trong lock của nó.
+ *
+ * <pre>
+ *   header 64B: i32 magic | i32 version | i64 capacity | i64 size | i64 tombstones | i64 cpSegment | i64 cpOffset
+ *   slot   48B: i64 high | i64 middle | i32 low | i32 state | i64 offset | i64 expiresAt | i32 segment | i32 length
+ * </pre>
+ */
+class MappedIndex implements AutoCloseable {
+    private static final int MAGIC = 0x44485449; // "DHTI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 48;
+    private static final long MIN_CAPACITY = 1 << 16;
+    private static final int EMPTY = 0, USED = 1, TOMBSTONE = 2;
+
+    private final Path file;
+    private Arena arena;
+    private MemorySegment map;
+    private long capacity;
+    private long size;
+    private long tombstones;
+
+    private MappedIndex(Path file) {
+        this.file = file;
+    }
+
+    // Mở index có sẵn; file không có hoặc hỏng thì tạo index rỗng (checkpoint = -1, phải replay toàn bộ log)
+    static MappedIndex open(Path file) throws IOException {
+        MappedIndex index = new MappedIndex(file);
+        if (Files.exists(file) && index.load()) return index;
+        index.create(file, MIN_CAPACITY);
+        return index;
+    }
+
+    private boolean load() throws IOException {
+        long length = Files.size(file);
+        if (length < HEADER_SIZE) return false;
+        mapFile(file, length);
+        long cap = map.get(ValueLayout.JAVA_LONG, 8);
+        if (map.get(ValueLayout.JAVA_INT, 0) != MAGIC || map.get(ValueLayout.JAVA_INT, 4) != VERSION
+                || Long.bitCount(cap) != 1 || length != HEADER_SIZE + cap * SLOT_SIZE) {
+            System.err.println("⚠ [MappedIndex] Invalid index file, rebuilding from log: " + file);
+            unmap();
+            return false;
+        }
+        capacity = cap;
+        size = map.get(ValueLayout.JAVA_LONG, 16);
+        tombstones = map.get(ValueLayout.JAVA_LONG, 24);
+        return true;
+    }
+
+    private void create(Path target, long cap) throws IOException {
+        unmap();
+        Files.deleteIfExists(target);
+        mapFile(target, HEADER_SIZE + cap * SLOT_SIZE); // map lớn hơn file thì file được nới, toàn byte 0 = slot EMPTY
+        capacity = cap;
+        size = 0;
+        tombstones = 0;
+        map.set(ValueLayout.JAVA_INT, 0, MAGIC);
+        map.set(ValueLayout.JAVA_INT, 4, VERSION);
+        map.set(ValueLayout.JAVA_LONG, 8, cap);
+        writeCounts();
+        setCheckpoint(-1, -1);
+    }
+
+    private void mapFile(Path target, long length) throws IOException {
+        arena = Arena.ofShared();
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, length, arena);
+        }
+    }
+
+    private void unmap() {
+        if (arena != null) arena.close();
+        arena = null;
+        map = null;
+    }
+
+    // Slot đang chứa key, -1 nếu không có
+    long find(NodeID key) {
+        long mask = capacity - 1;
+        for (long i = hash(key) & mask; ; i = (i + 1) & mask) {
+            long base = slotBase(i);
+            int state = map.get(ValueLayout.JAVA_INT, base + 20);
+            if (state == EMPTY) return -1;
+            if (state == USED && matches(base, key)) return i;
+        }
+    }
+
+    // Thêm / ghi đè vị trí của key
+    void put(NodeID key, int segment, long offset, int length, long expiresAt) throws IOException {
+        long slot = find(key);
+        if (slot < 0) {
+            if ((size + tombstones + 1) * 4 > capacity * 3) {
+                resize(size * 2 >= capacity ? capacity * 2 : capacity); // đầy vì tombstone thì chỉ dọn, không tăng
+            }
+            slot = freeSlot(key);
+            long base = slotBase(slot);
+            if (map.get(ValueLayout.JAVA_INT, base + 20) == TOMBSTONE) tombstones--;
+            map.set(ValueLayout.JAVA_LONG, base, key.getHigh());
+            map.set(ValueLayout.JAVA_LONG, base + 8, key.getMiddle());
+            map.set(ValueLayout.JAVA_INT, base + 16, key.getLow());
+            map.set(ValueLayout.JAVA_INT, base + 20, USED);
+            size++;
+            writeCounts();
+        }
+        long base = slotBase(slot);
+        map.set(ValueLayout.JAVA_LONG, base + 24, offset);
+        map.set(ValueLayout.JAVA_LONG, base + 32, expiresAt);
+        map.set(ValueLayout.JAVA_INT, base + 40, segment);
+        map.set(ValueLayout.JAVA_INT, base + 44, length);
+    }
+
+    boolean remove(NodeID key) {
+        long slot = find(key);
+        if (slot < 0) return false;
+        map.set(ValueLayout.JAVA_INT, slotBase(slot) + 20, TOMBSTONE);
+        size--;
+        tombstones++;
+        writeCounts();
+        return true;
+    }
+
+    NodeID key(long slot) {
+        long base = slotBase(slot);
+        return new NodeID(map.get(ValueLayout.JAVA_LONG, base), map.get(ValueLayout.JAVA_LONG, base + 8),
+                map.get(ValueLayout.JAVA_INT, base + 16));
+    }
+
+    long offset(long slot) { return map.get(ValueLayout.JAVA_LONG, slotBase(slot) + 24); }
+    long expiresAt(long slot) { return map.get(ValueLayout.JAVA_LONG, slotBase(slot) + 32); }
+    int segment(long slot) { return map.get(ValueLayout.JAVA_INT, slotBase(slot) + 40); }
+    int length(long slot) { return map.get(ValueLayout.JAVA_INT, slotBase(slot) + 44); }
+    boolean isUsed(long slot) { return map.get(ValueLayout.JAVA_INT, slotBase(slot) + 20) == USED; }
+    long capacity() { return capacity; }
+    long size() { return size; }
+
+    long checkpointSegment() { return map.get(ValueLayout.JAVA_LONG, 32); }
+    long checkpointOffset() { return map.get(ValueLayout.JAVA_LONG, 40); }
+
+    // Ghi index xuống đĩa rồi mới ghi checkpoint: checkpoint trên đĩa không bao giờ mới hơn nội dung index
+    void checkpoint(long segment, long offset) {
+        map.force();
+        setCheckpoint(segment, offset);
+        map.asSlice(0, HEADER_SIZE).force();
+    }
+
+    private void setCheckpoint(long segment, long offset) {
+        map.set(ValueLayout.JAVA_LONG, 32, segment);
+        map.set(ValueLayout.JAVA_LONG, 40, offset);
+    }
+
+    private void writeCounts() {
+        map.set(ValueLayout.JAVA_LONG, 16, size);
+        map.set(ValueLayout.JAVA_LONG, 24, tombstones);
+    }
+
+    // Chép các slot USED sang file mới dung lượng newCapacity, giữ nguyên checkpoint, rồi thay file cũ
+    private void resize(long newCapacity) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        MappedIndex resized = new MappedIndex(temp);
+        resized.create(temp, newCapacity);
+        for (long i = 0; i < capacity; i++) {
+            if (!isUsed(i)) continue;
+            long slot = resized.freeSlot(key(i));
+            MemorySegment.copy(map, slotBase(i), resized.map, slotBase(slot), SLOT_SIZE);
+        }
+        resized.size = size;
+        resized.writeCounts();
+        resized.checkpoint(checkpointSegment(), checkpointOffset());
+        resized.unmap();
+        unmap();
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        mapFile(file, HEADER_SIZE + newCapacity * SLOT_SIZE);
+        capacity = newCapacity;
+        tombstones = 0;
+    }
+
+    // Slot đầu tiên không USED trên dãy dò của key (key chưa có trong bảng)
+    private long freeSlot(NodeID key) {
+        long mask = capacity - 1;
+        for (long i = hash(key) & mask; ; i = (i + 1) & mask) {
+            if (map.get(ValueLayout.JAVA_INT, slotBase(i) + 20) != USED) return i;
+        }
+    }
+
+    private boolean matches(long base, NodeID key) {
+        return map.get(ValueLayout.JAVA_LONG, base) == key.getHigh()
+                && map.get(ValueLayout.JAVA_LONG, base + 8) == key.getMiddle()
+                && map.get(ValueLayout.JAVA_INT, base + 16) == key.getLow();
+    }
+
+    // Key là SHA-1 nên 64 bit đầu đã phân bố đều
+    private static long hash(NodeID key) {
+        long h = key.getHigh();
+        return h ^ (h >>> 29);
+    }
+
+    private static long slotBase(long slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    @Override
+    public void close() {
+        unmap();
+    }
+}
@@ -4,7 +4,9 @@ import bittorrent.TorrentFile;
 import core.*;
 
 import java.io.*;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 public abstract class Message implements Serializable {
     private static final long serialVersionUID = 1L;
 
@@ -17,36 +19,53 @@ public abstract class Message implements Serializable {
         FIND_PIECE,FIND_PIECES_RESPONSE,
         STORE_METADATA,STORE_METADATA_RESPONSE,
         GET_PIECE,GET_PIECES_RESPONSE,
+        GET_PIECES,STORE_PIECES,STORE_PIECES_RESPONSE,
+        ANNOUNCE_PEER, GET_PEERS, GET_PEERS_RESPONSE,
     }
 
-    protected final String messageId;
+    // Transaction id 64-bit: bắt đầu từ số ngẫu nhiên rồi tăng dần, 0 = chưa gán
+    private static final AtomicLong NEXT_ID = new AtomicLong(new SecureRandom().nextLong());
+
+    protected long messageId;
     protected final NodeID senderId;
     protected final MessageType type;
+    // Tọa độ Vivaldi của bên gửi, gắn lúc gửi (KademliaNode.stamp) và đi trong header mọi frame; null = không có
+    private VivaldiCoordinate coordinate;
 
     protected Message(MessageType type, NodeID senderId) {
         this.type = type;
         this.senderId = senderId;
-        this.messageId = UUID.randomUUID().toString();
     }
 
     public MessageType getType() { return type; }
     public NodeID getSenderId() { return senderId; }
-    public String getMessageId() { return messageId; }
+    // messageId được sinh khi cần: message decode từ wire sẽ nhận id của bên gửi
+    public long getMessageId() {
+        if (messageId == 0) messageId = nextMessageId();
+        return messageId;
+    }
+
+    void assignMessageId(long messageId) { this.messageId = messageId; }
+
+    public VivaldiCoordinate getCoordinate() { return coordinate; }
+    public void setCoordinate(VivaldiCoordinate coordinate) { this.coordinate = coordinate; }
+
+    static long nextMessageId() {
+        long id;
+        do {
+            id = NEXT_ID.incrementAndGet();
+        } while (id == 0);
+        return id;
+    }
 
-    // Serialize message to bytes
+    // Serialize message to bytes (binary wire format, xem MessageCodec)
     public byte[] toBytes() throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(bos);
-        oos.writeObject(this);
-        oos.flush();
-        return bos.toByteArray();
+        return MessageCodec.toBytes(this);
     }
 
     // Deserialize message from bytes
-    public static Message fromBytes(byte[] data) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
-        ObjectInputStream ois = new ObjectInputStream(bis);
-        return (Message) ois.readObject();
+    public static Message fromBytes(byte[] data) throws IOException {
+        return MessageCodec.fromBytes(data, 0, data.length);
     }
 }
 
@@ -67,67 +86,53 @@ class PingMessage extends Message implements HttpAware {
 
 // PONG Response
 class PongMessage extends Message {
-    private final String requestId;
+    private final long requestId;
 
-    public PongMessage(NodeID senderId, String requestId) {
+    public PongMessage(NodeID senderId, long requestId) {
         super(MessageType.PONG, senderId);
         this.requestId = requestId;
     }
 
-    public String getRequestId() { return requestId; }
+    public long getRequestId() { return requestId; }
 }
 
 // STORE Message
 class StoreMessage extends Message implements HttpAware {
     private final NodeID key;
     private final byte[] value;
+    private final long ttlMs; // thời gian sống còn lại: bản chép lại (republish) không được sống lâu hơn bản gốc
     private final int httpPort;
     public StoreMessage(NodeID senderId, NodeID key, byte[] value,int httpPort) {
+        this(senderId, key, value, DataStore.EXPIRATION_TIME, httpPort);
+    }
+
+    public StoreMessage(NodeID senderId, NodeID key, byte[] value, long ttlMs, int httpPort) {
         super(MessageType.STORE, senderId);
         this.key = key;
         this.value = value;
+        this.ttlMs = ttlMs;
         this.httpPort = httpPort;
     }
 
     public NodeID getKey() { return key; }
     public byte[] getValue() { return value; }
-    @Override
-    public byte[] toBytes() {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-             ObjectOutputStream out = new ObjectOutputStream(bos)) {
-            out.writeObject(this);
-            return bos.toByteArray();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
+    public long getTtlMs() { return ttlMs; }
     @Override
     public int getHttpPort() { return httpPort; }
-    // -----------------------------
-    // Deserialize từ byte[]
-    // -----------------------------
-    public static StoreMessage fromBytes(byte[] data) {
-        try (ByteArrayInputStream bis = new ByteArrayInputStream(data);
-             ObjectInputStream in = new ObjectInputStream(bis)) {
-            return (StoreMessage) in.readObject();
-        } catch (IOException | ClassNotFoundException e) {
-            throw new RuntimeException(e);
-        }
-    }
 }
 
 // STORE Response
 class StoreResponseMessage extends Message {
-    private final String requestId;
+    private final long requestId;
     private final boolean success;
 
-    public StoreResponseMessage(NodeID senderId, String requestId, boolean success) {
+    public StoreResponseMessage(NodeID senderId, long requestId, boolean success) {
         super(MessageType.STORE_RESPONSE, senderId);
         this.requestId = requestId;
         this.success = success;
     }
 
-    public String getRequestId() { return requestId; }
+    public long getRequestId() { return requestId; }
     public boolean isSuccess() { return success; }
 }
 
@@ -145,16 +150,16 @@ class FindNodeMessage extends Message {
 
 // FIND_NODE Response
 class FindNodeResponseMessage extends Message {
-    private final String requestId;
+    private final long requestId;
     private final List<Contact> contacts;
 
-    public FindNodeResponseMessage(NodeID senderId, String requestId, List<Contact> contacts) {
+    public FindNodeResponseMessage(NodeID senderId, long requestId, List<Contact> contacts) {
         super(MessageType.FIND_NODE_RESPONSE, senderId);
         this.requestId = requestId;
         this.contacts = contacts;
     }
 
-    public String getRequestId() { return requestId; }
+    public long getRequestId() { return requestId; }
     public List<Contact> getContacts() { return contacts; }
 }
 
@@ -172,11 +177,11 @@ class FindValueMessage extends Message {
 
 // FIND_VALUE Response
 class FindValueResponseMessage extends Message {
-    private final String requestId;
+    private final long requestId;
     private final byte[] value;
     private final List<Contact> contacts;
 
-    public FindValueResponseMessage(NodeID senderId, String requestId,
+    public FindValueResponseMessage(NodeID senderId, long requestId,
                                     byte[] value, List<Contact> contacts) {
         super(MessageType.FIND_VALUE_RESPONSE, senderId);
         this.requestId = requestId;
@@ -184,7 +189,7 @@ class FindValueResponseMessage extends Message {
         this.contacts = contacts;
     }
 
-    public String getRequestId() { return requestId; }
+    public long getRequestId() { return requestId; }
     public byte[] getValue() { return value; }
     public List<Contact> getContacts() { return contacts; }
     public boolean hasValue() { return value != null; }
@@ -198,17 +203,24 @@ class StorePieceMessage extends Message {
     private String pieceKey;
     private byte[] pieceData;
     private int httpPort;
+    private String pieceHash; // SHA-1 hex mong đợi, null = không kiểm tra
 
     public StorePieceMessage(NodeID senderId, String pieceKey, byte[] pieceData, int httpPort) {
+        this(senderId, pieceKey, pieceData, httpPort, null);
+    }
+
+    public StorePieceMessage(NodeID senderId, String pieceKey, byte[] pieceData, int httpPort, String pieceHash) {
         super(MessageType.STORE_PIECE,senderId);
         this.pieceKey = pieceKey;
         this.pieceData = pieceData;
         this.httpPort = httpPort;
+        this.pieceHash = pieceHash;
     }
 
     public String getPieceKey() { return pieceKey; }
     public byte[] getPieceData() { return pieceData; }
     public int getHttpPort() { return httpPort; }
+    public String getPieceHash() { return pieceHash; }
 
     @Override
     public String toString() {
@@ -220,16 +232,16 @@ class StorePieceMessage extends Message {
  class StorePieceResponseMessage extends Message {
     private static final long serialVersionUID = 1L;
 
-    private String requestId;
+    private long requestId;
     private boolean success;
 
-    public StorePieceResponseMessage(NodeID senderId, String requestId, boolean success) {
+    public StorePieceResponseMessage(NodeID senderId, long requestId, boolean success) {
         super(MessageType.STORE_PIECE_RESPONSE,senderId);
         this.requestId = requestId;
         this.success = success;
     }
 
-    public String getRequestId() { return requestId; }
+    public long getRequestId() { return requestId; }
     public boolean isSuccess() { return success; }
 
     @Override
@@ -267,18 +279,18 @@ class GetPieceMessage extends Message {
  class GetPieceResponseMessage extends Message {
     private static final long serialVersionUID = 1L;
 
-    private String requestId;
+    private long requestId;
     private String pieceKey;
     private byte[] pieceData;
 
-    public GetPieceResponseMessage(NodeID senderId, String requestId, String pieceKey, byte[] pieceData) {
+    public GetPieceResponseMessage(NodeID senderId, long requestId, String pieceKey, byte[] pieceData) {
         super(MessageType.GET_PIECES_RESPONSE,senderId);
         this.requestId = requestId;
         this.pieceKey = pieceKey;
         this.pieceData = pieceData;
     }
 
-    public String getRequestId() { return requestId; }
+    public long getRequestId() { return requestId; }
     public String getPieceKey() { return pieceKey; }
     public byte[] getPieceData() { return pieceData; }
     public boolean hasData() { return pieceData != null && pieceData.length > 0; }
@@ -319,20 +331,165 @@ class StoreMetadataMessage extends Message {
 class StoreMetadataResponseMessage extends Message {
     private static final long serialVersionUID = 1L;
 
-    private String requestId;
+    private long requestId;
     private boolean success;
 
-    public StoreMetadataResponseMessage(NodeID senderId, String requestId, boolean success) {
+    public StoreMetadataResponseMessage(NodeID senderId, long requestId, boolean success) {
         super(MessageType.STORE_METADATA_RESPONSE,senderId);
         this.requestId = requestId;
         this.success = success;
     }
 
-    public String getRequestId() { return requestId; }
+    public long getRequestId() { return requestId; }
     public boolean isSuccess() { return success; }
 
     @Override
     public String toString() {
         return "StoreMetadataResponseMessage{requestId=" + requestId + ", success=" + success + "}";
     }
-}
\ No newline at end of file
+}
+
+// ==================== GetPiecesMessage ====================
+// Xin nhiều piece trong 1 RPC; mỗi piece được trả về bằng 1 GetPieceResponseMessage cùng requestId
+
+class GetPiecesMessage extends Message {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> pieceKeys;
+    private final int httpPort;
+
+    public GetPiecesMessage(NodeID senderId, List<String> pieceKeys, int httpPort) {
+        super(MessageType.GET_PIECES, senderId);
+        this.pieceKeys = pieceKeys;
+        this.httpPort = httpPort;
+    }
+
+    public List<String> getPieceKeys() { return pieceKeys; }
+    public int getHttpPort() { return httpPort; }
+
+    @Override
+    public String toString() {
+        return "GetPiecesMessage{keys=" + pieceKeys.size() + "}";
+    }
+}
+
+// ==================== StorePiecesMessage ====================
+// Đẩy nhiều piece trong 1 frame: danh sách key/hash/độ dài, sau đó là dữ liệu các piece nối tiếp nhau
+
+class StorePiecesMessage extends Message {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> pieceKeys;
+    private final List<String> pieceHashes; // phần tử null = không kiểm tra
+    private final int[] pieceLengths;
+    private final List<byte[]> pieceData;   // null khi dữ liệu được stream từ socket
+    private final int httpPort;
+
+    public StorePiecesMessage(NodeID senderId, List<String> pieceKeys, List<String> pieceHashes,
+                              List<byte[]> pieceData, int httpPort) {
+        this(senderId, pieceKeys, pieceHashes, lengthsOf(pieceData), pieceData, httpPort);
+    }
+
+    StorePiecesMessage(NodeID senderId, List<String> pieceKeys, List<String> pieceHashes,
+                       int[] pieceLengths, List<byte[]> pieceData, int httpPort) {
+        super(MessageType.STORE_PIECES, senderId);
+        this.pieceKeys = pieceKeys;
+        this.pieceHashes = pieceHashes;
+        this.pieceLengths = pieceLengths;
+        this.pieceData = pieceData;
+        this.httpPort = httpPort;
+    }
+
+    private static int[] lengthsOf(List<byte[]> pieceData) {
+        int[] lengths = new int[pieceData.size()];
+        for (int i = 0; i < lengths.length; i++) lengths[i] = pieceData.get(i).length;
+        return lengths;
+    }
+
+    public List<String> getPieceKeys() { return pieceKeys; }
+    public List<String> getPieceHashes() { return pieceHashes; }
+    public int[] getPieceLengths() { return pieceLengths; }
+    public List<byte[]> getPieceData() { return pieceData; }
+    public int getHttpPort() { return httpPort; }
+
+    public long getTotalLength() {
+        long total = 0;
+        for (int length : pieceLengths) total += length;
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "StorePiecesMessage{keys=" + pieceKeys.size() + ", size=" + getTotalLength() + " bytes}";
+    }
+}
+
+class StorePiecesResponseMessage extends Message {
+    private static final long serialVersionUID = 1L;
+
+    private final long requestId;
+    private final List<String> storedKeys;
+
+    public StorePiecesResponseMessage(NodeID senderId, long requestId, List<String> storedKeys) {
+        super(MessageType.STORE_PIECES_RESPONSE, senderId);
+        this.requestId = requestId;
+        this.storedKeys = storedKeys;
+    }
+
+    public long getRequestId() { return requestId; }
+    public List<String> getStoredKeys() { return storedKeys; }
+
+    @Override
+    public String toString() {
+        return "StorePiecesResponseMessage{requestId=" + requestId + ", stored=" + storedKeys.size() + "}";
+    }
+}
+
+// ANNOUNCE_PEER: thêm peer (địa chỉ compact, xem PeerStore) vào tập peer của infoHash; trả lời bằng STORE_RESPONSE
+class AnnouncePeerMessage extends Message implements HttpAware {
+    private final NodeID infoHash;
+    private final byte[] peer;
+    private final int httpPort;
+
+    public AnnouncePeerMessage(NodeID senderId, NodeID infoHash, byte[] peer, int httpPort) {
+        super(MessageType.ANNOUNCE_PEER, senderId);
+        this.infoHash = infoHash;
+        this.peer = peer;
+        this.httpPort = httpPort;
+    }
+
+    public NodeID getInfoHash() { return infoHash; }
+    public byte[] getPeer() { return peer; }
+    @Override
+    public int getHttpPort() { return httpPort; }
+}
+
+// GET_PEERS Message
+class GetPeersMessage extends Message {
+    private final NodeID infoHash;
+
+    public GetPeersMessage(NodeID senderId, NodeID infoHash) {
+        super(MessageType.GET_PEERS, senderId);
+        this.infoHash = infoHash;
+    }
+
+    public NodeID getInfoHash() { return infoHash; }
+}
+
+// GET_PEERS Response: mẫu peer node này đang giữ, kèm contact gần infoHash để lookup đi tiếp tới các replica khác
+class GetPeersResponseMessage extends Message {
+    private final long requestId;
+    private final List<byte[]> peers;
+    private final List<Contact> contacts;
+
+    public GetPeersResponseMessage(NodeID senderId, long requestId, List<byte[]> peers, List<Contact> contacts) {
+        super(MessageType.GET_PEERS_RESPONSE, senderId);
+        this.requestId = requestId;
+        this.peers = peers;
+        this.contacts = contacts;
+    }
+
+    public long getRequestId() { return requestId; }
+    public List<byte[]> getPeers() { return peers; }
+    public List<Contact> getContacts() { return contacts; }
+}
@@ -0,0 +1,772 @@
+package dht;
+
+import bittorrent.TorrentFile;
+import core.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Binary wire format for {@link Message}.
+ *
+ * Frame layout (big-endian):
+ * <pre>
+ *   u32 length     // bytes following this field
+ *   u8  version
+ *   u8  type       // MessageType ordinal
+ *   u64 messageId  // transaction id (Message.nextMessageId); response mang lại id này làm requestId
+ *   20B senderId
+ *   16B coordinate // tọa độ Vivaldi của bên gửi: f32 x, f32 y, f32 height, f32 error (error NaN = không có)
+ *   ... body       // per type, see encodeBody/decodeBody
+ * </pre>
+ *
+ * Với STORE_PIECE, STORE_PIECES và GET_PIECES_RESPONSE, dữ liệu piece luôn là trường cuối cùng
+ * để bên nhận có thể stream thẳng ra đĩa (xem decodeStreamingFrame).
+ */
+public final class MessageCodec {
+    public static final byte VERSION = 6;
+    static final int COORDINATE_SIZE = 16;
+    public static final int HEADER_SIZE = 4 + 1 + 1 + 8 + NodeID.ID_LENGTH + COORDINATE_SIZE;
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    private static final int NULL_LENGTH = -1;
+    private static final int NULL_COUNT = 0xFFFF;
+    private static final HexFormat HEX = HexFormat.of();
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+
+    private MessageCodec() {}
+
+    // Encode message vào buffer tại position hiện tại, trả về số byte đã ghi
+    public static int encode(Message message, ByteBuffer out) {
+        int start = out.position();
+        out.putInt(0); // placeholder cho length
+        out.put(VERSION);
+        out.put((byte) message.getType().ordinal());
+        putId(out, message.getMessageId());
+        putNodeId(out, message.getSenderId());
+        putCoordinate(out, message.getCoordinate());
+        encodeBody(message, out);
+
+        int written = out.position() - start;
+        out.putInt(start, written - 4);
+        return written;
+    }
+
+    // Decode 1 frame từ buffer, position được đưa tới cuối frame
+    public static Message decode(ByteBuffer in) throws IOException {
+        try {
+            int length = in.getInt();
+            if (length < HEADER_SIZE - 4 || length > in.remaining()) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            int end = in.position() + length;
+
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported wire version: " + version);
+            }
+            int tag = in.get() & 0xFF;
+            if (tag >= TYPES.length) {
+                throw new IOException("Unknown message type tag: " + tag);
+            }
+            long messageId = getId(in);
+            NodeID senderId = getNodeId(in);
+            VivaldiCoordinate coordinate = getCoordinate(in);
+
+            Message message = decodeBody(TYPES[tag], senderId, in);
+            message.assignMessageId(messageId);
+            message.setCoordinate(coordinate);
+
+            if (in.position() != end) {
+                throw new IOException("Trailing bytes in " + TYPES[tag] + " frame");
+            }
+            return message;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed message frame", e);
+        }
+    }
+
+    // Kích thước chính xác của frame, dùng để cấp phát buffer vừa đủ
+    public static int encodedSize(Message message) {
+        return HEADER_SIZE + bodySize(message);
+    }
+
+    public static byte[] toBytes(Message message) {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedSize(message));
+        encode(message, buffer);
+        return buffer.array();
+    }
+
+    public static Message fromBytes(byte[] data, int offset, int length) throws IOException {
+        return decode(ByteBuffer.wrap(data, offset, length));
+    }
+
+    // Header của GET_PIECES_RESPONSE tới hết trường độ dài piece; dataLength byte piece được ghi
+    // ngay sau đó (vd. FileChannel.transferTo) nên frame giống hệt khi encode cả message
+    public static ByteBuffer encodePieceResponseHeader(GetPieceResponseMessage message, int dataLength) {
+        int headerSize = HEADER_SIZE + 8 + stringSize(message.getPieceKey()) + 4;
+        ByteBuffer out = ByteBuffer.allocate(headerSize);
+        out.putInt(headerSize - 4 + dataLength);
+        out.put(VERSION);
+        out.put((byte) message.getType().ordinal());
+        putId(out, message.getMessageId());
+        putNodeId(out, message.getSenderId());
+        putCoordinate(out, message.getCoordinate());
+        putId(out, message.getRequestId());
+        putString(out, message.getPieceKey());
+        out.putInt(dataLength);
+        out.flip();
+        return out;
+    }
+
+    // Header của STORE_PIECES tới hết trường tổng độ dài; dữ liệu các piece được ghi nối tiếp
+    // ngay sau đó theo đúng thứ tự key nên không cần gom cả batch vào một mảng
+    public static byte[] encodeStorePiecesHeader(StorePiecesMessage message) {
+        int headerSize = HEADER_SIZE + storePiecesHeaderSize(message);
+        ByteBuffer out = ByteBuffer.allocate(headerSize);
+        out.putInt(headerSize - 4 + (int) message.getTotalLength());
+        out.put(VERSION);
+        out.put((byte) message.getType().ordinal());
+        putId(out, message.getMessageId());
+        putNodeId(out, message.getSenderId());
+        putCoordinate(out, message.getCoordinate());
+        putStorePiecesHeader(out, message);
+        return out.array();
+    }
+
+    /**
+     * Tách 1 frame từ buffer đọc của kết nối TCP không chặn; trả null (position giữ nguyên) khi buffer
+     * chưa chứa đủ. Với STORE_PIECE / STORE_PIECES / GET_PIECES_RESPONSE chỉ cần đủ phần header:
+     * nếu hasPayload(), getPayloadLength() byte dữ liệu piece theo ngay sau và bên gọi tự chuyển tiếp
+     * (vd. thẳng ra đĩa) trước khi tách frame kế tiếp.
+     */
+    public static StreamedFrame decodeStreamingFrame(ByteBuffer in) throws IOException {
+        int start = in.position();
+        if (in.remaining() < 6) return null;
+
+        int length = in.getInt(start);
+        if (length < HEADER_SIZE - 4 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte version = in.get(start + 4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported wire version: " + version);
+        }
+        int tag = in.get(start + 5) & 0xFF;
+        if (tag >= TYPES.length) {
+            throw new IOException("Unknown message type tag: " + tag);
+        }
+        Message.MessageType type = TYPES[tag];
+
+        if (!hasStreamedPayload(type)) {
+            if (in.remaining() < 4 + length) return null;
+            return new StreamedFrame(decode(in), -1);
+        }
+
+        try {
+            in.position(start + 6);
+            long messageId = getId(in);
+            NodeID sender = getNodeId(in);
+            VivaldiCoordinate coordinate = getCoordinate(in);
+
+            Message message;
+            if (type == Message.MessageType.STORE_PIECE) {
+                String pieceKey = getString(in);
+                int httpPort = getPort(in);
+                message = new StorePieceMessage(sender, pieceKey, null, httpPort, getHash(in));
+            } else if (type == Message.MessageType.STORE_PIECES) {
+                int httpPort = getPort(in);
+                int count = in.getShort() & 0xFFFF;
+                List<String> keys = new ArrayList<>(count);
+                List<String> hashes = new ArrayList<>(count);
+                int[] lengths = new int[count];
+                for (int i = 0; i < count; i++) {
+                    keys.add(getString(in));
+                    hashes.add(getHash(in));
+                    lengths[i] = in.getInt();
+                }
+                message = new StorePiecesMessage(sender, keys, hashes, lengths, null, httpPort);
+            } else {
+                long requestId = getId(in);
+                message = new GetPieceResponseMessage(sender, requestId, getString(in), null);
+            }
+            message.assignMessageId(messageId);
+            message.setCoordinate(coordinate);
+
+            int payloadLength = in.getInt();
+            int expected;
+            if (message instanceof StorePiecesMessage m) {
+                // bodySize của STORE_PIECES đã tính cả dữ liệu theo danh sách độ dài
+                if (payloadLength != m.getTotalLength()) {
+                    throw new IOException("STORE_PIECES total " + payloadLength + " != sum of piece lengths");
+                }
+                expected = encodedSize(message) - 4;
+            } else {
+                expected = encodedSize(message) - 4 + Math.max(payloadLength, 0);
+            }
+            if (payloadLength < NULL_LENGTH || expected != length) {
+                throw new IOException("Invalid " + type + " payload length: " + payloadLength);
+            }
+            return new StreamedFrame(message, payloadLength);
+        } catch (BufferUnderflowException e) {
+            in.position(start);
+            return null;
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed " + type + " header", e);
+        }
+    }
+
+    public static boolean hasStreamedPayload(Message.MessageType type) {
+        return type == Message.MessageType.STORE_PIECE
+                || type == Message.MessageType.STORE_PIECES
+                || type == Message.MessageType.GET_PIECES_RESPONSE;
+    }
+
+    // Gắn lại dữ liệu piece vào message header khi bên nhận không stream payload
+    public static Message withPayload(Message header, byte[] data) {
+        Message message;
+        if (header instanceof StorePieceMessage m) {
+            message = new StorePieceMessage(m.getSenderId(), m.getPieceKey(), data, m.getHttpPort(), m.getPieceHash());
+        } else if (header instanceof GetPieceResponseMessage m) {
+            message = new GetPieceResponseMessage(m.getSenderId(), m.getRequestId(), m.getPieceKey(), data);
+        } else if (header instanceof StorePiecesMessage m) {
+            message = new StorePiecesMessage(m.getSenderId(), m.getPieceKeys(), m.getPieceHashes(),
+                    m.getPieceLengths(), splitPieces(data, m.getPieceLengths()), m.getHttpPort());
+        } else {
+            return header;
+        }
+        message.assignMessageId(header.getMessageId());
+        return message;
+    }
+
+    private static List<byte[]> splitPieces(byte[] data, int[] lengths) {
+        List<byte[]> pieces = new ArrayList<>(lengths.length);
+        int offset = 0;
+        for (int length : lengths) {
+            pieces.add(Arrays.copyOfRange(data, offset, offset + length));
+            offset += length;
+        }
+        return pieces;
+    }
+
+    public static class StreamedFrame {
+        private final Message message;
+        private final int payloadLength;
+
+        public StreamedFrame(Message message, int payloadLength) {
+            this.message = message;
+            this.payloadLength = payloadLength;
+        }
+
+        public Message getMessage() { return message; }
+        public int getPayloadLength() { return payloadLength; }
+        public boolean hasPayload() { return payloadLength >= 0; }
+    }
+
+    // ==================== BODY ====================
+
+    private static void encodeBody(Message message, ByteBuffer out) {
+        switch (message.getType()) {
+            case PING -> putPort(out, ((PingMessage) message).getHttpPort());
+            case PONG -> putId(out, ((PongMessage) message).getRequestId());
+            case STORE -> {
+                StoreMessage m = (StoreMessage) message;
+                putNodeId(out, m.getKey());
+                putBytes(out, m.getValue());
+                out.putLong(m.getTtlMs());
+                putPort(out, m.getHttpPort());
+            }
+            case STORE_RESPONSE -> {
+                StoreResponseMessage m = (StoreResponseMessage) message;
+                putId(out, m.getRequestId());
+                putBoolean(out, m.isSuccess());
+            }
+            case FIND_NODE -> putNodeId(out, ((FindNodeMessage) message).getTargetId());
+            case FIND_NODE_RESPONSE -> {
+                FindNodeResponseMessage m = (FindNodeResponseMessage) message;
+                putId(out, m.getRequestId());
+                putContacts(out, m.getContacts());
+            }
+            case FIND_VALUE -> putNodeId(out, ((FindValueMessage) message).getKey());
+            case FIND_VALUE_RESPONSE -> {
+                FindValueResponseMessage m = (FindValueResponseMessage) message;
+                putId(out, m.getRequestId());
+                putBytes(out, m.getValue());
+                putContacts(out, m.getContacts());
+            }
+            case STORE_PIECE -> {
+                StorePieceMessage m = (StorePieceMessage) message;
+                putString(out, m.getPieceKey());
+                putPort(out, m.getHttpPort());
+                putHash(out, m.getPieceHash());
+                putBytes(out, m.getPieceData());
+            }
+            case STORE_PIECE_RESPONSE -> {
+                StorePieceResponseMessage m = (StorePieceResponseMessage) message;
+                putId(out, m.getRequestId());
+                putBoolean(out, m.isSuccess());
+            }
+            case GET_PIECE -> {
+                GetPieceMessage m = (GetPieceMessage) message;
+                putString(out, m.getPieceKey());
+                putPort(out, m.getHttpPort());
+            }
+            case GET_PIECES_RESPONSE -> {
+                GetPieceResponseMessage m = (GetPieceResponseMessage) message;
+                putId(out, m.getRequestId());
+                putString(out, m.getPieceKey());
+                putBytes(out, m.getPieceData());
+            }
+            case STORE_METADATA -> {
+                StoreMetadataMessage m = (StoreMetadataMessage) message;
+                putTorrent(out, m.getMetadata());
+                putPort(out, m.getHttpPort());
+            }
+            case STORE_METADATA_RESPONSE -> {
+                StoreMetadataResponseMessage m = (StoreMetadataResponseMessage) message;
+                putId(out, m.getRequestId());
+                putBoolean(out, m.isSuccess());
+            }
+            case GET_PIECES -> {
+                GetPiecesMessage m = (GetPiecesMessage) message;
+                putPort(out, m.getHttpPort());
+                putStrings(out, m.getPieceKeys());
+            }
+            case STORE_PIECES -> {
+                StorePiecesMessage m = (StorePiecesMessage) message;
+                putStorePiecesHeader(out, m);
+                for (byte[] data : m.getPieceData()) out.put(data);
+            }
+            case ANNOUNCE_PEER -> {
+                AnnouncePeerMessage m = (AnnouncePeerMessage) message;
+                putNodeId(out, m.getInfoHash());
+                putPeer(out, m.getPeer());
+                putPort(out, m.getHttpPort());
+            }
+            case GET_PEERS -> putNodeId(out, ((GetPeersMessage) message).getInfoHash());
+            case GET_PEERS_RESPONSE -> {
+                GetPeersResponseMessage m = (GetPeersResponseMessage) message;
+                putId(out, m.getRequestId());
+                putPeers(out, m.getPeers());
+                putContacts(out, m.getContacts());
+            }
+            case STORE_PIECES_RESPONSE -> {
+                StorePiecesResponseMessage m = (StorePiecesResponseMessage) message;
+                putId(out, m.getRequestId());
+                putStrings(out, m.getStoredKeys());
+            }
+            default -> throw new IllegalArgumentException("No wire encoding for " + message.getType());
+        }
+    }
+
+    private static Message decodeBody(Message.MessageType type, NodeID sender, ByteBuffer in) throws IOException {
+        return switch (type) {
+            case PING -> new PingMessage(sender, getPort(in));
+            case PONG -> new PongMessage(sender, getId(in));
+            case STORE -> new StoreMessage(sender, getNodeId(in), getBytes(in), in.getLong(), getPort(in));
+            case STORE_RESPONSE -> new StoreResponseMessage(sender, getId(in), getBoolean(in));
+            case FIND_NODE -> new FindNodeMessage(sender, getNodeId(in));
+            case FIND_NODE_RESPONSE -> new FindNodeResponseMessage(sender, getId(in), getContacts(in));
+            case FIND_VALUE -> new FindValueMessage(sender, getNodeId(in));
+            case FIND_VALUE_RESPONSE -> new FindValueResponseMessage(sender, getId(in), getBytes(in), getContacts(in));
+            case STORE_PIECE -> {
+                String pieceKey = getString(in);
+                int httpPort = getPort(in);
+                String pieceHash = getHash(in);
+                yield new StorePieceMessage(sender, pieceKey, getBytes(in), httpPort, pieceHash);
+            }
+            case STORE_PIECE_RESPONSE -> new StorePieceResponseMessage(sender, getId(in), getBoolean(in));
+            case GET_PIECE -> new GetPieceMessage(sender, getString(in), getPort(in));
+            case GET_PIECES_RESPONSE -> new GetPieceResponseMessage(sender, getId(in), getString(in), getBytes(in));
+            case STORE_METADATA -> new StoreMetadataMessage(sender, getTorrent(in), getPort(in));
+            case STORE_METADATA_RESPONSE -> new StoreMetadataResponseMessage(sender, getId(in), getBoolean(in));
+            case GET_PIECES -> {
+                int httpPort = getPort(in);
+                yield new GetPiecesMessage(sender, getStrings(in), httpPort);
+            }
+            case STORE_PIECES -> {
+                int httpPort = getPort(in);
+                int count = in.getShort() & 0xFFFF;
+                List<String> keys = new ArrayList<>(count);
+                List<String> hashes = new ArrayList<>(count);
+                int[] lengths = new int[count];
+                long total = 0;
+                for (int i = 0; i < count; i++) {
+                    keys.add(getString(in));
+                    hashes.add(getHash(in));
+                    lengths[i] = in.getInt();
+                    total += lengths[i];
+                }
+                if (in.getInt() != total || total > in.remaining()) {
+                    throw new IOException("Invalid STORE_PIECES total length");
+                }
+                List<byte[]> pieces = new ArrayList<>(count);
+                for (int length : lengths) {
+                    byte[] data = new byte[length];
+                    in.get(data);
+                    pieces.add(data);
+                }
+                yield new StorePiecesMessage(sender, keys, hashes, lengths, pieces, httpPort);
+            }
+            case STORE_PIECES_RESPONSE -> new StorePiecesResponseMessage(sender, getId(in), getStrings(in));
+            case ANNOUNCE_PEER -> new AnnouncePeerMessage(sender, getNodeId(in), getPeer(in), getPort(in));
+            case GET_PEERS -> new GetPeersMessage(sender, getNodeId(in));
+            case GET_PEERS_RESPONSE -> new GetPeersResponseMessage(sender, getId(in), getPeers(in), getContacts(in));
+            default -> throw new IOException("No wire decoding for " + type);
+        };
+    }
+
+    private static int bodySize(Message message) {
+        return switch (message.getType()) {
+            case PING -> 2;
+            case PONG -> 8;
+            case STORE -> {
+                StoreMessage m = (StoreMessage) message;
+                yield NodeID.ID_LENGTH + bytesSize(m.getValue()) + 8 + 2;
+            }
+            case STORE_RESPONSE, STORE_PIECE_RESPONSE, STORE_METADATA_RESPONSE -> 8 + 1;
+            case FIND_NODE, FIND_VALUE, GET_PEERS -> NodeID.ID_LENGTH;
+            case FIND_NODE_RESPONSE -> 8 + contactsSize(((FindNodeResponseMessage) message).getContacts());
+            case FIND_VALUE_RESPONSE -> {
+                FindValueResponseMessage m = (FindValueResponseMessage) message;
+                yield 8 + bytesSize(m.getValue()) + contactsSize(m.getContacts());
+            }
+            case STORE_PIECE -> {
+                StorePieceMessage m = (StorePieceMessage) message;
+                yield stringSize(m.getPieceKey()) + 2 + hashSize(m.getPieceHash()) + bytesSize(m.getPieceData());
+            }
+            case GET_PIECE -> stringSize(((GetPieceMessage) message).getPieceKey()) + 2;
+            case GET_PIECES_RESPONSE -> {
+                GetPieceResponseMessage m = (GetPieceResponseMessage) message;
+                yield 8 + stringSize(m.getPieceKey()) + bytesSize(m.getPieceData());
+            }
+            case STORE_METADATA -> torrentSize(((StoreMetadataMessage) message).getMetadata()) + 2;
+            case GET_PIECES -> 2 + stringsSize(((GetPiecesMessage) message).getPieceKeys());
+            case STORE_PIECES -> {
+                StorePiecesMessage m = (StorePiecesMessage) message;
+                yield storePiecesHeaderSize(m) + (int) m.getTotalLength();
+            }
+            case STORE_PIECES_RESPONSE -> 8 + stringsSize(((StorePiecesResponseMessage) message).getStoredKeys());
+            case ANNOUNCE_PEER -> NodeID.ID_LENGTH + peerSize(((AnnouncePeerMessage) message).getPeer()) + 2;
+            case GET_PEERS_RESPONSE -> {
+                GetPeersResponseMessage m = (GetPeersResponseMessage) message;
+                yield 8 + peersSize(m.getPeers()) + contactsSize(m.getContacts());
+            }
+            default -> throw new IllegalArgumentException("No wire encoding for " + message.getType());
+        };
+    }
+
+    // STORE_PIECES: port | u16 count | (key, hash, u32 length) * count | u32 total; dữ liệu theo sau
+    private static void putStorePiecesHeader(ByteBuffer out, StorePiecesMessage m) {
+        putPort(out, m.getHttpPort());
+        out.putShort((short) m.getPieceKeys().size());
+        for (int i = 0; i < m.getPieceKeys().size(); i++) {
+            putString(out, m.getPieceKeys().get(i));
+            putHash(out, m.getPieceHashes() == null ? null : m.getPieceHashes().get(i));
+            out.putInt(m.getPieceLengths()[i]);
+        }
+        out.putInt((int) m.getTotalLength());
+    }
+
+    private static int storePiecesHeaderSize(StorePiecesMessage m) {
+        int size = 2 + 2 + 4;
+        for (int i = 0; i < m.getPieceKeys().size(); i++) {
+            size += stringSize(m.getPieceKeys().get(i)) + 4
+                    + hashSize(m.getPieceHashes() == null ? null : m.getPieceHashes().get(i));
+        }
+        return size;
+    }
+
+    // ==================== PRIMITIVES ====================
+
+    static void putNodeId(ByteBuffer out, NodeID id) {
+        out.putLong(id.getHigh()).putLong(id.getMiddle()).putInt(id.getLow());
+    }
+
+    static NodeID getNodeId(ByteBuffer in) {
+        return new NodeID(in.getLong(), in.getLong(), in.getInt());
+    }
+
+    static void putId(ByteBuffer out, long id) {
+        out.putLong(id);
+    }
+
+    static long getId(ByteBuffer in) {
+        return in.getLong();
+    }
+
+    static void putPort(ByteBuffer out, int port) {
+        out.putShort((short) port);
+    }
+
+    static int getPort(ByteBuffer in) {
+        return in.getShort() & 0xFFFF;
+    }
+
+    static void putBoolean(ByteBuffer out, boolean value) {
+        out.put((byte) (value ? 1 : 0));
+    }
+
+    static boolean getBoolean(ByteBuffer in) {
+        return in.get() != 0;
+    }
+
+    // byte[] có thể null: length = -1
+    static void putBytes(ByteBuffer out, byte[] data) {
+        if (data == null) {
+            out.putInt(NULL_LENGTH);
+            return;
+        }
+        out.putInt(data.length);
+        out.put(data);
+    }
+
+    static byte[] getBytes(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length == NULL_LENGTH) return null;
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Invalid byte array length: " + length);
+        }
+        byte[] data = new byte[length];
+        in.get(data);
+        return data;
+    }
+
+    static int bytesSize(byte[] data) {
+        return 4 + (data == null ? 0 : data.length);
+    }
+
+    static void putString(ByteBuffer out, String value) {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        if (utf8.length > 0xFFFF) {
+            throw new BufferOverflowException();
+        }
+        out.putShort((short) utf8.length);
+        out.put(utf8);
+    }
+
+    static String getString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        if (in.hasArray()) {
+            String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return value;
+        }
+        byte[] utf8 = new byte[length];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    static int stringSize(String value) {
+        return 2 + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    // Contact: 20B id | u8 addrLen | ip + port (Contact.getAddressBytes) | u16 httpPort | 16B coordinate
+    // (tọa độ đi kèm để bên nhận dự đoán được độ trễ tới node chưa từng liên lạc)
+    static void putContact(ByteBuffer out, Contact contact) {
+        putNodeId(out, contact.getNodeId());
+        byte[] address = contact.getAddressBytes();
+        out.put((byte) address.length);
+        out.put(address);
+        putPort(out, contact.getHttpPort());
+        putCoordinate(out, contact.getCoordinate());
+    }
+
+    static Contact getContact(ByteBuffer in) throws IOException {
+        NodeID nodeId = getNodeId(in);
+        int addressLength = in.get() & 0xFF;
+        if (addressLength != 6 && addressLength != 18) {
+            throw new IOException("Invalid contact address length: " + addressLength);
+        }
+        byte[] ip = new byte[addressLength - 2];
+        in.get(ip);
+        int port = getPort(in);
+        int httpPort = getPort(in);
+        Contact contact = new Contact(nodeId, InetAddress.getByAddress(ip), port, httpPort);
+        contact.setCoordinate(getCoordinate(in));
+        return contact;
+    }
+
+    static int contactSize(Contact contact) {
+        int ipLength = contact.getAddress().getAddress().getAddress().length;
+        return NodeID.ID_LENGTH + 1 + ipLength + 2 + 2 + COORDINATE_SIZE;
+    }
+
+    // Tọa độ Vivaldi: f32 x | f32 y | f32 height | f32 error, null ghi error = NaN.
+    // Tọa độ vô lý từ peer được đọc thành null để không làm hỏng tọa độ local
+    static void putCoordinate(ByteBuffer out, VivaldiCoordinate coordinate) {
+        if (coordinate == null) {
+            out.putFloat(0).putFloat(0).putFloat(0).putFloat(Float.NaN);
+            return;
+        }
+        out.putFloat((float) coordinate.getX()).putFloat((float) coordinate.getY())
+                .putFloat((float) coordinate.getHeight()).putFloat((float) coordinate.getError());
+    }
+
+    static VivaldiCoordinate getCoordinate(ByteBuffer in) {
+        float x = in.getFloat();
+        float y = in.getFloat();
+        float height = in.getFloat();
+        float error = in.getFloat();
+        if (Float.isNaN(error)) return null;
+        VivaldiCoordinate coordinate = new VivaldiCoordinate(x, y, height, error);
+        return coordinate.isValid() ? coordinate : null;
+    }
+
+    // SHA-1 hex có thể null: u8 present | 20B digest
+    static void putHash(ByteBuffer out, String hashHex) {
+        putBoolean(out, hashHex != null);
+        if (hashHex != null) out.put(HEX.parseHex(hashHex));
+    }
+
+    static String getHash(ByteBuffer in) {
+        if (!getBoolean(in)) return null;
+        byte[] hash = new byte[20];
+        in.get(hash);
+        return HEX.formatHex(hash);
+    }
+
+    static int hashSize(String hashHex) {
+        return hashHex == null ? 1 : 21;
+    }
+
+    // List<String>: u16 count | string * count
+    static void putStrings(ByteBuffer out, List<String> values) {
+        out.putShort((short) values.size());
+        for (String value : values) putString(out, value);
+    }
+
+    static List<String> getStrings(ByteBuffer in) {
+        int count = in.getShort() & 0xFFFF;
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) values.add(getString(in));
+        return values;
+    }
+
+    static int stringsSize(List<String> values) {
+        int size = 2;
+        for (String value : values) size += stringSize(value);
+        return size;
+    }
+
+    // List<Contact> có thể null: count = 0xFFFF
+    static void putContacts(ByteBuffer out, List<Contact> contacts) {
+        if (contacts == null) {
+            out.putShort((short) NULL_COUNT);
+            return;
+        }
+        out.putShort((short) contacts.size());
+        for (Contact contact : contacts) {
+            putContact(out, contact);
+        }
+    }
+
+    static List<Contact> getContacts(ByteBuffer in) throws IOException {
+        int count = in.getShort() & 0xFFFF;
+        if (count == NULL_COUNT) return null;
+        List<Contact> contacts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            contacts.add(getContact(in));
+        }
+        return contacts;
+    }
+
+    static int contactsSize(List<Contact> contacts) {
+        int size = 2;
+        if (contacts != null) {
+            for (Contact contact : contacts) size += contactSize(contact);
+        }
+        return size;
+    }
+
+    // Peer compact (PeerStore): u8 length (6 = IPv4, 18 = IPv6) | ip | u16 port
+    static void putPeer(ByteBuffer out, byte[] peer) {
+        out.put((byte) peer.length);
+        out.put(peer);
+    }
+
+    static byte[] getPeer(ByteBuffer in) throws IOException {
+        int length = in.get() & 0xFF;
+        if (length != 6 && length != 18) {
+            throw new IOException("Invalid peer address length: " + length);
+        }
+        byte[] peer = new byte[length];
+        in.get(peer);
+        return peer;
+    }
+
+    static int peerSize(byte[] peer) {
+        return 1 + peer.length;
+    }
+
+    // List<byte[]> peer: u16 count | peer * count
+    static void putPeers(ByteBuffer out, List<byte[]> peers) {
+        out.putShort((short) peers.size());
+        for (byte[] peer : peers) putPeer(out, peer);
+    }
+
+    static List<byte[]> getPeers(ByteBuffer in) throws IOException {
+        int count = in.getShort() & 0xFFFF;
+        List<byte[]> peers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) peers.add(getPeer(in));
+        return peers;
+    }
+
+    static int peersSize(List<byte[]> peers) {
+        int size = 2;
+        for (byte[] peer : peers) size += peerSize(peer);
+        return size;
+    }
+
+    // TorrentFile: u8 present | name | u64 size | u32 pieceLength | u32 count | 20B hash * count | infoHash
+    static void putTorrent(ByteBuffer out, TorrentFile torrent) {
+        putBoolean(out, torrent != null);
+        if (torrent == null) return;
+        putString(out, torrent.getFileName());
+        out.putLong(torrent.getFileSize());
+        out.putInt(torrent.getPieceLength());
+        out.putInt(torrent.getPieces().size());
+        for (String pieceHash : torrent.getPieces()) {
+            out.put(HEX.parseHex(pieceHash));
+        }
+        putString(out, torrent.getInfoHash() == null ? "" : torrent.getInfoHash());
+    }
+
+    static TorrentFile getTorrent(ByteBuffer in) throws IOException {
+        if (!getBoolean(in)) return null;
+        String fileName = getString(in);
+        long fileSize = in.getLong();
+        int pieceLength = in.getInt();
+        int count = in.getInt();
+        if (count < 0 || (long) count * 20 > in.remaining()) {
+            throw new IOException("Invalid piece count: " + count);
+        }
+        TorrentFile torrent = new TorrentFile(fileName, fileSize, pieceLength);
+        byte[] hash = new byte[20];
+        for (int i = 0; i < count; i++) {
+            in.get(hash);
+            torrent.getPieces().add(HEX.formatHex(hash));
+        }
+        String infoHash = getString(in);
+        torrent.setInfoHash(infoHash.isEmpty() ? null : infoHash);
+        return torrent;
+    }
+
+    static int torrentSize(TorrentFile torrent) {
+        if (torrent == null) return 1;
+        String infoHash = torrent.getInfoHash() == null ? "" : torrent.getInfoHash();
+        return 1 + stringSize(torrent.getFileName()) + 8 + 4 + 4
+                + torrent.getPieces().size() * 20 + stringSize(infoHash);
+    }
+}
@@ -0,0 +1,122 @@
+package dht;
+
+import bittorrent.TorrentFile;
+import core.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * So sánh MessageCodec với Java serialization: round-trip, kích thước và throughput.
+ * Chạy: java dht.MessageCodecBenchmark [iterations]
+ */
+public class MessageCodecBenchmark {
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        List<Message> samples = samples();
+
+        // 1. Round-trip: decode(encode(m)) phải giống m
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        for (Message m : samples) {
+            buffer.clear();
+            MessageCodec.encode(m, buffer);
+            buffer.flip();
+            Message decoded = MessageCodec.decode(buffer);
+            if (!Arrays.equals(MessageCodec.toBytes(m), MessageCodec.toBytes(decoded))
+                    || m.getMessageId() != decoded.getMessageId()) {
+                throw new IllegalStateException("Round-trip mismatch for " + m.getType());
+            }
+        }
+        System.out.println("Round-trip OK for " + samples.size() + " message types");
+
+        // 2. Kích thước
+        System.out.printf("%-26s %10s %10s%n", "type", "codec", "java");
+        for (Message m : samples) {
+            System.out.printf("%-26s %10d %10d%n", m.getType(), MessageCodec.encodedSize(m), javaSerialize(m).length);
+        }
+
+        // 3. Throughput cho các message nhỏ (PING / FIND_NODE / FIND_NODE_RESPONSE)
+        List<Message> hot = samples.subList(0, 3);
+        for (Message m : hot) {
+            long sink = 0;
+
+            for (int i = 0; i < iterations / 10; i++) { // warm-up
+                buffer.clear();
+                MessageCodec.encode(m, buffer);
+                buffer.flip();
+                sink += MessageCodec.decode(buffer).getType().ordinal();
+                sink += javaDeserialize(javaSerialize(m)).getType().ordinal();
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                buffer.clear();
+                MessageCodec.encode(m, buffer);
+                buffer.flip();
+                sink += MessageCodec.decode(buffer).getType().ordinal();
+            }
+            long codecNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += javaDeserialize(javaSerialize(m)).getType().ordinal();
+            }
+            long javaNs = System.nanoTime() - start;
+
+            System.out.printf("%-20s codec %,12.0f ops/s | java %,12.0f ops/s | x%.1f (sink=%d)%n",
+                    m.getType(), iterations * 1e9 / codecNs, iterations * 1e9 / javaNs,
+                    (double) javaNs / codecNs, sink);
+        }
+    }
+
+    private static List<Message> samples() throws Exception {
+        NodeID self = NodeID.fromHash("benchmark");
+        InetAddress ip = InetAddress.getByName("127.0.0.1");
+        List<Contact> contacts = new ArrayList<>();
+        for (int i = 0; i < KademliaNode.K; i++) {
+            contacts.add(new Contact(NodeID.fromHash("peer" + i), ip, 4000 + i, 8080 + i));
+        }
+        byte[] piece = new byte[256 * 1024];
+        new Random(1).nextBytes(piece);
+
+        TorrentFile torrent = new TorrentFile("video.mp4", 64L * 1024 * 1024, 256 * 1024);
+        for (int i = 0; i < 256; i++) torrent.addPieceHash(("piece" + i).getBytes());
+        torrent.generateInfoHash();
+
+        long requestId = Message.nextMessageId();
+        return List.of(
+                new PingMessage(self, 8080),
+                new FindNodeMessage(self, NodeID.fromHash("target")),
+                new FindNodeResponseMessage(self, requestId, contacts),
+                new PongMessage(self, requestId),
+                new StoreMessage(self, NodeID.fromHash("key"), "127.0.0.1:4001".getBytes(), 8080),
+                new StoreResponseMessage(self, requestId, true),
+                new FindValueMessage(self, NodeID.fromHash("key")),
+                new FindValueResponseMessage(self, requestId, null, contacts),
+                new FindValueResponseMessage(self, requestId, "value".getBytes(), null),
+                new StorePieceMessage(self, torrent.getInfoHash() + ":0", piece, 4001),
+                new StorePieceResponseMessage(self, requestId, true),
+                new GetPieceMessage(self, torrent.getInfoHash() + ":0", 4001),
+                new GetPieceResponseMessage(self, requestId, torrent.getInfoHash() + ":0", piece),
+                new StoreMetadataMessage(self, torrent, 4001),
+                new StoreMetadataResponseMessage(self, requestId, false)
+        );
+    }
+
+    private static byte[] javaSerialize(Message m) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(m);
+        oos.flush();
+        return bos.toByteArray();
+    }
+
+    private static Message javaDeserialize(byte[] data) throws Exception {
+        return (Message) new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+    }
+}
@@ -0,0 +1,106 @@
+package dht;
+
+import core.*;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * So sánh sắp xếp contact theo khoảng cách tới target: cách cũ (XOR ra byte[] + BigInteger cho mỗi lần so sánh)
+ * với NodeID.xorCompare trên các trường long. Kiểm tra luôn thứ tự của xorCompare khớp BigInteger.
+ * Chạy: java dht.NodeIDBenchmark [contacts] [rounds]
+ */
+public class NodeIDBenchmark {
+    public static void main(String[] args) {
+        int contacts = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        Random random = new Random(42);
+        NodeID[] ids = new NodeID[contacts];
+        for (int i = 0; i < contacts; i++) ids[i] = randomId(random);
+        NodeID[] targets = new NodeID[rounds];
+        for (int i = 0; i < rounds; i++) targets[i] = randomId(random);
+
+        // 1. Đúng thứ tự: xorCompare phải sắp giống hệt so sánh XOR đầy đủ bằng BigInteger
+        NodeID target = targets[0];
+        NodeID[] byXor = ids.clone();
+        Arrays.sort(byXor, (a, b) -> NodeID.xorCompare(a, b, target));
+        NodeID[] byBigInteger = ids.clone();
+        Arrays.sort(byBigInteger, Comparator.comparing(id -> legacyXor(id, target)));
+        if (!Arrays.equals(byXor, byBigInteger)) {
+            throw new IllegalStateException("xorCompare order differs from BigInteger XOR order");
+        }
+        for (int i = 0; i < 1000; i++) {
+            if (ids[i].getDistance(target) != legacyDistance(ids[i], target)) {
+                throw new IllegalStateException("getDistance mismatch for " + ids[i]);
+            }
+        }
+        System.out.println("Order check OK for " + contacts + " contacts");
+
+        // 2. Sắp toàn bộ contact theo khoảng cách tới từng target
+        long sink = 0;
+        for (int warmup = 0; warmup < 3; warmup++) {
+            sink += sortLegacy(ids, targets) + sortPrimitive(ids, targets);
+        }
+        long start = System.nanoTime();
+        sink += sortLegacy(ids, targets);
+        long legacyNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        sink += sortPrimitive(ids, targets);
+        long primitiveNs = System.nanoTime() - start;
+
+        System.out.printf("sort %d contacts x %d targets: legacy %,.1f ms | xorCompare %,.1f ms | x%.1f (sink=%d)%n",
+                contacts, rounds, legacyNs / 1e6, primitiveNs / 1e6, (double) legacyNs / primitiveNs, sink);
+
+        // 3. getDistance (bit length của XOR) cũ và mới
+        int pairs = 2_000_000;
+        start = System.nanoTime();
+        for (int i = 0; i < pairs; i++) sink += legacyDistance(ids[i % contacts], targets[i % rounds]);
+        legacyNs = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < pairs; i++) sink += ids[i % contacts].getDistance(targets[i % rounds]);
+        primitiveNs = System.nanoTime() - start;
+        System.out.printf("getDistance: legacy %,.0f ops/s | primitive %,.0f ops/s | x%.1f (sink=%d)%n",
+                pairs * 1e9 / legacyNs, pairs * 1e9 / primitiveNs, (double) legacyNs / primitiveNs, sink);
+    }
+
+    private static long sortLegacy(NodeID[] ids, NodeID[] targets) {
+        long sink = 0;
+        for (NodeID target : targets) {
+            NodeID[] sorted = ids.clone();
+            Arrays.sort(sorted, (a, b) -> legacyXor(a, target).compareTo(legacyXor(b, target)));
+            sink += sorted[0].getLow();
+        }
+        return sink;
+    }
+
+    private static long sortPrimitive(NodeID[] ids, NodeID[] targets) {
+        long sink = 0;
+        for (NodeID target : targets) {
+            NodeID[] sorted = ids.clone();
+            Arrays.sort(sorted, (a, b) -> NodeID.xorCompare(a, b, target));
+            sink += sorted[0].getLow();
+        }
+        return sink;
+    }
+
+    // Cách tính cũ: XOR ra mảng byte mới (kèm bản copy phòng thủ) rồi dựng BigInteger
+    private static BigInteger legacyXor(NodeID a, NodeID b) {
+        byte[] x = a.getBytes();
+        byte[] y = b.getBytes();
+        byte[] result = new byte[NodeID.ID_LENGTH];
+        for (int i = 0; i < NodeID.ID_LENGTH; i++) result[i] = (byte) (x[i] ^ y[i]);
+        return new BigInteger(1, Arrays.copyOf(result, NodeID.ID_LENGTH));
+    }
+
+    private static int legacyDistance(NodeID a, NodeID b) {
+        return legacyXor(a, b).bitLength();
+    }
+
+    private static NodeID randomId(Random random) {
+        byte[] bytes = new byte[NodeID.ID_LENGTH];
+        random.nextBytes(bytes);
+        return new NodeID(bytes);
+    }
+}
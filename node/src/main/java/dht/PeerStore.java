@@ -0,0 +1,128 @@
+package dht;
+
+import core.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+
+/**
+ * Tập peer (seeder) của mỗi infoHash cho ANNOUNCE_PEER / GET_PEERS. Khác DataStore (1 value mỗi key, ghi sau đè
+ * ghi trước), mỗi infoHash giữ nhiều peer, mỗi peer là địa chỉ compact 6 byte (IPv4 + port) hoặc 18 byte
+ * (IPv6 + port) với hạn riêng; announce lại thì gia hạn. Mỗi infoHash giữ tối đa MAX_PEERS peer (đầy thì bỏ peer
+ * sắp hết hạn nhất). GET_PEERS chỉ trả mẫu ngẫu nhiên tối đa MAX_RESPONSE peer để response vừa 1 datagram.
+ * Peer là dữ liệu mềm (seeder tự announce lại) nên chỉ nằm trong bộ nhớ.
+ */
+public class PeerStore {
+    public static final long PEER_TTL = DataStore.EXPIRATION_TIME;
+    public static final int MAX_RESPONSE = 50;
+    static final int MAX_PEERS = 2000;
+    static final int MAX_INFO_HASHES = 100_000;
+    private static final long SWEEP_INTERVAL_MS = 60_000;
+
+    private final Map<NodeID, Map<Peer, Long>> peers = new HashMap<>(); // infoHash -> (peer -> expiresAt)
+    private final Random random = new Random();
+    private long lastSweep = System.currentTimeMillis();
+
+    // Thêm / gia hạn peer; false nếu địa chỉ không hợp lệ hoặc đã giữ quá nhiều infoHash
+    public boolean announce(NodeID infoHash, byte[] peer) {
+        return announce(infoHash, peer, PEER_TTL);
+    }
+
+    public synchronized boolean announce(NodeID infoHash, byte[] peer, long ttlMs) {
+        if (!isCompact(peer)) return false;
+        long now = System.currentTimeMillis();
+        if (now - lastSweep > SWEEP_INTERVAL_MS) cleanup();
+
+        Map<Peer, Long> set = peers.get(infoHash);
+        if (set == null) {
+            if (peers.size() >= MAX_INFO_HASHES) return false;
+            set = new HashMap<>();
+            peers.put(infoHash, set);
+        }
+        prune(set, now);
+        Peer key = new Peer(peer.clone());
+        if (!set.containsKey(key) && set.size() >= MAX_PEERS) {
+            set.remove(Collections.min(set.entrySet(), Map.Entry.comparingByValue()).getKey());
+        }
+        set.put(key, now + ttlMs);
+        return true;
+    }
+
+    // Mẫu ngẫu nhiên tối đa max peer còn hạn của infoHash (rỗng nếu không có)
+    public synchronized List<byte[]> get(NodeID infoHash, int max) {
+        Map<Peer, Long> set = peers.get(infoHash);
+        if (set == null) return new ArrayList<>();
+        prune(set, System.currentTimeMillis());
+        if (set.isEmpty()) {
+            peers.remove(infoHash);
+            return new ArrayList<>();
+        }
+        List<byte[]> all = new ArrayList<>(set.size());
+        for (Peer peer : set.keySet()) all.add(peer.address.clone());
+        if (all.size() <= max) return all;
+        // Fisher-Yates dừng sau max bước: max phần tử đầu là mẫu ngẫu nhiên không lặp
+        for (int i = 0; i < max; i++) Collections.swap(all, i, i + random.nextInt(all.size() - i));
+        return new ArrayList<>(all.subList(0, max));
+    }
+
+    // Xóa mọi peer hết hạn (announce tự gọi mỗi phút)
+    public synchronized void cleanup() {
+        long now = System.currentTimeMillis();
+        peers.values().removeIf(set -> {
+            prune(set, now);
+            return set.isEmpty();
+        });
+        lastSweep = now;
+    }
+
+    public synchronized int size() {
+        int total = 0;
+        for (Map<Peer, Long> set : peers.values()) total += set.size();
+        return total;
+    }
+
+    private static void prune(Map<Peer, Long> set, long now) {
+        set.values().removeIf(expiresAt -> expiresAt <= now);
+    }
+
+    // ==================== COMPACT ADDRESS ====================
+
+    static boolean isCompact(byte[] peer) {
+        return peer != null && (peer.length == 6 || peer.length == 18);
+    }
+
+    // ip (4 hoặc 16 byte) | u16 port
+    public static byte[] compact(InetAddress ip, int port) {
+        byte[] address = Contact.inetAddressToBytes(ip);
+        byte[] peer = Arrays.copyOf(address, address.length + 2);
+        System.arraycopy(Contact.portToBytes(port), 0, peer, address.length, 2);
+        return peer;
+    }
+
+    public static InetSocketAddress toAddress(byte[] peer) throws UnknownHostException {
+        int port = ((peer[peer.length - 2] & 0xFF) << 8) | (peer[peer.length - 1] & 0xFF);
+        return new InetSocketAddress(InetAddress.getByAddress(Arrays.copyOf(peer, peer.length - 2)), port);
+    }
+
+    private static final class Peer {
+        final byte[] address;
+        final int hash;
+
+        Peer(byte[] address) {
+            this.address = address;
+            this.hash = Arrays.hashCode(address);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Peer peer && Arrays.equals(address, peer.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
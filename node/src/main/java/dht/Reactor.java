@@ -0,0 +1,112 @@
+package dht;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event loop 1 thread trên Selector, multiplex socket UDP, TCP listener và mọi kết nối peer.
+ *
+ * Handler chạy trên thread của reactor nên chỉ làm việc ngắn (đọc/ghi socket, tách frame);
+ * xử lý tốn CPU hoặc đĩa phải đẩy sang worker pool. Số thread không phụ thuộc số kết nối.
+ */
+public class Reactor implements Closeable {
+
+    public interface Handler {
+        void ready(SelectionKey key) throws IOException;
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    public Reactor(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this::loop, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // Chạy task trên thread của reactor (mọi thay đổi interestOps đều đi qua đây)
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public CompletableFuture<SelectionKey> register(SelectableChannel channel, int ops, Handler handler) {
+        CompletableFuture<SelectionKey> registered = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                registered.complete(channel.register(selector, ops, handler));
+            } catch (IOException e) {
+                registered.completeExceptionally(e);
+            }
+        });
+        return registered;
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    private void loop() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.err.println("❌ [Reactor] select failed: " + e.getMessage());
+                break;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    System.err.println("❌ [Reactor] Task failed: " + e.getMessage());
+                }
+            }
+
+            Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+            while (selected.hasNext()) {
+                SelectionKey key = selected.next();
+                selected.remove();
+                if (!key.isValid()) continue;
+                try {
+                    ((Handler) key.attachment()).ready(key);
+                } catch (Exception e) {
+                    System.err.println("❌ [Reactor] Closing " + key.channel() + ": " + e.getMessage());
+                    closeQuietly(key);
+                }
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly(key);
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {}
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,198 @@
+package dht;
+
+import core.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Vòng republish / replicate của Kademlia chạy nền trên 1 thread:
+ * <ul>
+ *   <li>Mỗi interval (mặc định 1 giờ), mọi key trong DataStore được STORE lại tới K node gần nó nhất <i>hiện tại</i>
+ *       (node mới vào nhận được value, node rời mạng được thay), với TTL còn lại của bản local để bản chép không
+ *       sống lâu hơn bản gốc.</li>
+ *   <li>Republish optimization: key vừa được node khác STORE tới trong interval vừa qua thì bỏ qua, vì node đó đang
+ *       replicate key này (mỗi node bắt đầu vòng lệch nhau ngẫu nhiên nên thường chỉ 1 node làm việc cho mỗi key).</li>
+ *   <li>Value do chính node này store() và infoHash do node này announce (storePeer) được publish lại với TTL đầy đủ
+ *       mỗi nửa TTL, nên còn sống quá 24 giờ chừng nào node gốc còn chạy. Chỉ nhớ key: value đọc lại từ bản local
+ *       trong DataStore, bản local mất (bị xóa / loại khỏi bộ nhớ) thì thôi publish key đó.</li>
+ * </ul>
+ * Tải được rải đều trên cả interval theo từng lô key (lô dùng chung lookup, xem locateMany) và không vượt quá
+ * rate key/giây; vòng dài hơn interval thì vòng sau bắt đầu ngay khi vòng trước xong.
+ */
+public class Republisher {
+    public static final long DEFAULT_INTERVAL_MS = 60 * 60 * 1000;
+    public static final int DEFAULT_RATE = 100; // key/giây
+    static final long ORIGIN_INTERVAL_MS = DataStore.EXPIRATION_TIME / 2;
+    private static final int BATCH = 32;
+
+    private final KademliaNode node;
+    private final long intervalMs;
+    private final int rate;
+    private final Map<NodeID, Long> received = new ConcurrentHashMap<>();       // key -> lần cuối node khác STORE tới
+    private final Map<NodeID, Long> published = new ConcurrentHashMap<>();      // key do node này store() -> lần publish cuối
+    private final Map<String, Long> announced = new ConcurrentHashMap<>();      // infoHash hex -> lần announce cuối
+    private final Object wakeup = new Object(); // không interrupt thread: DataStore có thể đang đọc FileChannel của log
+    private volatile boolean running;
+    private Thread worker;
+    private long passes;
+    private long replicated;
+    private long skipped;
+    private long stores;
+
+    public Republisher(KademliaNode node, long intervalMs, int rate) {
+        this.node = node;
+        this.intervalMs = intervalMs;
+        this.rate = Math.max(1, rate);
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        worker = new Thread(this::run, "dht-republish");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public void stop() {
+        running = false;
+        synchronized (wakeup) {
+            wakeup.notifyAll();
+        }
+    }
+
+    // Node khác vừa STORE key tới node này
+    public void received(NodeID key) {
+        received.put(key, System.currentTimeMillis());
+    }
+
+    // Node này là gốc của value (đã có bản local trong DataStore): publish lại với TTL đầy đủ
+    public void published(NodeID key) {
+        published.put(key, System.currentTimeMillis());
+    }
+
+    public void announced(String infoHashHex) {
+        announced.put(infoHashHex, System.currentTimeMillis());
+    }
+
+    // ==================== LOOP ====================
+
+    private void run() {
+        // Vòng đầu lệch ngẫu nhiên trong 1 interval để các node không replicate cùng lúc
+        long next = System.currentTimeMillis() + ThreadLocalRandom.current().nextLong(Math.max(1, intervalMs));
+        while (running) {
+            if (!sleepUntil(next)) return;
+            long start = System.currentTimeMillis();
+            try {
+                runPass();
+            } catch (Exception e) {
+                System.err.println("❌ [Republish] Pass failed: " + e.getMessage());
+            }
+            next = start + intervalMs;
+        }
+    }
+
+    // 1 vòng: key gốc đến hạn + key local không vừa nhận từ node khác, chia lô và rải đều trên interval
+    void runPass() {
+        long start = System.currentTimeMillis();
+        received.values().removeIf(at -> start - at >= intervalMs);
+
+        Map<NodeID, Boolean> due = new HashMap<>(); // key -> true nếu publish lại với TTL đầy đủ (node gốc)
+        published.forEach((key, at) -> {
+            if (start - at >= ORIGIN_INTERVAL_MS) due.put(key, true);
+        });
+        int skippedNow = 0;
+        for (NodeID key : node.getDataStore().keys()) {
+            if (due.containsKey(key)) continue;
+            if (received.containsKey(key)) skippedNow++;
+            else due.put(key, false);
+        }
+        List<String> peers = new ArrayList<>();
+        announced.forEach((infoHash, at) -> {
+            if (start - at >= ORIGIN_INTERVAL_MS) peers.add(infoHash);
+        });
+
+        List<NodeID> keys = new ArrayList<>(due.keySet());
+        Collections.sort(keys); // lô gồm các key gần nhau để dùng chung lookup
+        long batches = (keys.size() + BATCH - 1) / BATCH;
+        long pace = batches == 0 ? 0 : Math.max(intervalMs / batches, BATCH * 1000L / rate);
+        int storesNow = 0;
+        for (int from = 0; from < keys.size() && running; from += BATCH) {
+            long batchStart = System.currentTimeMillis();
+            List<NodeID> batch = keys.subList(from, Math.min(keys.size(), from + BATCH));
+            Map<NodeID, List<Contact>> replicas = node.locateMany(batch, KademliaNode.K);
+            for (NodeID key : batch) storesNow += replicate(key, due.get(key), replicas.getOrDefault(key, List.of()));
+            if (!sleepUntil(batchStart + pace)) return;
+        }
+        for (String infoHash : peers) {
+            if (!running) return;
+            node.storePeer(infoHash); // cập nhật lại announced
+        }
+
+        synchronized (this) {
+            passes++;
+            replicated += keys.size();
+            skipped += skippedNow;
+            stores += storesNow;
+        }
+        System.out.println("🔁 [Republish] " + keys.size() + " keys (" + skippedNow + " skipped, received recently), "
+                + peers.size() + " infoHashes re-announced, " + storesNow + " stores in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    // STORE key tới các replica (trừ node này), trả về số node đã nhận
+    private int replicate(NodeID key, boolean origin, List<Contact> replicas) {
+        byte[] value;
+        long ttlMs;
+        if (origin) {
+            value = node.getDataStore().get(key);
+            ttlMs = DataStore.EXPIRATION_TIME;
+            // bản local mất thì không còn gì để publish; còn thì gia hạn luôn bản local
+            if (value == null || !node.getDataStore().put(key, value, ttlMs)) {
+                published.remove(key);
+                return 0;
+            }
+            published.put(key, System.currentTimeMillis());
+        } else {
+            long expiresAt = node.getDataStore().expiresAt(key);
+            value = node.getDataStore().get(key);
+            ttlMs = expiresAt - System.currentTimeMillis();
+            if (value == null || ttlMs <= 0) return 0; // hết hạn / bị xóa từ lúc chụp danh sách key
+        }
+        List<Contact> remote = new ArrayList<>(replicas);
+        remote.removeIf(contact -> contact.getNodeId().equals(node.getLocalNodeId()));
+        // Chờ mọi replica (song song) chứ không chỉ quorum: vòng republish tự giới hạn tốc độ theo lô
+        return WriteQuorum.start(remote, remote.size(), contact -> node.getRPC().storeAsync(contact, key, value, ttlMs))
+                .getCompletion().join().getAcks();
+    }
+
+    // false nếu đã stop
+    private boolean sleepUntil(long deadline) {
+        synchronized (wakeup) {
+            long remaining;
+            while (running && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wakeup.wait(remaining);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        }
+        return running;
+    }
+
+    // ==================== METRICS ====================
+
+    public synchronized long getPasses() { return passes; }
+    public synchronized long getReplicated() { return replicated; } // key đã đem STORE lại (tổng các vòng)
+    public synchronized long getSkipped() { return skipped; }       // key bỏ qua vì vừa nhận từ node khác
+    public synchronized long getStores() { return stores; }         // STORE được replica xác nhận
+
+    @Override
+    public synchronized String toString() {
+        return "Republisher{interval=" + intervalMs + "ms, rate=" + rate + "/s, passes=" + passes + ", replicated="
+                + replicated + ", skipped=" + skipped + ", stores=" + stores + ", originals=" + published.size()
+                + ", announced=" + announced.size() + "}";
+    }
+}
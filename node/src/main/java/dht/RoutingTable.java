@@ -2,98 +2,249 @@ package dht;
 
 import core.*;
 import java.util.*;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
+/**
+ * Routing table dạng cây prefix của Kademlia. Chỉ nhánh chứa local ID được tách, nên cây là 1 "xương sống":
+ * bucket i (i < last) chứa contact có đúng i bit đầu giống local ID, bucket cuối chứa phần còn lại
+ * (prefix chung ≥ last, gồm cả vùng quanh chính mình). Bucket của 1 ID tính O(1) từ commonPrefixLength.
+ *
+ * Accelerated lookup (symbolBits = b > 1, mục 4.2 bài báo Kademlia): mỗi tầng xương sống xử lý b bit,
+ * gồm 2^b - 1 bucket, 1 bucket cho mỗi giá trị b bit khác với local ID ở tầng đó. Bảng lớn hơn
+ * khoảng (2^b - 1)/b lần nhưng mỗi hop sửa được b bit thay vì 1. b = 1 là bảng Kademlia thường.
+ *
+ * Khi bucket cuối đầy thì tách theo b bit tiếp theo (quy tắc local ID); bucket khác đầy thì contact mới
+ * vào replacement cache. Danh sách bucket và contact trong từng bucket đều là copy-on-write nên
+ * findClosestContacts không bao giờ khóa; touch contact đã biết chỉ ghi lastSeen (volatile).
+ */
 public class RoutingTable {
     public static final int ID_LENGTH_BITS = 160; // 160 bits
+    public static final int MAX_SYMBOL_BITS = 8;
+    public static final int MAX_FAILED_REQUESTS = 3; // số RPC lỗi liên tiếp trước khi loại contact
+    private static final long FRESH_MS = 30_000; // contact thấy trong khoảng này coi như còn sống, không ping
     private final NodeID localNodeId;
-    private final List<KBucket> buckets;
-    private final Map<NodeID, Contact> allContacts;
+    private final int symbolBits; // b: số bit mỗi tầng
+    private final int bucketsPerLevel; // 2^b - 1
+    private volatile List<KBucket> buckets; // chỉ thay bằng bản mới khi tách (giữ lock của bảng)
+    private final Map<NodeID, Contact> allContacts; // index NodeID -> contact đang nằm trong bucket
+    private volatile Function<Contact, CompletableFuture<Boolean>> pinger;
 
     public RoutingTable(NodeID localNodeId) {
+        this(localNodeId, 1);
+    }
+
+    public RoutingTable(NodeID localNodeId, int symbolBits) {
+        if (symbolBits < 1 || symbolBits > MAX_SYMBOL_BITS) {
+            throw new IllegalArgumentException("symbolBits must be in [1, " + MAX_SYMBOL_BITS + "]: " + symbolBits);
+        }
         this.localNodeId = localNodeId;
-        this.buckets = new ArrayList<>();
+        this.symbolBits = symbolBits;
+        this.bucketsPerLevel = (1 << symbolBits) - 1;
+        this.buckets = List.of(new KBucket(0)); // 1 bucket cho toàn bộ không gian
         this.allContacts = new ConcurrentHashMap<>();
-
-        // Khởi tạo với 1 bucket cho toàn bộ không gian
-        buckets.add(new KBucket(0));
     }
 
-    // Thêm contact vào routing table
-    public synchronized boolean addContact(Contact contact) {
+    // Thêm contact vào routing table. Contact đã biết chỉ cập nhật lastSeen/httpPort, không khóa;
+    // chỉ contact mới (thêm vào bucket, có thể tách bucket) mới giữ lock của bảng
+    public boolean addContact(Contact contact) {
         if (contact.getNodeId().equals(localNodeId)) {
             return false; // Không thêm chính mình
         }
 
-        int bucketIndex = getBucketIndex(contact.getNodeId());
-        KBucket bucket = buckets.get(bucketIndex);
-
-        boolean added = bucket.addContact(contact);
-
         Contact existing = allContacts.get(contact.getNodeId());
         if (existing != null) {
-            // Chỉ update các thông tin hợp lệ
-            if (contact.getHttpPort() != -1) existing.setHttpPort(contact.getHttpPort());
-            existing.setLastSeen(System.currentTimeMillis());
-        } else if (added) {
-            allContacts.put(contact.getNodeId(), contact);
-        } else if (bucketIndex == buckets.size() - 1) {
-            // Bucket cuối cùng đầy, cần split
-            splitBucket(bucketIndex);
-            return addContact(contact); // Thử lại sau khi split
+            touch(existing, contact);
+            return true;
+        }
+
+        KBucket full;
+        synchronized (this) {
+            existing = allContacts.get(contact.getNodeId());
+            if (existing != null) {
+                touch(existing, contact);
+                return true;
+            }
+            while (true) {
+                int index = getBucketIndex(contact.getNodeId());
+                KBucket bucket = buckets.get(index);
+                if (bucket.addContact(contact)) {
+                    allContacts.put(contact.getNodeId(), contact);
+                    return true;
+                }
+                // Bucket đầy: chỉ tách được bucket chứa local ID (bucket cuối); bucket khác giữ contact ở replacement cache
+                if (index != buckets.size() - 1 || !splitLastBucket()) {
+                    full = bucket;
+                    break;
+                }
+            }
         }
+        probeLeastRecentlySeen(full);
+        return false;
+    }
+
+    /**
+     * Ping-before-evict: bucket đầy và có contact mới chờ ở replacement cache thì ping contact lâu nhất
+     * chưa thấy (nếu đã im lặng hơn FRESH_MS). Không trả lời thì loại nó, contact mới nhất trong
+     * replacement cache được đưa lên thay. Mỗi bucket tối đa 1 ping cùng lúc, ping chạy bất đồng bộ.
+     */
+    private void probeLeastRecentlySeen(KBucket bucket) {
+        Function<Contact, CompletableFuture<Boolean>> ping = pinger;
+        if (ping == null) return;
+        Contact oldest = bucket.getLeastRecentlySeenContact();
+        if (oldest == null || !oldest.isStale(FRESH_MS) || !bucket.startProbe()) return;
 
-        return added;
+        ping.apply(oldest).whenComplete((alive, error) -> {
+            bucket.endProbe();
+            if (!Boolean.TRUE.equals(alive)) {
+                System.out.println("⚠ [RoutingTable] Evicting unresponsive contact " + oldest);
+                removeContact(oldest.getNodeId());
+            }
+        });
     }
 
+    // RPC tới contact có response: cập nhật lastSeen, xóa số lần lỗi và ghi RTT (rttNanos < 0 = không đo RTT)
+    public void recordResponse(Contact contact, long rttNanos) {
+        Contact known = allContacts.getOrDefault(contact.getNodeId(), contact);
+        known.updateLastSeen();
+        if (rttNanos >= 0) known.recordRtt(rttNanos);
+    }
 
-    // Tách bucket thành 2 bucket nhỏ hơn
-    private synchronized void splitBucket(int index) {
-        if (index != buckets.size() - 1) {
-            return; // Chỉ split bucket cuối
+    // RPC tới contact bị timeout; lỗi liên tiếp tới MAX_FAILED_REQUESTS thì loại khỏi bảng (true nếu đã loại)
+    public boolean recordFailure(Contact contact) {
+        Contact known = allContacts.get(contact.getNodeId());
+        if (known == null) {
+            contact.incrementFailedRequests();
+            return false;
         }
+        if (known.incrementFailedRequests() < MAX_FAILED_REQUESTS) return false;
+        System.out.println("⚠ [RoutingTable] Evicting contact after " + MAX_FAILED_REQUESTS + " failures: " + known);
+        return removeContact(known.getNodeId());
+    }
 
-        KBucket oldBucket = buckets.get(index);
-        int newDepth = oldBucket.getDepth() + 1;
+    // Hàm ping dùng cho ping-before-evict (KademliaRPC.pingAsync); null = không ping, chỉ dùng replacement cache
+    public void setPinger(Function<Contact, CompletableFuture<Boolean>> pinger) {
+        this.pinger = pinger;
+    }
 
-        if (newDepth > ID_LENGTH_BITS) {
-            return; // Không thể split thêm
+    // Chỉ update các thông tin hợp lệ; thứ tự LRU trong bucket lấy theo lastSeen nên không cần đụng bucket.
+    // Tọa độ Vivaldi nghe qua node khác chỉ dùng khi chưa có, tọa độ do chính contact gửi luôn mới hơn
+    private static void touch(Contact existing, Contact seen) {
+        if (seen.getHttpPort() != -1) existing.setHttpPort(seen.getHttpPort());
+        if (existing.getCoordinate() == null) existing.setCoordinate(seen.getCoordinate());
+        existing.setLastSeen(System.currentTimeMillis());
+    }
+
+    // Lấy Contact đã biết (cùng địa chỉ) thay vì tạo mới mỗi gói tin, rồi cập nhật routing table
+    public Contact touchContact(NodeID nodeId, InetSocketAddress address, int httpPort) {
+        Contact contact = allContacts.get(nodeId);
+        if (contact == null || !contact.getAddress().equals(address)) {
+            contact = new Contact(nodeId, address.getAddress(), address.getPort(), httpPort);
+        } else if (httpPort != -1) {
+            contact.setHttpPort(httpPort);
         }
+        addContact(contact);
+        return contact;
+    }
 
-        // Tạo 2 bucket mới
-        KBucket bucket0 = new KBucket(newDepth);
-        KBucket bucket1 = new KBucket(newDepth);
+    // Tách bucket cuối (prefix chung ≥ depth) thành 2^b - 1 bucket của tầng depth và bucket cuối mới
+    private boolean splitLastBucket() {
+        List<KBucket> current = buckets;
+        KBucket last = current.get(current.size() - 1);
+        int depth = last.getDepth();
+        if (depth + symbolBits > ID_LENGTH_BITS - 1) {
+            return false; // Không thể split thêm
+        }
 
-        // Phân phối lại contacts
-        for (Contact contact : oldBucket.getAllContacts()) {
-            if (contact.getNodeId().getBit(newDepth - 1) == 0) {
-                bucket0.addContact(contact);
-            } else {
-                bucket1.addContact(contact);
+        KBucket[] level = new KBucket[bucketsPerLevel];
+        for (int i = 0; i < bucketsPerLevel; i++) level[i] = new KBucket(depth);
+        KBucket near = new KBucket(depth + symbolBits);
+        for (Contact contact : last.getAllContacts()) {
+            splitTarget(level, near, depth, contact.getNodeId()).addContact(contact);
+        }
+        // Replacement cache cũng chia theo bucket mới; contact được nhận vào bucket còn chỗ thì vào index
+        for (Contact contact : last.getReplacementContacts()) {
+            if (splitTarget(level, near, depth, contact.getNodeId()).addContact(contact)) {
+                allContacts.put(contact.getNodeId(), contact);
             }
         }
 
-        // Thay thế bucket cũ
-        buckets.set(index, bucket0);
-        buckets.add(bucket1);
+        List<KBucket> split = new ArrayList<>(current.size() + bucketsPerLevel);
+        split.addAll(current.subList(0, current.size() - 1));
+        split.addAll(Arrays.asList(level));
+        split.add(near);
+        buckets = Collections.unmodifiableList(split);
+        return true;
+    }
+
+    private KBucket splitTarget(KBucket[] level, KBucket near, int depth, NodeID nodeId) {
+        if (localNodeId.commonPrefixLength(nodeId) >= depth + symbolBits) return near;
+        return level[symbol(nodeId, depth) - 1];
+    }
+
+    // b bit của nodeId tại vị trí depth, XOR với local ID (1..2^b-1 nếu khác local ở tầng này)
+    private int symbol(NodeID nodeId, int depth) {
+        return nodeId.getBits(depth, symbolBits) ^ localNodeId.getBits(depth, symbolBits);
     }
 
-    // Tìm bucket index cho nodeId
+    // Bucket của nodeId: tầng = prefix chung / b, trong tầng chọn theo b bit khác local; dồn vào bucket cuối nếu sâu hơn
     private int getBucketIndex(NodeID nodeId) {
-        int distance = localNodeId.getDistance(nodeId);
-        int bucketIndex = Math.max(0, distance - 1);
-        return Math.min(bucketIndex, buckets.size() - 1);
+        return bucketIndex(buckets, nodeId);
     }
 
-    // Tìm K contacts gần nhất với target
+    private KBucket bucketFor(NodeID nodeId) {
+        List<KBucket> current = buckets;
+        return current.get(bucketIndex(current, nodeId));
+    }
+
+    private int bucketIndex(List<KBucket> current, NodeID nodeId) {
+        int levels = (current.size() - 1) / bucketsPerLevel;
+        int level = localNodeId.commonPrefixLength(nodeId) / symbolBits;
+        if (level >= levels) return current.size() - 1;
+        return level * bucketsPerLevel + symbol(nodeId, level * symbolBits) - 1;
+    }
+
+    /**
+     * Tìm count contacts gần target nhất, đi từ bucket của target ra ngoài.
+     * Ở tầng L của target (x = b bit của target XOR local): nhóm có symbol y cách target đúng x^y ở b bit này,
+     * nên đi theo z = x^y = 0, 1, 2...; nhóm y = 0 là mọi bucket sâu hơn L. Sau đó tới tầng L-1, ..., 0
+     * (ở đó target trùng local nên symbol nhỏ gần hơn). Mỗi nhóm xa hơn hẳn nhóm trước, nên dừng ngay khi
+     * đã đủ count sau 1 nhóm, không đụng tới các bucket còn lại. Với b = 1 đây là: bucket của target,
+     * các bucket sâu hơn, rồi i-1, i-2, ..., 0.
+     */
     public List<Contact> findClosestContacts(NodeID target, int count) {
-        List<Contact> all = new ArrayList<>(allContacts.values());
-        all.sort((a, b) -> {
-            int distA = a.getNodeId().getDistance(target);
-            int distB = b.getNodeId().getDistance(target);
-            return Integer.compare(distA, distB);
-        });
-        return all.subList(0, Math.min(count, all.size()));
+        List<KBucket> current = buckets;
+        ClosestContacts closest = new ClosestContacts(target, count);
+        int levels = (current.size() - 1) / bucketsPerLevel;
+        int level = Math.min(localNodeId.commonPrefixLength(target) / symbolBits, levels);
+
+        if (level == levels) {
+            current.get(current.size() - 1).offerTo(closest);
+            if (closest.isFull()) return closest.toList();
+        } else {
+            int base = level * bucketsPerLevel;
+            int x = symbol(target, level * symbolBits);
+            for (int z = 0; z <= bucketsPerLevel; z++) {
+                int y = x ^ z;
+                if (y == 0) {
+                    for (int i = base + bucketsPerLevel; i < current.size(); i++) {
+                        current.get(i).offerTo(closest);
+                    }
+                } else {
+                    current.get(base + y - 1).offerTo(closest);
+                }
+                if (closest.isFull()) return closest.toList();
+            }
+        }
+        for (int l = level - 1; l >= 0; l--) {
+            for (int slot = 0; slot < bucketsPerLevel; slot++) {
+                current.get(l * bucketsPerLevel + slot).offerTo(closest);
+                if (closest.isFull()) return closest.toList();
+            }
+        }
+        return closest.toList();
     }
 
     // Lấy contact theo NodeID
@@ -101,15 +252,18 @@ public class RoutingTable {
         return allContacts.get(nodeId);
     }
 
-    // Xóa contact
+    // Xóa contact; contact trong replacement cache (nếu có) được đưa lên thay
     public synchronized boolean removeContact(NodeID nodeId) {
         Contact contact = allContacts.remove(nodeId);
-        if (contact != null) {
-            int bucketIndex = getBucketIndex(nodeId);
-            buckets.get(bucketIndex).removeContact(contact);
-            return true;
+        if (contact == null) {
+            return false;
         }
-        return false;
+        KBucket bucket = bucketFor(nodeId);
+        bucket.removeContact(contact);
+        for (Contact promoted : bucket.getAllContacts()) {
+            allContacts.putIfAbsent(promoted.getNodeId(), promoted);
+        }
+        return true;
     }
 
     // Lấy tất cả contacts
@@ -125,13 +279,17 @@ public class RoutingTable {
         return buckets.size();
     }
 
+    public int getSymbolBits() {
+        return symbolBits;
+    }
+
     public NodeID getLocalNodeId() {
         return localNodeId;
     }
 
     @Override
     public String toString() {
-        return String.format("RoutingTable{localId=%s, buckets=%d, contacts=%d}",
-                localNodeId.toString().substring(0, 8), buckets.size(), allContacts.size());
+        return String.format("RoutingTable{localId=%s, b=%d, buckets=%d, contacts=%d}",
+                localNodeId.toString().substring(0, 8), symbolBits, buckets.size(), allContacts.size());
     }
-}
\ No newline at end of file
+}
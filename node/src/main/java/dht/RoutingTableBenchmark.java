@@ -0,0 +1,81 @@
+package dht;
+
+import core.*;
+
+import java.net.InetAddress;
+import java.util.*;
+
+/**
+ * Đo RoutingTable với nhiều contact giả lập trong 1 process: tốc độ addContact, findClosestContacts
+ * (đi bucket từ target ra ngoài) so với sort toàn bộ contact như bản cũ, và kiểm tra 2 cách cho cùng kết quả.
+ * Chạy: java dht.RoutingTableBenchmark [contacts] [queries] [symbolBits]
+ */
+public class RoutingTableBenchmark {
+    public static void main(String[] args) {
+        int contacts = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        int symbolBits = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        Random random = new Random(5);
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        RoutingTable table = new RoutingTable(randomId(random), symbolBits);
+        Contact[] all = new Contact[contacts];
+        for (int i = 0; i < contacts; i++) {
+            all[i] = new Contact(randomId(random), loopback, 1024 + i % 60000, -1);
+        }
+
+        // 1. Nạp contact (lặp lại 2 lần: lần 2 là cập nhật contact đã biết / đã vào replacement cache)
+        long start = System.nanoTime();
+        for (Contact contact : all) table.addContact(contact);
+        for (Contact contact : all) table.addContact(contact);
+        long addNs = System.nanoTime() - start;
+        System.out.printf("addContact: %,d calls in %,.1f ms (%,.0f ops/s) -> %s%n",
+                2L * contacts, addNs / 1e6, 2L * contacts * 1e9 / addNs, table);
+
+        NodeID[] targets = new NodeID[queries];
+        for (int i = 0; i < queries; i++) {
+            // nửa số target nằm gần local ID để đi qua cả các bucket sâu
+            targets[i] = i % 2 == 0 ? randomId(random) : near(table.getLocalNodeId(), random);
+        }
+
+        // 2. Kết quả phải giống chọn K gần nhất trên toàn bộ contact trong bảng
+        for (int i = 0; i < 1000; i++) {
+            if (!table.findClosestContacts(targets[i], KBucket.K).equals(sortAll(table, targets[i]))) {
+                throw new IllegalStateException("Bucket walk differs from full sort for " + targets[i]);
+            }
+        }
+        System.out.println("Closest-K check OK");
+
+        // 3. Throughput truy vấn K gần nhất
+        long sink = 0;
+        for (int i = 0; i < queries / 10; i++) {
+            sink += table.findClosestContacts(targets[i], KBucket.K).size() + sortAll(table, targets[i]).size();
+        }
+        start = System.nanoTime();
+        for (NodeID target : targets) sink += table.findClosestContacts(target, KBucket.K).size();
+        long walkNs = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (NodeID target : targets) sink += sortAll(table, target).size();
+        long sortNs = System.nanoTime() - start;
+        System.out.printf("findClosestContacts: bucket walk %,.0f ops/s | sort all %,.0f ops/s | x%.1f (sink=%d)%n",
+                queries * 1e9 / walkNs, queries * 1e9 / sortNs, (double) sortNs / walkNs, sink);
+    }
+
+    // Cách cũ: copy mọi contact rồi sort theo khoảng cách
+    private static List<Contact> sortAll(RoutingTable table, NodeID target) {
+        List<Contact> contacts = table.getAllContacts();
+        contacts.sort(new XorDistanceComparator(target));
+        return contacts.subList(0, Math.min(KBucket.K, contacts.size()));
+    }
+
+    private static NodeID near(NodeID local, Random random) {
+        int prefix = 10 + random.nextInt(10);
+        long mask = -1L >>> prefix; // giữ prefix bit đầu của local, phần sau ngẫu nhiên
+        long high = (local.getHigh() & ~mask) | (random.nextLong() & mask);
+        return new NodeID(high, random.nextLong(), random.nextInt());
+    }
+
+    private static NodeID randomId(Random random) {
+        return new NodeID(random.nextLong(), random.nextLong(), random.nextInt());
+    }
+}
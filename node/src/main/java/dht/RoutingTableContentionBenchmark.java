@@ -0,0 +1,124 @@
+package dht;
+
+import core.*;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Đo RoutingTable khi nhiều luồng nhận gói tin cùng touch contact trong lúc các luồng khác chạy lookup.
+ * Mỗi luồng nhận gọi touchContact như KademliaServer (phần lớn là contact đã biết, 1/64 là node mới),
+ * mỗi luồng lookup gọi findClosestContacts. So sánh với "locked": mọi thao tác đi qua 1 lock chung,
+ * giống bảng synchronized cũ. In throughput từng loại và độ trễ lookup lớn nhất.
+ * Chạy: java dht.RoutingTableContentionBenchmark [receivers] [lookups] [seconds]
+ */
+public class RoutingTableContentionBenchmark {
+    public static void main(String[] args) throws Exception {
+        int receivers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        System.out.println("receivers=" + receivers + " lookups=" + lookups + " seconds=" + seconds
+                + " cpus=" + Runtime.getRuntime().availableProcessors());
+        run("locked", true, receivers, lookups, seconds);
+        run("lock-free", false, receivers, lookups, seconds);
+        run("locked", true, receivers, lookups, seconds);
+        run("lock-free", false, receivers, lookups, seconds);
+    }
+
+    private static void run(String name, boolean locked, int receivers, int lookups, int seconds) throws Exception {
+        Random random = new Random(3);
+        RoutingTable table = new RoutingTable(randomId(random));
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        for (int i = 0; i < 50_000; i++) {
+            table.addContact(new Contact(randomId(random), loopback, 1024 + i % 60000, -1));
+        }
+        List<Contact> known = table.getAllContacts();
+        Object lock = new Object();
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder touches = new LongAdder();
+        LongAdder closest = new LongAdder();
+        AtomicLong worstLookupNs = new AtomicLong();
+        CountDownLatch ready = new CountDownLatch(receivers + lookups);
+        CountDownLatch go = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(receivers + lookups);
+
+        for (int t = 0; t < receivers; t++) {
+            long seed = t;
+            pool.submit(() -> {
+                SplittableRandom rnd = new SplittableRandom(seed);
+                ready.countDown();
+                await(go);
+                long count = 0;
+                while (running.get()) {
+                    Contact contact = known.get(rnd.nextInt(known.size()));
+                    NodeID id = (count & 63) == 0
+                            ? new NodeID(rnd.nextLong(), rnd.nextLong(), rnd.nextInt())
+                            : contact.getNodeId();
+                    if (locked) {
+                        synchronized (lock) {
+                            table.touchContact(id, contact.getAddress(), 8080);
+                        }
+                    } else {
+                        table.touchContact(id, contact.getAddress(), 8080);
+                    }
+                    count++;
+                }
+                touches.add(count);
+                return null;
+            });
+        }
+        for (int t = 0; t < lookups; t++) {
+            long seed = 1000 + t;
+            pool.submit(() -> {
+                SplittableRandom rnd = new SplittableRandom(seed);
+                ready.countDown();
+                await(go);
+                long count = 0;
+                long worst = 0;
+                while (running.get()) {
+                    NodeID target = new NodeID(rnd.nextLong(), rnd.nextLong(), rnd.nextInt());
+                    long start = System.nanoTime();
+                    if (locked) {
+                        synchronized (lock) {
+                            table.findClosestContacts(target, KBucket.K);
+                        }
+                    } else {
+                        table.findClosestContacts(target, KBucket.K);
+                    }
+                    worst = Math.max(worst, System.nanoTime() - start);
+                    count++;
+                }
+                closest.add(count);
+                worstLookupNs.accumulateAndGet(worst, Math::max);
+                return null;
+            });
+        }
+
+        ready.await();
+        go.countDown();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+
+        System.out.printf("%-9s touchContact %,12.0f ops/s | findClosestContacts %,10.0f ops/s | worst lookup %,8.2f ms | %s%n",
+                name, touches.sum() / (double) seconds, closest.sum() / (double) seconds,
+                worstLookupNs.get() / 1e6, table);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static NodeID randomId(Random random) {
+        return new NodeID(random.nextLong(), random.nextLong(), random.nextInt());
+    }
+}
@@ -0,0 +1,249 @@
+package dht;
+
+import core.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Pool kết nối TCP dài hạn cho các RPC lớn (STORE_PIECE(S) / GET_PIECE(S) / STORE_METADATA).
+ *
+ * Mỗi peer có tối đa maxPerPeer kết nối. Request được ghi thành frame MessageCodec
+ * (u32 length + body) nên nhiều request có thể pipeline trên cùng một socket;
+ * response được ghép lại với request qua requestId trong KademliaRPC.handleResponse.
+ * Các kết nối chạy trên Reactor dùng chung với KademliaServer (không có thread đọc riêng mỗi kết nối);
+ * response và dữ liệu piece được giao trên worker pool nhỏ của pool.
+ */
+public class TcpConnectionPool {
+    public static final int DEFAULT_MAX_PER_PEER = 2;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 60_000;
+
+    private final Map<InetSocketAddress, List<Connection>> connections = new ConcurrentHashMap<>();
+    private final Consumer<Message> responseHandler;
+    private final PayloadReceiver payloadReceiver;
+    private final int maxPerPeer;
+    private final long idleTimeoutMs;
+    private final int connectTimeoutMs;
+    private final Reactor reactor;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService reaper;
+
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+    private final AtomicLong reaped = new AtomicLong();
+
+    // Nơi nhận dữ liệu piece của response (xem TcpSession.PayloadSink); null = gom vào heap như message thường
+    public interface PayloadReceiver {
+        TcpSession.PayloadSink open(Message header, int length);
+    }
+
+    public TcpConnectionPool(Reactor reactor, Consumer<Message> responseHandler, PayloadReceiver payloadReceiver) {
+        this(reactor, responseHandler, payloadReceiver, DEFAULT_MAX_PER_PEER, DEFAULT_IDLE_TIMEOUT_MS, 10_000);
+    }
+
+    public TcpConnectionPool(Reactor reactor, Consumer<Message> responseHandler, PayloadReceiver payloadReceiver,
+                             int maxPerPeer, long idleTimeoutMs, int connectTimeoutMs) {
+        this.reactor = reactor;
+        this.responseHandler = responseHandler;
+        this.payloadReceiver = payloadReceiver;
+        this.maxPerPeer = maxPerPeer;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.workers = Executors.newFixedThreadPool(4, r -> {
+            Thread t = new Thread(r, "kademlia-tcp-client");
+            t.setDaemon(true);
+            return t;
+        });
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "kademlia-tcp-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleTimeoutMs / 4);
+        reaper.scheduleAtFixedRate(this::reapIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Ghi 1 frame tới contact, dùng lại kết nối sẵn có nếu được; frameParts được ghi liền nhau thành 1 frame
+    public void send(Contact contact, byte[]... frameParts) throws IOException {
+        Connection connection = acquire(contact.getAddress());
+        try {
+            connection.write(true, frameParts);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    // Ghi 1 frame không chờ trả lời (vd. response quá lớn cho UDP) tới address
+    public void sendOneWay(InetSocketAddress address, byte[] frame) throws IOException {
+        Connection connection = acquire(address);
+        try {
+            connection.write(false, frame);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private Connection acquire(InetSocketAddress address) throws IOException {
+        List<Connection> peerConnections = connections.computeIfAbsent(address, a -> new CopyOnWriteArrayList<>());
+
+        Connection best = reusable(peerConnections);
+        if (best != null) return best;
+
+        synchronized (peerConnections) {
+            best = reusable(peerConnections);
+            if (best != null) return best;
+            Connection created = open(address);
+            peerConnections.add(created);
+            return created;
+        }
+    }
+
+    // Chọn kết nối đang rảnh nhất; chỉ trả null (mở thêm) khi tất cả đều bận và chưa đạt giới hạn
+    private Connection reusable(List<Connection> peerConnections) {
+        Connection best = null;
+        for (Connection c : peerConnections) {
+            if (c.isOpen() && (best == null || c.inFlight.get() < best.inFlight.get())) best = c;
+        }
+        if (best != null && (best.inFlight.get() == 0 || peerConnections.size() >= maxPerPeer)) {
+            reuses.incrementAndGet();
+            return best;
+        }
+        return null;
+    }
+
+    // Connect chặn (có timeout) trên thread gọi, sau đó kết nối được chuyển sang reactor
+    private Connection open(InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+            channel.socket().connect(address, connectTimeoutMs);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        connects.incrementAndGet();
+
+        Connection connection = new Connection(address);
+        connection.session = new TcpSession(reactor, channel, connection, workers).start();
+        return connection;
+    }
+
+    // Đóng các kết nối không đọc/ghi gì trong idleTimeoutMs (request treo khi đó đã timeout ở RPC)
+    private void reapIdle() {
+        long now = System.currentTimeMillis();
+        for (List<Connection> peerConnections : connections.values()) {
+            for (Connection c : peerConnections) {
+                if (now - c.lastUsed > idleTimeoutMs) {
+                    reaped.incrementAndGet();
+                    c.close();
+                }
+            }
+        }
+        connections.values().removeIf(List::isEmpty);
+    }
+
+    public long getConnectCount() { return connects.get(); }
+    public long getReuseCount() { return reuses.get(); }
+    public long getReapedCount() { return reaped.get(); }
+
+    public int getOpenConnections() {
+        int open = 0;
+        for (List<Connection> peerConnections : connections.values()) open += peerConnections.size();
+        return open;
+    }
+
+    public void shutdown() {
+        reaper.shutdownNow();
+        for (List<Connection> peerConnections : connections.values()) {
+            for (Connection c : peerConnections) c.close();
+        }
+        connections.clear();
+        workers.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TcpConnectionPool{open=%d, connects=%d, reuses=%d, reaped=%d}",
+                getOpenConnections(), connects.get(), reuses.get(), reaped.get());
+    }
+
+    private final class Connection implements TcpSession.Listener {
+        private final InetSocketAddress address;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile TcpSession session;
+        private volatile long lastUsed = System.currentTimeMillis();
+        private volatile boolean open = true;
+
+        Connection(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        boolean isOpen() {
+            return open;
+        }
+
+        // request: chờ response trên kết nối này (tính vào inFlight)
+        void write(boolean request, byte[]... frameParts) throws IOException {
+            if (!open) throw new IOException("Connection to " + address + " closed");
+            if (request) inFlight.incrementAndGet();
+            lastUsed = System.currentTimeMillis();
+            session.send(frameParts);
+        }
+
+        @Override
+        public void onMessage(TcpSession session, Message message) {
+            lastUsed = System.currentTimeMillis();
+            inFlight.updateAndGet(n -> Math.max(0, n - 1));
+            responseHandler.accept(message);
+        }
+
+        @Override
+        public TcpSession.PayloadSink onPayload(TcpSession session, Message header, int length) {
+            lastUsed = System.currentTimeMillis();
+            TcpSession.PayloadSink sink = payloadReceiver.open(header, length);
+            if (sink == null) return null;
+            // Response header được chuyển cho RPC sau khi piece đã ghi xong
+            return new TcpSession.PayloadSink() {
+                @Override
+                public void write(byte[] data, int offset, int len) throws IOException {
+                    lastUsed = System.currentTimeMillis();
+                    sink.write(data, offset, len);
+                }
+
+                @Override
+                public void complete() {
+                    sink.complete();
+                    onMessage(session, header);
+                }
+
+                @Override
+                public void abort() {
+                    sink.abort();
+                }
+            };
+        }
+
+        @Override
+        public void onClose(TcpSession session) {
+            close();
+        }
+
+        void close() {
+            if (!open) return;
+            open = false;
+            List<Connection> peerConnections = connections.get(address);
+            if (peerConnections != null) peerConnections.remove(this);
+            if (session != null) session.close();
+        }
+    }
+}
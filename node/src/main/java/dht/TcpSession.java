@@ -0,0 +1,409 @@
+package dht;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 1 kết nối TCP chạy trên {@link Reactor}.
+ *
+ * Thread reactor đọc socket và tách frame MessageCodec; frame và từng đoạn dữ liệu piece được giao
+ * cho Listener trên 1 hàng đợi tuần tự chạy ở worker pool, nên thứ tự trên kết nối được giữ nguyên
+ * mà việc ghi đĩa không chặn event loop. Khi hàng đợi giữ quá nhiều byte thì tạm ngừng đọc socket.
+ * Ghi ra socket đi qua hàng đợi outbound, được xả khi kênh sẵn sàng (kể cả FileChannel.transferTo).
+ */
+public class TcpSession implements Reactor.Handler {
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+    private static final long MAX_PENDING_INBOUND = 4L * 1024 * 1024;
+
+    public interface Listener {
+        void onMessage(TcpSession session, Message message);
+
+        // Frame có dữ liệu piece: trả sink nhận từng đoạn, hoặc null để gom payload vào heap rồi gọi onMessage
+        PayloadSink onPayload(TcpSession session, Message header, int length);
+
+        default void onClose(TcpSession session) {}
+    }
+
+    /**
+     * Nhận dữ liệu piece theo từng đoạn. Nếu write() ném lỗi, các đoạn còn lại bị bỏ qua nhưng
+     * complete() vẫn được gọi để sink tự kết thúc (vd. trả lời thất bại). abort() khi kết nối đóng giữa chừng.
+     */
+    public interface PayloadSink {
+        void write(byte[] data, int offset, int length) throws IOException;
+        void complete();
+        default void abort() {}
+    }
+
+    private final Reactor reactor;
+    private final SocketChannel channel;
+    private final Listener listener;
+    private final SerialExecutor inbound;
+    private final InetSocketAddress remoteAddress;
+    private volatile SelectionKey key;
+    private volatile boolean open = true;
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    // Chỉ dùng trên thread reactor
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private ByteBuffer largeFrame;      // frame không stream lớn hơn readBuffer
+    private int payloadRemaining;
+    private volatile boolean readPaused;
+    private final AtomicLong pendingInbound = new AtomicLong();
+
+    // Chỉ dùng trong hàng đợi inbound
+    private Message payloadHeader;
+    private PayloadSink sink;
+    private boolean sinkFailed;
+    private byte[] heapPayload;
+    private int heapOffset;
+
+    private final Queue<Outbound> outbound = new ConcurrentLinkedQueue<>();
+
+    public TcpSession(Reactor reactor, SocketChannel channel, Listener listener, Executor workers) throws IOException {
+        this.reactor = reactor;
+        this.channel = channel;
+        this.listener = listener;
+        this.inbound = new SerialExecutor(workers);
+        this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+    }
+
+    // Đăng ký với reactor; frame bắt đầu được đọc sau khi đăng ký xong
+    public TcpSession start() {
+        reactor.register(channel, SelectionKey.OP_READ, this).whenComplete((k, e) -> {
+            if (e != null) {
+                close();
+            } else {
+                key = k;
+            }
+        });
+        return this;
+    }
+
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    // ==================== READ (reactor) ====================
+
+    @Override
+    public void ready(SelectionKey key) {
+        try {
+            if (key.isReadable()) read();
+            if (open && key.isValid() && key.isWritable()) flush();
+        } catch (IOException e) {
+            System.err.println("[TCP] Connection to " + remoteAddress + " lost: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void read() throws IOException {
+        int n = channel.read(largeFrame != null ? largeFrame : readBuffer);
+        if (n < 0) {
+            close();
+            return;
+        }
+        lastActivity = System.currentTimeMillis();
+        if (largeFrame != null) {
+            if (largeFrame.hasRemaining()) return;
+            largeFrame.flip();
+            deliver(MessageCodec.decode(largeFrame));
+            largeFrame = null;
+            return;
+        }
+        readBuffer.flip();
+        try {
+            process();
+        } finally {
+            readBuffer.compact();
+        }
+    }
+
+    private void process() throws IOException {
+        while (open && !readPaused) {
+            if (payloadRemaining > 0) {
+                int take = Math.min(readBuffer.remaining(), payloadRemaining);
+                if (take == 0) return;
+                byte[] chunk = new byte[take];
+                readBuffer.get(chunk);
+                payloadRemaining -= take;
+                deliverChunk(chunk, payloadRemaining == 0);
+                continue;
+            }
+
+            MessageCodec.StreamedFrame frame = MessageCodec.decodeStreamingFrame(readBuffer);
+            if (frame == null) {
+                if (readBuffer.remaining() >= 6 && 4 + readBuffer.getInt(readBuffer.position()) > READ_BUFFER_SIZE) {
+                    startLargeFrame();
+                }
+                return;
+            }
+            if (!frame.hasPayload()) {
+                deliver(frame.getMessage());
+            } else {
+                startPayload(frame.getMessage(), frame.getPayloadLength());
+            }
+        }
+    }
+
+    // Frame không vừa readBuffer: đọc riêng vào buffer đúng kích thước (decodeStreamingFrame đã kiểm tra length/type).
+    // Frame có payload thì chỉ phần header cần vừa readBuffer, nên ở đây chắc chắn là header quá lớn
+    private void startLargeFrame() throws IOException {
+        int length = readBuffer.getInt(readBuffer.position());
+        if (MessageCodec.hasStreamedPayload(Message.MessageType.values()[readBuffer.get(readBuffer.position() + 5) & 0xFF])) {
+            if (readBuffer.remaining() < READ_BUFFER_SIZE) return; // header có thể vẫn vừa, đợi thêm dữ liệu
+            throw new IOException("Piece frame header larger than " + READ_BUFFER_SIZE + " bytes");
+        }
+        largeFrame = ByteBuffer.allocate(4 + length);
+        largeFrame.put(readBuffer);
+    }
+
+    private void deliver(Message message) {
+        inbound.execute(() -> listener.onMessage(this, message));
+    }
+
+    private void startPayload(Message header, int length) {
+        payloadRemaining = length;
+        inbound.execute(() -> {
+            payloadHeader = header;
+            sinkFailed = false;
+            sink = listener.onPayload(this, header, length);
+            if (sink == null) {
+                heapPayload = new byte[length];
+                heapOffset = 0;
+            }
+        });
+        if (length == 0) {
+            inbound.execute(this::finishPayload);
+        }
+    }
+
+    private void deliverChunk(byte[] chunk, boolean last) {
+        if (pendingInbound.addAndGet(chunk.length) > MAX_PENDING_INBOUND) {
+            pauseReading();
+        }
+        inbound.execute(() -> {
+            try {
+                if (sink == null) {
+                    System.arraycopy(chunk, 0, heapPayload, heapOffset, chunk.length);
+                    heapOffset += chunk.length;
+                } else if (!sinkFailed) {
+                    sink.write(chunk, 0, chunk.length);
+                }
+            } catch (IOException e) {
+                System.err.println("❌ [TCP] Failed to write piece data: " + e.getMessage());
+                sinkFailed = true;
+            }
+            if (last) finishPayload();
+            if (pendingInbound.addAndGet(-chunk.length) < MAX_PENDING_INBOUND / 2 && readPaused) {
+                reactor.execute(this::resumeReading);
+            }
+        });
+    }
+
+    private void finishPayload() {
+        PayloadSink finished = sink;
+        Message header = payloadHeader;
+        byte[] data = heapPayload;
+        sink = null;
+        payloadHeader = null;
+        heapPayload = null;
+        if (finished != null) {
+            finished.complete();
+        } else {
+            listener.onMessage(this, MessageCodec.withPayload(header, data));
+        }
+    }
+
+    private void pauseReading() {
+        readPaused = true;
+        if (key != null) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    private void resumeReading() {
+        if (!readPaused || !open) return;
+        readPaused = false;
+        if (key != null && key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        // Xử lý nốt các frame còn nằm trong readBuffer từ lần đọc trước
+        readBuffer.flip();
+        try {
+            process();
+        } catch (IOException e) {
+            System.err.println("[TCP] Connection to " + remoteAddress + " lost: " + e.getMessage());
+            close();
+        } finally {
+            readBuffer.compact();
+        }
+    }
+
+    // ==================== WRITE ====================
+
+    // Các phần được ghi liền nhau thành 1 frame
+    public void send(byte[]... frameParts) {
+        ByteBuffer[] buffers = new ByteBuffer[frameParts.length];
+        for (int i = 0; i < frameParts.length; i++) buffers[i] = ByteBuffer.wrap(frameParts[i]);
+        enqueue(new BufferWrite(buffers));
+    }
+
+    public void send(ByteBuffer... buffers) {
+        enqueue(new BufferWrite(buffers));
+    }
+
+    // Header rồi size byte của file (transferTo, không qua heap); file được đóng khi ghi xong hoặc kết nối đóng
+    public void sendFile(ByteBuffer header, FileChannel file, long size) {
+        enqueue(new BufferWrite(header));
+        enqueue(new FileWrite(file, size));
+    }
+
+    private void enqueue(Outbound item) {
+        if (!open) {
+            item.release();
+            return;
+        }
+        outbound.add(item);
+        reactor.execute(() -> {
+            try {
+                flush();
+            } catch (IOException e) {
+                System.err.println("[TCP] Write to " + remoteAddress + " failed: " + e.getMessage());
+                close();
+            }
+        });
+    }
+
+    private void flush() throws IOException {
+        if (!open || key == null) return;
+        Outbound item;
+        while ((item = outbound.peek()) != null) {
+            if (!item.writeTo(channel)) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            outbound.poll();
+            item.release();
+            lastActivity = System.currentTimeMillis();
+        }
+        if (key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    public void close() {
+        if (!open) return;
+        open = false;
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+        Outbound item;
+        while ((item = outbound.poll()) != null) item.release();
+        inbound.execute(() -> {
+            if (sink != null) sink.abort();
+            sink = null;
+            listener.onClose(this);
+        });
+    }
+
+    private interface Outbound {
+        // true khi đã ghi hết
+        boolean writeTo(SocketChannel channel) throws IOException;
+        default void release() {}
+    }
+
+    private static final class BufferWrite implements Outbound {
+        private final ByteBuffer[] buffers;
+        private final ByteBuffer last;
+
+        BufferWrite(ByteBuffer... buffers) {
+            this.buffers = buffers;
+            this.last = buffers[buffers.length - 1];
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            channel.write(buffers);
+            return !last.hasRemaining();
+        }
+    }
+
+    private static final class FileWrite implements Outbound {
+        private final FileChannel file;
+        private final long size;
+        private long position;
+
+        FileWrite(FileChannel file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            while (position < size) {
+                long written = file.transferTo(position, size - position, channel);
+                if (written <= 0) return false;
+                position += written;
+            }
+            return true;
+        }
+
+        @Override
+        public void release() {
+            try {
+                file.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    // Chạy task lần lượt từng cái một trên executor dùng chung
+    private static final class SerialExecutor implements Executor {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final Executor executor;
+
+        SerialExecutor(Executor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        System.err.println("❌ [TCP] Handler failed: " + e.getMessage());
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package dht;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hashed timing wheel: 1 thread quản lý timeout của mọi RPC đang chờ.
+ *
+ * Vòng có wheelSize ô, mỗi ô ứng với tickMs; timeout hạn xa hơn 1 vòng mang theo số vòng còn lại.
+ * schedule()/cancel() chỉ đẩy vào hàng đợi lock-free, thread của wheel mới đụng tới các ô,
+ * nên chi phí mỗi request là O(1) và không cần thread nào chặn chờ từng request.
+ * Task hết hạn chạy trên thread của wheel nên phải ngắn (vd. completeExceptionally).
+ */
+public class TimingWheel {
+
+    public final class Timeout {
+        private static final int PENDING = 0, CANCELLED = 1, EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline; // ns, tính từ startTime
+        private long remainingRounds;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private Timeout next, prev;
+        private Bucket bucket;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // true nếu hủy được (task chưa chạy)
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) return false;
+            cancelled.add(this);
+            return true;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    // Danh sách liên kết đôi các timeout của 1 ô, chỉ thread của wheel truy cập
+    private static final class Bucket {
+        private Timeout head, tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) timeout.prev.next = next;
+            if (next != null) next.prev = timeout.prev;
+            if (timeout == head) head = next;
+            if (timeout == tail) tail = timeout.prev;
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final long startTime = System.nanoTime();
+    private final Thread worker;
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private volatile boolean running = true;
+    private long tick;
+
+    public TimingWheel(String name, long tickMs, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) throw new IllegalArgumentException("wheelSize must be a power of two");
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        this.wheel = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) wheel[i] = new Bucket();
+        this.mask = wheelSize - 1;
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public Timeout schedule(Runnable task, long delayMs) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delayMs));
+        pending.incrementAndGet();
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    public long getPending() {
+        return pending.get();
+    }
+
+    public long getExpired() {
+        return expired.get();
+    }
+
+    private void run() {
+        while (running) {
+            long tickDeadline = tickNanos * (tick + 1);
+            long sleepNanos = tickDeadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) return;
+                }
+            }
+
+            removeCancelled();
+            transferScheduled();
+            expire(wheel[(int) (tick & mask)], tickDeadline);
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            pending.decrementAndGet();
+            if (timeout.bucket != null) timeout.bucket.remove(timeout);
+        }
+    }
+
+    // Giới hạn số timeout chuyển mỗi tick để 1 đợt request lớn không làm trễ việc hết hạn
+    private void transferScheduled() {
+        for (int i = 0; i < 100_000; i++) {
+            Timeout timeout = scheduled.poll();
+            if (timeout == null) return;
+            if (timeout.state.get() == Timeout.CANCELLED) continue; // đã đếm ở removeCancelled
+
+            long ticks = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (ticks - tick) / wheel.length;
+            // Hạn đã qua thì đặt vào ô hiện tại để hết hạn ngay trong tick này
+            long slot = Math.max(ticks, tick);
+            wheel[(int) (slot & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Bucket bucket, long tickDeadline) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+                timeout = timeout.next;
+                continue;
+            }
+            if (timeout.deadline > tickDeadline) {
+                timeout = timeout.next; // không xảy ra nếu tính ô đúng, phòng hờ
+                continue;
+            }
+            Timeout next = bucket.remove(timeout);
+            if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+                pending.decrementAndGet();
+                expired.incrementAndGet();
+                try {
+                    timeout.task.run();
+                } catch (Exception e) {
+                    System.err.println("❌ [TimingWheel] Timeout task failed: " + e.getMessage());
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TimingWheel{pending=%d, expired=%d}", pending.get(), expired.get());
+    }
+}
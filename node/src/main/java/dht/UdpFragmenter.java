@@ -0,0 +1,307 @@
+package dht;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chia frame MessageCodec lớn hơn FRAGMENT_THRESHOLD thành các datagram ≤ 1200 byte (tránh IP fragmentation)
+ * và ghép lại ở bên nhận. Frame lớn hơn ceiling vẫn đi TCP.
+ *
+ * Datagram fragment (byte đầu khác 0 nên không nhầm với frame thường, vốn bắt đầu bằng u32 length ≤ MessageCodec.MAX_FRAME_SIZE = 64MB):
+ * <pre>
+ *   DATA: u8 0xF0 | u8 version | u32 transferId | u16 index | u16 count | payload
+ *   NACK: u8 0xF1 | u8 version | u32 transferId | u16 n | u16 index * n   // xin gửi lại các mảnh thiếu
+ *   ACK:  u8 0xF2 | u8 version | u32 transferId                          // đã ghép xong, bên gửi bỏ bản lưu
+ * </pre>
+ * Bên nhận gửi NACK khi không có mảnh mới trong NACK_DELAY_MS, bỏ transfer dở sau REASSEMBLY_TIMEOUT_MS;
+ * transfer vừa ghép xong được nhớ thêm REASSEMBLY_TIMEOUT_MS để bỏ qua mảnh trùng đến muộn.
+ * Bên gửi giữ các mảnh tới khi có ACK hoặc hết hạn để gửi lại có chọn lọc.
+ */
+public class UdpFragmenter {
+    public static final int MAX_DATAGRAM = 1200;
+    public static final int FRAGMENT_THRESHOLD = MAX_DATAGRAM;
+    public static final int DEFAULT_CEILING = 128 * 1024;
+
+    private static final byte DATA = (byte) 0xF0;
+    private static final byte NACK = (byte) 0xF1;
+    private static final byte ACK = (byte) 0xF2;
+    private static final int DATA_HEADER = 1 + 1 + 4 + 2 + 2;
+    private static final int MAX_PAYLOAD = MAX_DATAGRAM - DATA_HEADER;
+    private static final long NACK_DELAY_MS = 150;
+    private static final int MAX_NACKS = 4;
+    private static final long REASSEMBLY_TIMEOUT_MS = 3000;
+
+    public interface DatagramSender {
+        void send(ByteBuffer datagram, InetSocketAddress target) throws IOException;
+    }
+
+    private final DatagramSender sender;
+    private final int ceiling;
+    private final AtomicInteger nextTransferId = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+    private final Map<TransferKey, Outgoing> outgoing = new ConcurrentHashMap<>();
+    private final Map<TransferKey, Incoming> incoming = new ConcurrentHashMap<>();
+    private final Map<TransferKey, Long> completed = new ConcurrentHashMap<>(); // key -> thời điểm ghép xong
+    private final ScheduledExecutorService timer;
+
+    private final AtomicLong fragmentedSent = new AtomicLong();
+    private final AtomicLong reassembled = new AtomicLong();
+    private final AtomicLong retransmitted = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    public UdpFragmenter(DatagramSender sender, int ceiling) {
+        this.sender = sender;
+        this.ceiling = ceiling;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "kademlia-udp-fragments");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(this::sweep, NACK_DELAY_MS / 2, NACK_DELAY_MS / 2, TimeUnit.MILLISECONDS);
+    }
+
+    // UDP_FRAGMENT_CEILING: frame lớn nhất còn gửi qua UDP (bằng fragment), lớn hơn thì đi TCP
+    public static int ceilingFromEnv() {
+        String ceiling = System.getenv("UDP_FRAGMENT_CEILING");
+        return ceiling == null || ceiling.isBlank() ? DEFAULT_CEILING : Integer.parseInt(ceiling.trim());
+    }
+
+    public int getCeiling() {
+        return ceiling;
+    }
+
+    public static boolean isFragmentPacket(ByteBuffer packet) {
+        byte marker = packet.get(packet.position());
+        return marker == DATA || marker == NACK || marker == ACK;
+    }
+
+    // ==================== SEND ====================
+
+    public void send(byte[] frame, InetSocketAddress target) throws IOException {
+        if (frame.length > ceiling) {
+            throw new IOException("Frame of " + frame.length + " bytes exceeds UDP fragment ceiling " + ceiling);
+        }
+        int count = (frame.length + MAX_PAYLOAD - 1) / MAX_PAYLOAD;
+        Outgoing transfer = new Outgoing(frame, count);
+        TransferKey key = new TransferKey(target, nextTransferId.getAndIncrement());
+        outgoing.put(key, transfer);
+
+        for (int i = 0; i < count; i++) {
+            sender.send(transfer.fragment(key.transferId, i), target);
+        }
+        fragmentedSent.incrementAndGet();
+    }
+
+    // ==================== RECEIVE ====================
+
+    /**
+     * Xử lý 1 datagram fragment/NACK/ACK; trả về frame đầy đủ khi vừa ghép xong, ngược lại null.
+     */
+    public byte[] onPacket(ByteBuffer packet, InetSocketAddress source) throws IOException {
+        if (packet.remaining() < 6) throw new IOException("Truncated fragment packet");
+        byte kind = packet.get();
+        byte version = packet.get();
+        if (version != MessageCodec.VERSION) throw new IOException("Unsupported wire version: " + version);
+        TransferKey key = new TransferKey(source, packet.getInt());
+
+        if (kind == ACK) {
+            outgoing.remove(key);
+            return null;
+        }
+        if (kind == NACK) {
+            onNack(key, packet);
+            return null;
+        }
+
+        int index = packet.getShort() & 0xFFFF;
+        int count = packet.getShort() & 0xFFFF;
+        if (count == 0 || index >= count || (long) count * MAX_PAYLOAD > ceiling + MAX_PAYLOAD) {
+            throw new IOException("Invalid fragment " + index + "/" + count);
+        }
+
+        // Mảnh trùng đến sau khi đã ghép xong: bỏ, không tạo Incoming mới (sẽ bị NACK vô ích)
+        if (completed.containsKey(key)) return null;
+
+        Incoming transfer = incoming.computeIfAbsent(key, k -> new Incoming(count));
+        byte[] frame;
+        synchronized (transfer) {
+            if (completed.containsKey(key)) { // vừa ghép xong ở luồng khác giữa hai lần kiểm tra
+                incoming.remove(key, transfer);
+                return null;
+            }
+            if (transfer.count != count) throw new IOException("Fragment count changed mid-transfer");
+            frame = transfer.add(index, packet);
+            if (frame == null) return null;
+            // Ghi completed trước khi bỏ Incoming để mảnh trùng chen giữa không tạo lại transfer
+            completed.put(key, System.currentTimeMillis());
+            incoming.remove(key);
+        }
+        reassembled.incrementAndGet();
+        sendControl(ACK, key, null);
+        return frame;
+    }
+
+    private void onNack(TransferKey key, ByteBuffer packet) throws IOException {
+        Outgoing transfer = outgoing.get(key);
+        if (transfer == null) return; // đã hết hạn, bên gọi sẽ timeout ở tầng RPC
+        int n = packet.getShort() & 0xFFFF;
+        for (int i = 0; i < n; i++) {
+            int index = packet.getShort() & 0xFFFF;
+            if (index < transfer.count) {
+                sender.send(transfer.fragment(key.transferId, index), key.peer);
+                retransmitted.incrementAndGet();
+            }
+        }
+    }
+
+    private void sendControl(byte kind, TransferKey key, List<Integer> missing) {
+        int size = 1 + 1 + 4 + (missing == null ? 0 : 2 + 2 * missing.size());
+        ByteBuffer packet = ByteBuffer.allocate(size);
+        packet.put(kind).put(MessageCodec.VERSION).putInt(key.transferId);
+        if (missing != null) {
+            packet.putShort((short) missing.size());
+            for (int index : missing) packet.putShort((short) index);
+        }
+        packet.flip();
+        try {
+            sender.send(packet, key.peer);
+        } catch (IOException e) {
+            System.err.println("[UDP] Failed to send fragment " + (kind == ACK ? "ACK" : "NACK") + ": " + e.getMessage());
+        }
+    }
+
+    // Gửi NACK cho transfer đứng yên, bỏ transfer quá hạn ở cả hai chiều
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        incoming.forEach((key, transfer) -> {
+            List<Integer> missing = null;
+            synchronized (transfer) {
+                if (now - transfer.started > REASSEMBLY_TIMEOUT_MS || transfer.nacks >= MAX_NACKS
+                        && now - transfer.lastFragment > NACK_DELAY_MS) {
+                    incoming.remove(key);
+                    expired.incrementAndGet();
+                    return;
+                }
+                if (now - transfer.lastFragment > NACK_DELAY_MS && now - transfer.lastNack > NACK_DELAY_MS) {
+                    missing = transfer.missing((MAX_DATAGRAM - 8) / 2);
+                    transfer.nacks++;
+                    transfer.lastNack = now;
+                }
+            }
+            if (missing != null) sendControl(NACK, key, missing);
+        });
+        outgoing.values().removeIf(transfer -> now - transfer.created > REASSEMBLY_TIMEOUT_MS);
+        completed.values().removeIf(doneAt -> now - doneAt > REASSEMBLY_TIMEOUT_MS);
+    }
+
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UdpFragmenter{sent=%d, reassembled=%d, retransmitted=%d, expired=%d, pending=%d/%d}",
+                fragmentedSent.get(), reassembled.get(), retransmitted.get(), expired.get(),
+                outgoing.size(), incoming.size());
+    }
+
+    private static final class Outgoing {
+        private final byte[] frame;
+        private final int count;
+        private final long created = System.currentTimeMillis();
+
+        Outgoing(byte[] frame, int count) {
+            this.frame = frame;
+            this.count = count;
+        }
+
+        ByteBuffer fragment(int transferId, int index) {
+            int offset = index * MAX_PAYLOAD;
+            int length = Math.min(MAX_PAYLOAD, frame.length - offset);
+            ByteBuffer packet = ByteBuffer.allocate(DATA_HEADER + length);
+            packet.put(DATA).put(MessageCodec.VERSION).putInt(transferId)
+                    .putShort((short) index).putShort((short) count)
+                    .put(frame, offset, length);
+            return packet.flip();
+        }
+    }
+
+    private static final class Incoming {
+        private final int count;
+        private final byte[][] fragments;
+        private final BitSet received;
+        private final long started = System.currentTimeMillis();
+        private long lastFragment = started;
+        private long lastNack;
+        private int nacks;
+
+        Incoming(int count) {
+            this.count = count;
+            this.fragments = new byte[count][];
+            this.received = new BitSet(count);
+        }
+
+        // Trả frame đã ghép khi đủ mảnh
+        byte[] add(int index, ByteBuffer payload) {
+            lastFragment = System.currentTimeMillis();
+            if (received.get(index)) return null; // mảnh gửi lại trùng
+            byte[] data = new byte[payload.remaining()];
+            payload.get(data);
+            fragments[index] = data;
+            received.set(index);
+            if (received.cardinality() < count) return null;
+
+            int size = 0;
+            for (byte[] fragment : fragments) size += fragment.length;
+            byte[] frame = new byte[size];
+            int offset = 0;
+            for (byte[] fragment : fragments) {
+                System.arraycopy(fragment, 0, frame, offset, fragment.length);
+                offset += fragment.length;
+            }
+            return frame;
+        }
+
+        List<Integer> missing(int limit) {
+            List<Integer> missing = new ArrayList<>();
+            for (int i = received.nextClearBit(0); i < count && missing.size() < limit; i = received.nextClearBit(i + 1)) {
+                missing.add(i);
+            }
+            return missing;
+        }
+    }
+
+    private static final class TransferKey {
+        private final InetSocketAddress peer;
+        private final int transferId;
+
+        TransferKey(InetSocketAddress peer, int transferId) {
+            this.peer = peer;
+            this.transferId = transferId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof TransferKey other)) return false;
+            return transferId == other.transferId && peer.equals(other.peer);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(peer, transferId);
+        }
+    }
+}
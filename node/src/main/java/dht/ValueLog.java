@@ -0,0 +1,435 @@
+package dht;
+
+import core.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Bản lưu bền của DataStore: log chỉ ghi nối (append-only) chia thành các segment, cùng MappedIndex key -> vị trí.
+ *
+ * <pre>
+ *   record: u32 crc32c | u8 type (PUT / DELETE) | 20B key | i64 expiresAt | i32 length | value
+ * </pre>
+ *
+ * Khởi động: map index rồi chỉ replay phần log sau checkpoint của index (thiếu / hỏng index thì replay cả log);
+ * record cuối bị ghi dở (crc sai) được cắt bỏ. 1 thread nền mỗi giây force log rồi ghi checkpoint, định kỳ xóa entry
+ * hết hạn khỏi index, và compact segment cũ còn ít dữ liệu sống: chép record còn được index trỏ tới sang segment
+ * đang ghi, checkpoint, rồi xóa file segment cũ.
+ */
+public class ValueLog implements AutoCloseable {
+    static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    static final int RECORD_HEADER = 4 + 1 + NodeID.ID_LENGTH + 8 + 4;
+    private static final byte PUT = 1, DELETE = 2;
+    private static final double COMPACT_LIVE_RATIO = 0.5; // segment còn dưới 50% dữ liệu sống thì compact
+    private static final long FLUSH_INTERVAL_MS = 1000;
+    private static final long SWEEP_INTERVAL_MS = 60_000;
+    private static final int REPLAY_BUFFER = 4 * 1024 * 1024;
+
+    private final Path dir;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final MappedIndex index;
+    private final Thread worker;
+    private final Object wakeup = new Object(); // không interrupt worker: interrupt đóng luôn FileChannel đang đọc/ghi
+    private Segment active;
+    private boolean dirty;
+    private volatile boolean running = true;
+    private long replayed;
+    private long recoveryMillis;
+    private long compactions;
+    private long expirations;
+
+    // Mở (hoặc tạo) log trong dir, nạp lại index rồi mới chạy worker nền
+    public static ValueLog open(Path dir) throws IOException {
+        ValueLog log = new ValueLog(dir);
+        log.worker.start();
+        return log;
+    }
+
+    private ValueLog(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        long start = System.nanoTime();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "segment-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int id = Integer.parseInt(name.substring("segment-".length(), name.length() - ".log".length()));
+                segments.put(id, new Segment(id, file));
+            }
+        }
+        this.index = MappedIndex.open(dir.resolve("index.db"));
+        recover();
+        this.recoveryMillis = (System.nanoTime() - start) / 1_000_000;
+        this.worker = new Thread(this::run, "dht-value-log");
+        this.worker.setDaemon(true);
+        System.out.println("✓ [ValueLog] Loaded " + index.size() + " values from " + dir + " in " + recoveryMillis
+                + "ms (" + segments.size() + " segments, replayed " + replayed + " records)");
+    }
+
+    // ==================== READ / WRITE ====================
+
+    public synchronized void put(NodeID key, byte[] value, long expiresAt) throws IOException {
+        long offset = append(PUT, key, expiresAt, value, 0, value.length);
+        release(index.find(key));
+        index.put(key, active.id, offset, value.length, expiresAt);
+        active.liveBytes += RECORD_HEADER + value.length;
+    }
+
+    // Value của key, null nếu không có / hết hạn / record không đọc được
+    public synchronized byte[] get(NodeID key) throws IOException {
+        long slot = live(key);
+        if (slot < 0) return null;
+        Segment segment = segments.get(index.segment(slot));
+        int length = index.length(slot);
+        ByteBuffer record = segment == null ? null : segment.read(index.offset(slot), RECORD_HEADER + length);
+        if (record == null || !valid(record, key)) {
+            System.err.println("❌ [ValueLog] Corrupt or missing record for key " + key);
+            forget(slot);
+            return null;
+        }
+        byte[] value = new byte[length];
+        record.get(RECORD_HEADER, value);
+        return value;
+    }
+
+    public synchronized long expiresAt(NodeID key) {
+        long slot = live(key);
+        return slot < 0 ? -1 : index.expiresAt(slot);
+    }
+
+    public synchronized boolean contains(NodeID key) {
+        return live(key) >= 0;
+    }
+
+    // Xóa hẳn: ghi record DELETE để lần dựng lại index từ log cũng không thấy key
+    public synchronized void remove(NodeID key) throws IOException {
+        long slot = index.find(key);
+        if (slot < 0) return;
+        release(slot);
+        index.remove(key);
+        append(DELETE, key, 0, null, 0, 0);
+    }
+
+    // Bỏ key hết hạn khỏi index; record PUT mang sẵn expiresAt nên không cần ghi DELETE
+    public synchronized void expire(NodeID key) {
+        long slot = index.find(key);
+        if (slot >= 0 && index.expiresAt(slot) <= System.currentTimeMillis()) forget(slot);
+    }
+
+    public synchronized long size() {
+        return index.size();
+    }
+
+    // Ảnh chụp các key đang có (kể cả key hết hạn mà sweep chưa xóa)
+    public synchronized List<NodeID> keys() {
+        List<NodeID> keys = new ArrayList<>((int) index.size());
+        for (long slot = 0; slot < index.capacity(); slot++) {
+            if (index.isUsed(slot)) keys.add(index.key(slot));
+        }
+        return keys;
+    }
+
+    private long live(NodeID key) {
+        long slot = index.find(key);
+        if (slot >= 0 && index.expiresAt(slot) <= System.currentTimeMillis()) {
+            forget(slot);
+            expirations++;
+            return -1;
+        }
+        return slot;
+    }
+
+    private void forget(long slot) {
+        release(slot);
+        index.remove(index.key(slot));
+    }
+
+    // Record cũ của slot không còn sống
+    private void release(long slot) {
+        if (slot < 0) return;
+        Segment segment = segments.get(index.segment(slot));
+        if (segment != null) segment.liveBytes -= RECORD_HEADER + index.length(slot);
+    }
+
+    // Ghi nối 1 record vào segment đang ghi (sang segment mới khi đầy), trả về offset của record
+    private long append(byte type, NodeID key, long expiresAt, byte[] value, int from, int length) throws IOException {
+        if (active == null || active.size >= SEGMENT_SIZE) roll();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + length);
+        record.position(4);
+        record.put(type).put(key.getBytes()).putLong(expiresAt).putInt(length);
+        if (value != null) record.put(value, from, length);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        record.putInt(0, (int) crc.getValue());
+        record.flip();
+
+        long offset = active.size;
+        while (record.hasRemaining()) active.channel.write(record, offset + record.position());
+        active.size += record.limit();
+        dirty = true;
+        return offset;
+    }
+
+    private void roll() throws IOException {
+        int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        Segment segment = new Segment(id, dir.resolve(String.format("segment-%06d.log", id)));
+        segments.put(id, segment);
+        active = segment;
+    }
+
+    private static boolean valid(ByteBuffer record, NodeID key) {
+        CRC32C crc = new CRC32C();
+        crc.update(record.duplicate().position(4));
+        if (record.getInt(0) != (int) crc.getValue()) return false;
+        return key == null || key.equals(new NodeID(record.getLong(5), record.getLong(13), record.getInt(21)));
+    }
+
+    // ==================== RECOVERY ====================
+
+    // Replay các record sau checkpoint vào index, rồi tính lại dữ liệu sống của từng segment từ index
+    private void recover() throws IOException {
+        long cpSegment = index.checkpointSegment();
+        long cpOffset = index.checkpointOffset();
+        for (Segment segment : segments.values()) {
+            if (segment.id < cpSegment) continue;
+            replay(segment, segment.id == cpSegment ? cpOffset : 0, segment == segments.lastEntry().getValue());
+        }
+        active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+
+        for (long slot = 0; slot < index.capacity(); slot++) {
+            if (!index.isUsed(slot)) continue;
+            Segment segment = segments.get(index.segment(slot));
+            // segment đã mất, hoặc record nằm ở đuôi log chưa kịp xuống đĩa (trang index được OS ghi trước checkpoint)
+            if (segment == null || index.offset(slot) + RECORD_HEADER + index.length(slot) > segment.size) {
+                forget(slot);
+                continue;
+            }
+            segment.liveBytes += RECORD_HEADER + index.length(slot);
+        }
+        if (active != null) checkpoint();
+    }
+
+    // Đọc tuần tự qua 1 buffer lớn; record hỏng ở segment cuối là phần ghi dở lúc dừng đột ngột nên bị cắt bỏ
+    private void replay(Segment segment, long from, boolean last) throws IOException {
+        long now = System.currentTimeMillis();
+        ByteBuffer window = ByteBuffer.allocate(REPLAY_BUFFER).flip();
+        long position = from;
+        while (position < segment.size) {
+            int length = segment.fill(window, position, RECORD_HEADER)
+                    ? window.getInt(window.position() + RECORD_HEADER - 4) : -1;
+            int size = RECORD_HEADER + length;
+            ByteBuffer record = null;
+            if (length >= 0 && position + size <= segment.size) {
+                if (segment.fill(window, position, size)) {
+                    record = window.slice(window.position(), size);
+                    window.position(window.position() + size);
+                } else {
+                    record = segment.read(position, size); // record lớn hơn buffer
+                    window.clear().flip();
+                }
+            }
+            if (record == null || !valid(record, null)) {
+                System.err.println("⚠ [ValueLog] Bad record at " + segment.file.getFileName() + ":" + position
+                        + (last ? ", truncating torn tail" : ", skipping rest of segment"));
+                if (last) {
+                    segment.channel.truncate(position);
+                    segment.size = position;
+                }
+                return;
+            }
+            NodeID key = new NodeID(record.getLong(5), record.getLong(13), record.getInt(21));
+            long expiresAt = record.getLong(25);
+            if (record.get(4) == PUT && expiresAt > now) {
+                index.put(key, segment.id, position, length, expiresAt);
+            } else {
+                index.remove(key);
+            }
+            replayed++;
+            position += size;
+        }
+    }
+
+    // ==================== BACKGROUND ====================
+
+    private void run() {
+        long lastSweep = System.currentTimeMillis();
+        while (running) {
+            try {
+                synchronized (wakeup) {
+                    wakeup.wait(FLUSH_INTERVAL_MS);
+                }
+                if (!running) return;
+                flush();
+                if (System.currentTimeMillis() - lastSweep > SWEEP_INTERVAL_MS) {
+                    sweep();
+                    lastSweep = System.currentTimeMillis();
+                }
+                Segment candidate = compactionCandidate();
+                if (candidate != null) compact(candidate);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                System.err.println("❌ [ValueLog] Background task failed: " + e.getMessage());
+            }
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        if (dirty && active != null) checkpoint();
+    }
+
+    // Log phải xuống đĩa trước, rồi mới tới index và checkpoint trỏ tới cuối log
+    private void checkpoint() throws IOException {
+        active.channel.force(false);
+        index.checkpoint(active.id, active.size);
+        dirty = false;
+    }
+
+    private synchronized void sweep() {
+        long now = System.currentTimeMillis();
+        for (long slot = 0; slot < index.capacity(); slot++) {
+            if (index.isUsed(slot) && index.expiresAt(slot) <= now) {
+                forget(slot);
+                expirations++;
+            }
+        }
+    }
+
+    private synchronized Segment compactionCandidate() {
+        for (Segment segment : segments.values()) {
+            if (segment != active && segment.liveBytes < segment.size * COMPACT_LIVE_RATIO) return segment;
+        }
+        return null;
+    }
+
+    // Đọc segment cũ ngoài lock (file không còn được ghi), mỗi record còn sống được chép trong lock
+    private void compact(Segment segment) throws IOException {
+        long position = 0;
+        while (position < segment.size && running) {
+            ByteBuffer header = segment.read(position, RECORD_HEADER);
+            if (header == null) break;
+            int length = header.getInt(RECORD_HEADER - 4);
+            ByteBuffer record = segment.read(position, RECORD_HEADER + length);
+            if (record == null || !valid(record, null)) break;
+            copyIfLive(segment, position, record);
+            position += RECORD_HEADER + length;
+        }
+        if (!running) return;
+        synchronized (this) {
+            checkpoint(); // bản chép đã xuống đĩa trước khi xóa bản cũ
+            segments.remove(segment.id);
+            segment.channel.close();
+            Files.deleteIfExists(segment.file);
+            compactions++;
+        }
+    }
+
+    private synchronized void copyIfLive(Segment segment, long position, ByteBuffer record) throws IOException {
+        NodeID key = new NodeID(record.getLong(5), record.getLong(13), record.getInt(21));
+        int length = record.getInt(RECORD_HEADER - 4);
+        long slot = index.find(key);
+        if (record.get(4) == DELETE) {
+            // DELETE chỉ cần giữ khi key chưa được ghi lại và còn segment cũ hơn có thể chứa PUT của key
+            if (slot < 0 && segments.firstKey() < segment.id) append(DELETE, key, 0, null, 0, 0);
+            return;
+        }
+        if (slot < 0 || index.segment(slot) != segment.id || index.offset(slot) != position) return;
+        long expiresAt = record.getLong(25);
+        if (expiresAt <= System.currentTimeMillis()) {
+            forget(slot);
+            expirations++;
+            return;
+        }
+        release(slot);
+        long offset = append(PUT, key, expiresAt, record.array(), RECORD_HEADER, length);
+        index.put(key, active.id, offset, length, expiresAt);
+        active.liveBytes += RECORD_HEADER + length;
+    }
+
+    // ==================== METRICS ====================
+
+    public synchronized long getLogBytes() {
+        long total = 0;
+        for (Segment segment : segments.values()) total += segment.size;
+        return total;
+    }
+
+    public synchronized long getLiveBytes() {
+        long total = 0;
+        for (Segment segment : segments.values()) total += segment.liveBytes;
+        return total;
+    }
+
+    public synchronized int getSegmentCount() { return segments.size(); }
+    public synchronized long getCompactions() { return compactions; }
+    public synchronized long getExpirations() { return expirations; }
+    public long getRecoveryMillis() { return recoveryMillis; }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ValueLog{values=%d, segments=%d, log=%,dB, live=%,dB, compactions=%d, recovery=%dms}",
+                index.size(), segments.size(), getLogBytes(), getLiveBytes(), compactions, recoveryMillis);
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        synchronized (wakeup) {
+            wakeup.notifyAll();
+        }
+        try {
+            worker.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (active != null) checkpoint();
+            for (Segment segment : segments.values()) segment.channel.close();
+            index.close();
+        }
+    }
+
+    private static final class Segment {
+        final int id;
+        final Path file;
+        final FileChannel channel;
+        long size;
+        long liveBytes;
+
+        Segment(int id, Path file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+
+        // Đọc đủ length byte tại position, null nếu file ngắn hơn
+        ByteBuffer read(long position, int length) throws IOException {
+            if (length < 0 || position + length > size) return null;
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) return null;
+            }
+            return buffer.flip();
+        }
+
+        // window (đang đọc) bắt đầu tại position: đọc thêm để có ít nhất need byte, false nếu hết file / quá buffer
+        boolean fill(ByteBuffer window, long position, int need) throws IOException {
+            if (window.remaining() >= need) return true;
+            if (need > window.capacity()) return false;
+            window.compact();
+            long next = position + window.position();
+            while (window.hasRemaining() && next < size) {
+                int read = channel.read(window, next);
+                if (read < 0) break;
+                next += read;
+            }
+            window.flip();
+            return window.remaining() >= need;
+        }
+    }
+}
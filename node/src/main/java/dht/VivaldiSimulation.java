@@ -0,0 +1,101 @@
+package dht;
+
+import core.*;
+
+import java.util.*;
+
+/**
+ * Mô phỏng tọa độ Vivaldi trong 1 process: N node chia vào vài datacenter trên mặt phẳng (RTT = 2 lần khoảng
+ * cách giữa 2 datacenter + độ trễ truy cập của mỗi node + nhiễu). Mỗi vòng mọi node đo RTT tới 1 node ngẫu nhiên
+ * như 1 RPC nhỏ và cập nhật tọa độ. In sai số tương đối của dự đoán tới các cặp chưa từng đo, và RTT trung bình
+ * tới replica được chọn khi chọn theo tọa độ so với thứ tự XOR (cách cũ) và replica RTT thấp nhất thật sự.
+ * Chạy: java dht.VivaldiSimulation [nodes] [rounds] [datacenters]
+ */
+public class VivaldiSimulation {
+    private static final int REPLICAS = KademliaNode.REPLICATION_FACTOR;
+
+    public static void main(String[] args) {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int datacenters = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Random random = new Random(11);
+        double[][] sites = new double[datacenters][];
+        for (int i = 0; i < datacenters; i++) {
+            sites[i] = new double[]{random.nextDouble() * 80, random.nextDouble() * 80}; // 1 đơn vị = 1ms một chiều
+        }
+        int[] site = new int[nodes];
+        double[] access = new double[nodes];
+        for (int i = 0; i < nodes; i++) {
+            site[i] = random.nextInt(datacenters);
+            access[i] = 0.2 + random.nextDouble() * 3;
+        }
+        VivaldiCoordinate[] coordinates = new VivaldiCoordinate[nodes];
+        Arrays.fill(coordinates, VivaldiCoordinate.ORIGIN);
+        Set<Long> measured = new HashSet<>();
+
+        System.out.println("nodes=" + nodes + " datacenters=" + datacenters + " replicas=" + REPLICAS);
+        for (int round = 1; round <= rounds; round++) {
+            for (int i = 0; i < nodes; i++) {
+                int j = random.nextInt(nodes);
+                if (j == i) continue;
+                double sample = rtt(sites, site, access, i, j) * (1 + random.nextDouble() * 0.1);
+                coordinates[i] = coordinates[i].update(coordinates[j], sample);
+                measured.add(pair(i, j));
+            }
+            if (round == 1 || round % 20 == 0 || round == rounds) {
+                report(round, sites, site, access, coordinates, measured, new Random(round));
+            }
+        }
+    }
+
+    private static void report(int round, double[][] sites, int[] site, double[] access,
+                               VivaldiCoordinate[] coordinates, Set<Long> measured, Random random) {
+        int nodes = coordinates.length;
+        List<Double> errors = new ArrayList<>();
+        double xorOrder = 0, byCoordinate = 0, best = 0;
+        int trials = 2000;
+        for (int t = 0; t < trials; t++) {
+            int i = random.nextInt(nodes);
+            int j = random.nextInt(nodes);
+            if (i != j && !measured.contains(pair(i, j))) {
+                double actual = rtt(sites, site, access, i, j);
+                errors.add(Math.abs(coordinates[i].distanceTo(coordinates[j]) - actual) / actual);
+            }
+            // REPLICAS node giữ key (thứ tự XOR không liên quan tới vị trí mạng nên coi như ngẫu nhiên)
+            int[] replicas = new int[REPLICAS];
+            for (int r = 0; r < REPLICAS; r++) replicas[r] = random.nextInt(nodes);
+            int predicted = replicas[0];
+            double lowest = Double.MAX_VALUE;
+            for (int r : replicas) {
+                if (coordinates[i].distanceTo(coordinates[r]) < coordinates[i].distanceTo(coordinates[predicted])) {
+                    predicted = r;
+                }
+                lowest = Math.min(lowest, rtt(sites, site, access, i, r));
+            }
+            xorOrder += rtt(sites, site, access, i, replicas[0]);
+            byCoordinate += rtt(sites, site, access, i, predicted);
+            best += lowest;
+        }
+        Collections.sort(errors);
+        double meanError = Arrays.stream(coordinates).mapToDouble(VivaldiCoordinate::getError).average().orElse(0);
+        System.out.printf("round %3d | relative error p50 %.3f p90 %.3f (self-estimate %.3f) | "
+                        + "replica RTT xor-order %.1fms vivaldi %.1fms optimal %.1fms%n",
+                round, percentile(errors, 0.5), percentile(errors, 0.9), meanError,
+                xorOrder / trials, byCoordinate / trials, best / trials);
+    }
+
+    private static double rtt(double[][] sites, int[] site, double[] access, int i, int j) {
+        double[] a = sites[site[i]];
+        double[] b = sites[site[j]];
+        return 2 * Math.hypot(a[0] - b[0], a[1] - b[1]) + access[i] + access[j];
+    }
+
+    private static long pair(int i, int j) {
+        return ((long) Math.min(i, j) << 32) | Math.max(i, j);
+    }
+
+    private static double percentile(List<Double> sorted, double p) {
+        return sorted.isEmpty() ? 0 : sorted.get((int) Math.min(sorted.size() - 1, p * sorted.size()));
+    }
+}
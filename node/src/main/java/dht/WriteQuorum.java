@@ -0,0 +1,121 @@
+package dht;
+
+import core.*;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Ghi song song tới mọi replica với write quorum W: getQuorum() hoàn thành ngay khi W replica xác nhận (hoặc khi
+ * chắc chắn không thể đủ W), các lần ghi còn lại vẫn chạy tiếp ở nền và getCompletion() hoàn thành khi mọi replica
+ * đã có kết quả. Ít replica hơn W (mạng nhỏ) thì cần tất cả xác nhận. Kết quả từng replica (xác nhận / từ chối /
+ * lỗi-timeout, kèm thời gian) đọc qua getOutcome / describe.
+ */
+public class WriteQuorum {
+    public enum Outcome { PENDING, ACKED, REJECTED, FAILED }
+
+    private final List<Contact> replicas;
+    private final int target;   // W cấu hình
+    private final int required; // min(W, số replica)
+    private final Outcome[] outcomes;
+    private final long[] latencyNanos;
+    private final long startNanos = System.nanoTime();
+    private final CompletableFuture<WriteQuorum> quorum = new CompletableFuture<>();
+    private final CompletableFuture<WriteQuorum> completion = new CompletableFuture<>();
+    private long quorumNanos = -1;
+    private int acks;
+    private int done;
+
+    private WriteQuorum(List<Contact> replicas, int required) {
+        this.replicas = new ArrayList<>(replicas);
+        this.target = Math.max(1, required);
+        this.required = Math.max(1, Math.min(target, this.replicas.size()));
+        this.outcomes = new Outcome[this.replicas.size()];
+        this.latencyNanos = new long[this.replicas.size()];
+        Arrays.fill(outcomes, Outcome.PENDING);
+    }
+
+    // Gửi song song tới mọi replica. write: gửi 1 lần ghi tới replica, true nếu replica xác nhận;
+    // future lỗi = không trả lời / timeout
+    public static WriteQuorum start(List<Contact> replicas, int required,
+                                    Function<Contact, CompletableFuture<Boolean>> write) {
+        WriteQuorum quorum = new WriteQuorum(replicas, required);
+        quorum.fire(write);
+        return quorum;
+    }
+
+    private void fire(Function<Contact, CompletableFuture<Boolean>> write) {
+        if (replicas.isEmpty()) finishIfDone();
+        for (int i = 0; i < replicas.size(); i++) {
+            int replica = i;
+            CompletableFuture<Boolean> future;
+            try {
+                future = write.apply(replicas.get(i));
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            future.whenComplete((acked, error) -> record(replica,
+                    error != null ? Outcome.FAILED : Boolean.TRUE.equals(acked) ? Outcome.ACKED : Outcome.REJECTED));
+        }
+    }
+
+    private void record(int replica, Outcome outcome) {
+        synchronized (this) {
+            outcomes[replica] = outcome;
+            latencyNanos[replica] = System.nanoTime() - startNanos;
+            done++;
+            if (outcome == Outcome.ACKED && ++acks == required) quorumNanos = latencyNanos[replica];
+        }
+        finishIfDone();
+    }
+
+    // Hoàn thành future ngoài lock: callback của caller có thể đọc lại kết quả
+    private void finishIfDone() {
+        boolean decided, finished;
+        synchronized (this) {
+            decided = acks >= required || acks + (replicas.size() - done) < required;
+            finished = done == replicas.size();
+        }
+        if (decided) quorum.complete(this);
+        if (finished) completion.complete(this);
+    }
+
+    // Chờ tới khi có quorum (hoặc chắc chắn không đủ); true nếu đủ W xác nhận
+    public boolean awaitQuorum() {
+        return quorum.join().isQuorumReached();
+    }
+
+    public CompletableFuture<WriteQuorum> getQuorum() { return quorum; }
+    public CompletableFuture<WriteQuorum> getCompletion() { return completion; }
+    public List<Contact> getReplicas() { return Collections.unmodifiableList(replicas); }
+    public int getRequired() { return required; }
+    public synchronized int getAcks() { return acks; }
+    public synchronized boolean isQuorumReached() { return acks >= required; }
+    public synchronized Outcome getOutcome(Contact replica) { return outcomes[replicas.indexOf(replica)]; }
+
+    // Thời gian từ lúc gửi tới khi đủ W xác nhận (ms), -1 nếu chưa / không đủ
+    public synchronized double getQuorumMillis() {
+        return quorumNanos < 0 ? -1 : quorumNanos / 1e6;
+    }
+
+    // Kết quả từng replica: ip:port=OUTCOME(ms)
+    public synchronized String describe() {
+        StringBuilder builder = new StringBuilder(toString()).append(" [");
+        for (int i = 0; i < replicas.size(); i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(replicas.get(i).getIp()).append(':').append(replicas.get(i).getPort())
+                    .append('=').append(outcomes[i]);
+            if (outcomes[i] != Outcome.PENDING) builder.append(String.format("(%.1fms)", latencyNanos[i] / 1e6));
+        }
+        return builder.append(']').toString();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("WriteQuorum{acks=%d/%d replicas, W=%d%s %s, pending=%d}", acks, replicas.size(), required,
+                required < target ? " (target " + target + ")" : "",
+                isQuorumReached() ? String.format("reached in %.1fms", getQuorumMillis()) : "not reached",
+                replicas.size() - done);
+    }
+}
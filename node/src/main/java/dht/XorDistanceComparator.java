@@ -0,0 +1,27 @@
+package dht;
+
+import core.*;
+
+import java.util.Comparator;
+
+/**
+ * Thứ tự theo khoảng cách XOR đầy đủ 160 bit tới target (gần trước).
+ * Hai contact chỉ bằng nhau khi trùng NodeID, nên dùng được cho TreeSet/PriorityQueue
+ * mà không làm rơi contact khác nhau cùng bucket.
+ */
+public class XorDistanceComparator implements Comparator<Contact> {
+    private final NodeID target;
+
+    public XorDistanceComparator(NodeID target) {
+        this.target = target;
+    }
+
+    public NodeID getTarget() {
+        return target;
+    }
+
+    @Override
+    public int compare(Contact a, Contact b) {
+        return NodeID.xorCompare(a.getNodeId(), b.getNodeId(), target);
+    }
+}
@@ -0,0 +1,156 @@
+package util;
+
+/**
+ * Map khóa long nguyên thủy cho nhiều thread: chia thành các segment, mỗi segment là bảng
+ * open addressing (dò tuyến tính) khóa riêng. Không box khóa, không tạo Node cho mỗi entry.
+ * Khóa 0 được dành cho ô trống nên không dùng được làm khóa.
+ */
+public class ConcurrentLongMap<V> {
+    private static final int SEGMENTS = 16;
+
+    private final Segment<V>[] segments;
+
+    public ConcurrentLongMap() {
+        this(64);
+    }
+
+    public ConcurrentLongMap(int initialCapacity) {
+        segments = newSegments(SEGMENTS);
+        // Lũy thừa của 2, đủ chứa initialCapacity với load factor 0.5
+        int perSegment = Math.max(8, Integer.highestOneBit(Math.max(1, initialCapacity * 2 / SEGMENTS)) * 2);
+        for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment<>(perSegment);
+    }
+
+    public V put(long key, V value) {
+        checkKey(key);
+        if (value == null) throw new NullPointerException("value");
+        long hash = mix(key);
+        return segmentFor(hash).put(key, hash, value);
+    }
+
+    public V get(long key) {
+        if (key == 0) return null;
+        long hash = mix(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    public V remove(long key) {
+        if (key == 0) return null;
+        long hash = mix(key);
+        return segmentFor(hash).remove(key, hash);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) size += segment.size();
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    // Không tạo được mảng generic trực tiếp: tạo Segment<?>[] rồi ép kiểu (mảng chỉ dùng nội bộ)
+    @SuppressWarnings("unchecked")
+    private static <V> Segment<V>[] newSegments(int count) {
+        return (Segment<V>[]) new Segment<?>[count];
+    }
+
+    private Segment<V> segmentFor(long hash) {
+        return segments[(int) (hash >>> 60) & (SEGMENTS - 1)];
+    }
+
+    private static void checkKey(long key) {
+        if (key == 0) throw new IllegalArgumentException("Key 0 is reserved");
+    }
+
+    // Trộn bit (Fibonacci hashing) để id tăng dần vẫn rải đều các ô
+    private static long mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    private static final class Segment<V> {
+        private long[] keys;
+        private Object[] values;
+        private int size;
+
+        Segment(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V get(long key, long hash) {
+            int mask = keys.length - 1;
+            for (int i = (int) hash & mask; keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) return (V) values[i];
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V put(long key, long hash, V value) {
+            int mask = keys.length - 1;
+            int i = (int) hash & mask;
+            for (; keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    V previous = (V) values[i];
+                    values[i] = value;
+                    return previous;
+                }
+            }
+            keys[i] = key;
+            values[i] = value;
+            // Giữ load factor ≤ 0.5 để chuỗi dò ngắn
+            if (++size * 2 > keys.length) resize();
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        synchronized V remove(long key, long hash) {
+            int mask = keys.length - 1;
+            int i = (int) hash & mask;
+            while (keys[i] != key) {
+                if (keys[i] == 0) return null;
+                i = (i + 1) & mask;
+            }
+            V previous = (V) values[i];
+            size--;
+
+            // Xóa kiểu backward shift: kéo các entry phía sau về để không cần tombstone
+            int gap = i;
+            for (int j = (gap + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                int home = (int) mix(keys[j]) & mask;
+                // entry tại j được phép dời về gap nếu home của nó không nằm trong (gap, j]
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    gap = j;
+                }
+            }
+            keys[gap] = 0;
+            values[gap] = null;
+            return previous;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Object[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int k = 0; k < oldKeys.length; k++) {
+                if (oldKeys[k] == 0) continue;
+                int i = (int) mix(oldKeys[k]) & mask;
+                while (keys[i] != 0) i = (i + 1) & mask;
+                keys[i] = oldKeys[k];
+                values[i] = oldValues[k];
+            }
+        }
+    }
+}
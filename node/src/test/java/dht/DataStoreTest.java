@@ -0,0 +1,123 @@
+package dht;
+
+import core.*;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DataStoreTest {
+    private static final long TTL = 60_000;
+
+    // 1 page, slot MAX_VALUE_SIZE: đúng SLOTS value lớn nhất trước khi phải loại
+    private static final int SLOTS = DataStore.PAGE_SIZE / DataStore.MAX_VALUE_SIZE;
+
+    private final DataStore store = new DataStore(DataStore.PAGE_SIZE);
+
+    @AfterEach
+    void close() {
+        store.close();
+    }
+
+    private static NodeID key(int i) {
+        return NodeID.fromHash("data-store-test-" + i);
+    }
+
+    private static byte[] value(int length, int seed) {
+        byte[] value = new byte[length];
+        Arrays.fill(value, (byte) seed);
+        return value;
+    }
+
+    @Test
+    void overwriteReplacesValueAndFreesOldSlot() {
+        NodeID key = key(0);
+        assertTrue(store.put(key, "one".getBytes(), TTL));
+        assertTrue(store.put(key, value(5000, 2), TTL)); // lớp kích thước khác
+
+        assertArrayEquals(value(5000, 2), store.get(key));
+        assertEquals(1, store.size());
+        assertEquals(5000, store.getUsedBytes());
+    }
+
+    @Test
+    void rejectedOverwriteKeepsOldValue() {
+        NodeID key = key(0);
+        assertTrue(store.put(key, "old".getBytes(), TTL));
+
+        assertFalse(store.put(key, new byte[DataStore.MAX_VALUE_SIZE + 1], TTL));
+        assertArrayEquals("old".getBytes(), store.get(key));
+        assertEquals(1, store.getRejected());
+    }
+
+    @Test
+    void overwriteInFullClassEvictsOneOtherEntry() {
+        for (int i = 0; i < SLOTS; i++) assertTrue(store.put(key(i), value(DataStore.MAX_VALUE_SIZE, i), TTL));
+
+        assertTrue(store.put(key(SLOTS - 1), value(DataStore.MAX_VALUE_SIZE, 99), TTL));
+        assertArrayEquals(value(DataStore.MAX_VALUE_SIZE, 99), store.get(key(SLOTS - 1)));
+        assertEquals(SLOTS - 1, store.size()); // slot mới lấy từ 1 entry bị loại, slot cũ trả lại sau khi ghi
+    }
+
+    @Test
+    void evictsSoonestExpiringAmongLeastRecentlyUsed() {
+        for (int i = 0; i < SLOTS; i++) {
+            assertTrue(store.put(key(i), value(DataStore.MAX_VALUE_SIZE, i), i == 3 ? TTL / 2 : TTL));
+        }
+        assertEquals(0, store.getEvictions());
+
+        assertTrue(store.put(key(SLOTS), value(DataStore.MAX_VALUE_SIZE, SLOTS), TTL));
+        assertEquals(1, store.getEvictions());
+        assertFalse(store.contains(key(3)));
+        assertTrue(store.contains(key(SLOTS)));
+        assertEquals(SLOTS, store.size());
+    }
+
+    @Test
+    void recentlyReadValueSurvivesEviction() {
+        for (int i = 0; i < SLOTS; i++) assertTrue(store.put(key(i), value(DataStore.MAX_VALUE_SIZE, i), TTL));
+        assertNotNull(store.get(key(0))); // key 0 không còn nằm trong nhóm ít dùng nhất
+
+        for (int i = SLOTS; i < SLOTS + 5; i++) {
+            assertTrue(store.put(key(i), value(DataStore.MAX_VALUE_SIZE, i), TTL));
+        }
+        assertEquals(5, store.getEvictions());
+        assertArrayEquals(value(DataStore.MAX_VALUE_SIZE, 0), store.get(key(0)));
+    }
+
+    @Test
+    void expiredValueIsGone() throws InterruptedException {
+        NodeID key = key(0);
+        assertTrue(store.put(key, "short".getBytes(), 50));
+        assertTrue(store.put(key(1), "long".getBytes(), TTL));
+        assertTrue(store.expiresAt(key) > 0);
+
+        Thread.sleep(120);
+        assertNull(store.get(key));
+        assertFalse(store.contains(key));
+        assertEquals(-1, store.expiresAt(key));
+        assertEquals(1, store.getExpirations());
+        assertArrayEquals("long".getBytes(), store.get(key(1)));
+    }
+
+    @Test
+    void cleanupDropsExpiredEntries() throws InterruptedException {
+        for (int i = 0; i < 10; i++) assertTrue(store.put(key(i), value(100, i), 20));
+        Thread.sleep(60);
+
+        store.cleanup();
+        assertEquals(0, store.size());
+        assertEquals(0, store.getUsedBytes());
+    }
+
+    @Test
+    void closedStoreRejectsPuts() {
+        store.put(key(0), "v".getBytes(), TTL);
+        store.close();
+
+        assertFalse(store.put(key(1), "v".getBytes(), TTL));
+        assertNull(store.get(key(0)));
+    }
+}
@@ -0,0 +1,113 @@
+package dht;
+
+import core.*;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteQuorumTest {
+
+    private static List<Contact> replicas(int count) {
+        List<Contact> replicas = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            replicas.add(new Contact(NodeID.fromHash("replica-" + i), InetAddress.getLoopbackAddress(), 5000 + i, 8080));
+        }
+        return replicas;
+    }
+
+    // Mỗi replica 1 future do test tự hoàn thành
+    private static Map<Contact, CompletableFuture<Boolean>> writes(List<Contact> replicas) {
+        Map<Contact, CompletableFuture<Boolean>> writes = new LinkedHashMap<>();
+        for (Contact replica : replicas) writes.put(replica, new CompletableFuture<>());
+        return writes;
+    }
+
+    @Test
+    void quorumCompletesBeforeSlowReplicas() {
+        List<Contact> replicas = replicas(5);
+        Map<Contact, CompletableFuture<Boolean>> writes = writes(replicas);
+        WriteQuorum quorum = WriteQuorum.start(replicas, 3, writes::get);
+
+        writes.get(replicas.get(0)).complete(true);
+        writes.get(replicas.get(1)).complete(true);
+        assertFalse(quorum.getQuorum().isDone());
+
+        writes.get(replicas.get(2)).complete(true);
+        assertTrue(quorum.getQuorum().isDone());
+        assertTrue(quorum.awaitQuorum());
+        assertTrue(quorum.getQuorumMillis() >= 0);
+        assertFalse(quorum.getCompletion().isDone());
+        assertEquals(WriteQuorum.Outcome.PENDING, quorum.getOutcome(replicas.get(3)));
+
+        writes.get(replicas.get(3)).complete(false);
+        writes.get(replicas.get(4)).completeExceptionally(new TimeoutException());
+        assertTrue(quorum.getCompletion().isDone());
+        assertEquals(3, quorum.getAcks());
+        assertEquals(WriteQuorum.Outcome.REJECTED, quorum.getOutcome(replicas.get(3)));
+        assertEquals(WriteQuorum.Outcome.FAILED, quorum.getOutcome(replicas.get(4)));
+    }
+
+    @Test
+    void failsAsSoonAsQuorumIsImpossible() {
+        List<Contact> replicas = replicas(4);
+        Map<Contact, CompletableFuture<Boolean>> writes = writes(replicas);
+        WriteQuorum quorum = WriteQuorum.start(replicas, 3, writes::get);
+
+        writes.get(replicas.get(0)).complete(true);
+        writes.get(replicas.get(1)).complete(false);
+        assertFalse(quorum.getQuorum().isDone()); // còn 2 replica chờ, vẫn có thể đủ 3
+
+        writes.get(replicas.get(2)).completeExceptionally(new TimeoutException());
+        assertTrue(quorum.getQuorum().isDone());
+        assertFalse(quorum.awaitQuorum());
+        assertEquals(-1, quorum.getQuorumMillis());
+        assertFalse(quorum.getCompletion().isDone());
+
+        writes.get(replicas.get(3)).complete(true);
+        assertTrue(quorum.getCompletion().isDone());
+        assertEquals(2, quorum.getAcks());
+        assertFalse(quorum.isQuorumReached());
+    }
+
+    @Test
+    void fewerReplicasThanTargetRequiresAll() {
+        List<Contact> replicas = replicas(2);
+        Map<Contact, CompletableFuture<Boolean>> writes = writes(replicas);
+        WriteQuorum quorum = WriteQuorum.start(replicas, 3, writes::get);
+        assertEquals(2, quorum.getRequired());
+
+        writes.get(replicas.get(0)).complete(true);
+        assertFalse(quorum.getQuorum().isDone());
+        writes.get(replicas.get(1)).complete(true);
+        assertTrue(quorum.awaitQuorum());
+        assertTrue(quorum.toString().contains("target 3"));
+    }
+
+    @Test
+    void throwingWriteCountsAsFailed() {
+        List<Contact> replicas = replicas(3);
+        WriteQuorum quorum = WriteQuorum.start(replicas, 2, contact -> {
+            if (contact == replicas.get(1)) throw new IllegalStateException("RPC is shut down");
+            return CompletableFuture.completedFuture(true);
+        });
+
+        assertTrue(quorum.getCompletion().isDone());
+        assertTrue(quorum.isQuorumReached());
+        assertEquals(2, quorum.getAcks());
+        assertEquals(WriteQuorum.Outcome.FAILED, quorum.getOutcome(replicas.get(1)));
+    }
+
+    @Test
+    void noReplicasCompletesImmediatelyWithoutQuorum() {
+        WriteQuorum quorum = WriteQuorum.start(List.of(), 3, contact -> CompletableFuture.completedFuture(true));
+
+        assertTrue(quorum.getCompletion().isDone());
+        assertFalse(quorum.awaitQuorum());
+        assertEquals(0, quorum.getAcks());
+    }
+}